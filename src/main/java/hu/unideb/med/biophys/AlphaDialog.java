@@ -300,6 +300,9 @@ public class AlphaDialog extends JDialog implements ActionListener {
 
     @Override
     public void actionPerformed(ActionEvent e) {
+        if (mainWindow.isTaskRunning()) {
+            return;
+        }
         try {
             switch (e.getActionCommand()) {
                 case "reset":
@@ -413,27 +416,8 @@ public class AlphaDialog extends JDialog implements ActionListener {
                         return;
                     }
                     ImageProcessor ipT = donorBeforeImg.getProcessor();
-                    int width = donorBeforeImg.getWidth();
-                    int height = donorBeforeImg.getHeight();
-                    double sum = 0;
-                    int count = 0;
-                    for (int i = 0; i < width; i++) {
-                        for (int j = 0; j < height; j++) {
-                            if (donorBeforeImg.getRoi().contains(i, j)) {
-                                sum += ipT.getPixelValue(i, j);
-                                count++;
-                            }
-                        }
-                    }
-                    float backgroundAvgT = (float) (sum / count);
-                    float value = 0;
-                    for (int x = 0; x < width; x++) {
-                        for (int y = 0; y < height; y++) {
-                            value = ipT.getPixelValue(x, y);
-                            value = value - backgroundAvgT;
-                            ipT.putPixelValue(x, y, value);
-                        }
-                    }
+                    float backgroundAvgT = (float) RoiStatistics.getMean(ipT, donorBeforeImg.getRoi());
+                    BackgroundSubtractor.subtract(ipT, backgroundAvgT);
                     donorBeforeImg.updateAndDraw();
                     donorBeforeImg.killRoi();
                     mainWindow.log("Subtracted background (" + backgroundAvgT + ") of donor before bleaching. (\u03B1 calc.)");
@@ -451,27 +435,8 @@ public class AlphaDialog extends JDialog implements ActionListener {
                         return;
                     }
                     ImageProcessor ipA = donorAfterImg.getProcessor();
-                    int width = donorAfterImg.getWidth();
-                    int height = donorAfterImg.getHeight();
-                    double sum = 0;
-                    int count = 0;
-                    for (int i = 0; i < width; i++) {
-                        for (int j = 0; j < height; j++) {
-                            if (donorAfterImg.getRoi().contains(i, j)) {
-                                sum += ipA.getPixelValue(i, j);
-                                count++;
-                            }
-                        }
-                    }
-                    float backgroundAvgA = (float) (sum / count);
-                    float value = 0;
-                    for (int x = 0; x < width; x++) {
-                        for (int y = 0; y < height; y++) {
-                            value = ipA.getPixelValue(x, y);
-                            value = value - backgroundAvgA;
-                            ipA.putPixelValue(x, y, value);
-                        }
-                    }
+                    float backgroundAvgA = (float) RoiStatistics.getMean(ipA, donorAfterImg.getRoi());
+                    BackgroundSubtractor.subtract(ipA, backgroundAvgA);
                     donorAfterImg.updateAndDraw();
                     donorAfterImg.killRoi();
                     mainWindow.log("Subtracted background (" + backgroundAvgA + ") of donor after bleaching. (\u03B1 calc.)");
@@ -553,69 +518,23 @@ public class AlphaDialog extends JDialog implements ActionListener {
                         mainWindow.logError("Acceptor channel image is not given. (\u03B1 calc.)");
                         return;
                     }
-                    double sumDD = 0;
-                    int countDD = 0;
-                    ImageProcessor ipDD = ddImage.getStack().getProcessor(ddImage.getCurrentSlice());
-                    for (int i = 0; i < ddImage.getWidth(); i++) {
-                        for (int j = 0; j < ddImage.getHeight(); j++) {
-                            if (!Float.isNaN(ipDD.getPixelValue(i, j))) {
-                                sumDD += ipDD.getPixelValue(i, j);
-                                countDD++;
-                            }
-                        }
-                    }
-                    float avgDD = (float) (sumDD / countDD);
-                    double sumDT = 0;
-                    int countDT = 0;
-                    ImageProcessor ipDT = dtImage.getStack().getProcessor(dtImage.getCurrentSlice());
-                    for (int i = 0; i < dtImage.getWidth(); i++) {
-                        for (int j = 0; j < dtImage.getHeight(); j++) {
-                            if (!Float.isNaN(ipDT.getPixelValue(i, j))) {
-                                sumDT += ipDT.getPixelValue(i, j);
-                                countDT++;
-                            }
-                        }
-                    }
-                    float avgDT = (float) (sumDT / countDT);
-                    double sumAA = 0;
-                    int countAA = 0;
-                    ImageProcessor ipAA = aaImage.getStack().getProcessor(aaImage.getCurrentSlice());
-                    for (int i = 0; i < aaImage.getWidth(); i++) {
-                        for (int j = 0; j < aaImage.getHeight(); j++) {
-                            if (!Float.isNaN(ipAA.getPixelValue(i, j))) {
-                                sumAA += ipAA.getPixelValue(i, j);
-                                countAA++;
-                            }
-                        }
+                    float[] ddPixels = ChannelStatistics.getPixels(ddImage.getStack().getProcessor(ddImage.getCurrentSlice()));
+                    float[] dtPixels = ChannelStatistics.getPixels(dtImage.getStack().getProcessor(dtImage.getCurrentSlice()));
+                    float[] aaPixels = ChannelStatistics.getPixels(aaImage.getStack().getProcessor(aaImage.getCurrentSlice()));
+                    ChannelStatistics[] statistics;
+                    if (!setEblManually.isSelected()) {
+                        statistics = ChannelStatistics.calculate(ddPixels, dtPixels, aaPixels,
+                                ChannelStatistics.getPixels(donorBeforeImg.getProcessor()), ChannelStatistics.getPixels(donorAfterImg.getProcessor()));
+                    } else {
+                        statistics = ChannelStatistics.calculate(ddPixels, dtPixels, aaPixels);
                     }
-                    float avgAA = (float) (sumAA / countAA);
+                    float avgDD = (float) statistics[0].getMean();
+                    float avgDT = (float) statistics[1].getMean();
+                    float avgAA = (float) statistics[2].getMean();
                     float ebl = 0;
                     if (!setEblManually.isSelected()) {
-                        double sumDBefore = 0;
-                        int countDBefore = 0;
-                        ImageProcessor ipDBefore = donorBeforeImg.getProcessor();
-                        for (int i = 0; i < donorBeforeImg.getWidth(); i++) {
-                            for (int j = 0; j < donorBeforeImg.getHeight(); j++) {
-                                if (!Float.isNaN(ipDBefore.getPixelValue(i, j))) {
-                                    sumDBefore += ipDBefore.getPixelValue(i, j);
-                                    countDBefore++;
-                                }
-                            }
-                        }
-                        float avgDBefore = (float) (sumDBefore / countDBefore);
-
-                        double sumDAfter = 0;
-                        int countDAfter = 0;
-                        ImageProcessor ipDAfter = donorAfterImg.getProcessor();
-                        for (int i = 0; i < donorAfterImg.getWidth(); i++) {
-                            for (int j = 0; j < donorAfterImg.getHeight(); j++) {
-                                if (!Float.isNaN(ipDAfter.getPixelValue(i, j))) {
-                                    sumDAfter += ipDAfter.getPixelValue(i, j);
-                                    countDAfter++;
-                                }
-                            }
-                        }
-                        float avgDAfter = (float) (sumDAfter / countDAfter);
+                        float avgDBefore = (float) statistics[3].getMean();
+                        float avgDAfter = (float) statistics[4].getMean();
 
                         ebl = (float) (((double) avgDAfter - (((double) avgDBefore - (double) s4 * (double) avgDT) / ((double) 1 - (double) s1 * (double) s4))) / (double) avgDAfter);
                         eBlField.setText(df.format(ebl));
@@ -110,6 +110,9 @@ public class ApplyMaskRiDialog extends JDialog implements ActionListener {
 
     @Override
     public void actionPerformed(ActionEvent e) {
+        if (mainWindow.isTaskRunning()) {
+            return;
+        }
         try {
             switch (e.getActionCommand()) {
                 case "setImageToMask":
@@ -170,21 +173,19 @@ public class ApplyMaskRiDialog extends JDialog implements ActionListener {
                     float[] ipMP = (float[]) ipM.getPixels();
                     int width = ipTM.getWidth();
                     int height = ipTM.getHeight();
-                    float[][] img1Points = new float[width][height];
-                    float[][] img2Points = new float[width][height];
-                    for (int i = 0; i < width; i++) {
-                        for (int j = 0; j < height; j++) {
-                            if (!Float.isNaN(ipMP[width * j + i])) {
-                                img1Points[i][j] = ipTMP[width * j + i];
-                                img2Points[i][j] = Float.NaN;
-                            } else {
-                                img1Points[i][j] = Float.NaN;
-                                img2Points[i][j] = ipTMP[width * j + i];
-                            }
+                    float[] img1Points = new float[width * height];
+                    float[] img2Points = new float[width * height];
+                    for (int i = 0; i < img1Points.length; i++) {
+                        if (!Float.isNaN(ipMP[i])) {
+                            img1Points[i] = ipTMP[i];
+                            img2Points[i] = Float.NaN;
+                        } else {
+                            img1Points[i] = Float.NaN;
+                            img2Points[i] = ipTMP[i];
                         }
                     }
-                    FloatProcessor fp1 = new FloatProcessor(img1Points);
-                    FloatProcessor fp2 = new FloatProcessor(img2Points);
+                    FloatProcessor fp1 = new FloatProcessor(width, height, img1Points);
+                    FloatProcessor fp2 = new FloatProcessor(width, height, img2Points);
                     ImagePlus img2 = new ImagePlus("Masked image 2 (pixels outside the mask)", fp2);
                     img2.show();
                     ImagePlus img1 = new ImagePlus("Masked image 1 (pixels in the mask)", fp1);
@@ -353,6 +353,9 @@ public class B1B2B3Dialog extends JDialog implements ActionListener {
 
     @Override
     public void actionPerformed(ActionEvent e) {
+        if (mainWindow.isTaskRunning()) {
+            return;
+        }
         try {
             switch (e.getActionCommand()) {
                 case "reset":
@@ -512,16 +515,8 @@ public class B1B2B3Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipD = donorImg.getProcessor();
-                        int width = donorImg.getWidth();
-                        int height = donorImg.getHeight();
                         donorImgSave = new ImageStack(ipD.getWidth(), ipD.getHeight());
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipD.getPixelValue(x, y);
-                                value -= autofl;
-                                ipD.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipD, autofl);
                         FloatProcessor flp = new FloatProcessor(ipD.getWidth(), ipD.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipD.duplicate());
                         donorImgSave.addSlice("" + 1, flp);
@@ -538,28 +533,10 @@ public class B1B2B3Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipD = donorImg.getProcessor();
-                        int width = donorImg.getWidth();
-                        int height = donorImg.getHeight();
                         donorImgSave = new ImageStack(ipD.getWidth(), ipD.getHeight());
-                        double sum = 0;
-                        int count = 0;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                if (donorImg.getRoi().contains(i, j)) {
-                                    sum += ipD.getPixelValue(i, j);
-                                    count++;
-                                }
-                            }
-                        }
-                        float backgroundAvgD = (float) (sum / count);
+                        float backgroundAvgD = (float) RoiStatistics.getMean(ipD, donorImg.getRoi());
                         backgroundAvgD += autofl;
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipD.getPixelValue(x, y);
-                                value -= backgroundAvgD;
-                                ipD.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipD, backgroundAvgD);
                         FloatProcessor flp = new FloatProcessor(ipD.getWidth(), ipD.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipD.duplicate());
                         donorImgSave.addSlice("" + 1, flp);
@@ -588,16 +565,8 @@ public class B1B2B3Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipT = transferImg.getProcessor();
-                        int width = transferImg.getWidth();
-                        int height = transferImg.getHeight();
                         transferImgSave = new ImageStack(ipT.getWidth(), ipT.getHeight());
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipT.getPixelValue(x, y);
-                                value -= autofl;
-                                ipT.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipT, autofl);
                         FloatProcessor flp = new FloatProcessor(ipT.getWidth(), ipT.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipT.duplicate());
                         transferImgSave.addSlice("" + 1, flp);
@@ -614,28 +583,10 @@ public class B1B2B3Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipT = transferImg.getProcessor();
-                        int width = transferImg.getWidth();
-                        int height = transferImg.getHeight();
                         transferImgSave = new ImageStack(ipT.getWidth(), ipT.getHeight());
-                        double sum = 0;
-                        int count = 0;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                if (transferImg.getRoi().contains(i, j)) {
-                                    sum += ipT.getPixelValue(i, j);
-                                    count++;
-                                }
-                            }
-                        }
-                        float backgroundAvgT = (float) (sum / count);
+                        float backgroundAvgT = (float) RoiStatistics.getMean(ipT, transferImg.getRoi());
                         backgroundAvgT += autofl;
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipT.getPixelValue(x, y);
-                                value -= backgroundAvgT;
-                                ipT.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipT, backgroundAvgT);
                         FloatProcessor flp = new FloatProcessor(ipT.getWidth(), ipT.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipT.duplicate());
                         transferImgSave.addSlice("" + 1, flp);
@@ -664,16 +615,8 @@ public class B1B2B3Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipA = acceptorImg.getProcessor();
-                        int width = acceptorImg.getWidth();
-                        int height = acceptorImg.getHeight();
                         acceptorImgSave = new ImageStack(ipA.getWidth(), ipA.getHeight());
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipA.getPixelValue(x, y);
-                                value -= autofl;
-                                ipA.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipA, autofl);
                         FloatProcessor flp = new FloatProcessor(ipA.getWidth(), ipA.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipA.duplicate());
                         acceptorImgSave.addSlice("" + 1, flp);
@@ -690,28 +633,10 @@ public class B1B2B3Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipA = acceptorImg.getProcessor();
-                        int width = acceptorImg.getWidth();
-                        int height = acceptorImg.getHeight();
                         acceptorImgSave = new ImageStack(ipA.getWidth(), ipA.getHeight());
-                        double sum = 0;
-                        int count = 0;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                if (acceptorImg.getRoi().contains(i, j)) {
-                                    sum += ipA.getPixelValue(i, j);
-                                    count++;
-                                }
-                            }
-                        }
-                        float backgroundAvgA = (float) (sum / count);
+                        float backgroundAvgA = (float) RoiStatistics.getMean(ipA, acceptorImg.getRoi());
                         backgroundAvgA += autofl;
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipA.getPixelValue(x, y);
-                                value -= backgroundAvgA;
-                                ipA.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipA, backgroundAvgA);
                         FloatProcessor flp = new FloatProcessor(ipA.getWidth(), ipA.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipA.duplicate());
                         acceptorImgSave.addSlice("" + 1, flp);
@@ -740,16 +665,8 @@ public class B1B2B3Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipAF = autofluorescenceImg.getProcessor();
-                        int width = autofluorescenceImg.getWidth();
-                        int height = autofluorescenceImg.getHeight();
                         autofluorescenceImgSave = new ImageStack(ipAF.getWidth(), ipAF.getHeight());
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipAF.getPixelValue(x, y);
-                                value -= autofl;
-                                ipAF.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipAF, autofl);
                         FloatProcessor flp = new FloatProcessor(ipAF.getWidth(), ipAF.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipAF.duplicate());
                         autofluorescenceImgSave.addSlice("" + 1, flp);
@@ -766,28 +683,10 @@ public class B1B2B3Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipAF = autofluorescenceImg.getProcessor();
-                        int width = autofluorescenceImg.getWidth();
-                        int height = autofluorescenceImg.getHeight();
                         autofluorescenceImgSave = new ImageStack(ipAF.getWidth(), ipAF.getHeight());
-                        double sum = 0;
-                        int count = 0;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                if (autofluorescenceImg.getRoi().contains(i, j)) {
-                                    sum += ipAF.getPixelValue(i, j);
-                                    count++;
-                                }
-                            }
-                        }
-                        float backgroundAvgAF = (float) (sum / count);
+                        float backgroundAvgAF = (float) RoiStatistics.getMean(ipAF, autofluorescenceImg.getRoi());
                         backgroundAvgAF += autofl;
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipAF.getPixelValue(x, y);
-                                value -= backgroundAvgAF;
-                                ipAF.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipAF, backgroundAvgAF);
                         FloatProcessor flp = new FloatProcessor(ipAF.getWidth(), ipAF.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipAF.duplicate());
                         autofluorescenceImgSave.addSlice("" + 1, flp);
@@ -940,66 +839,39 @@ public class B1B2B3Dialog extends JDialog implements ActionListener {
                         mainWindow.logError("No image is set as autofluorescence channel. (B1/B2/B3 calc.)");
                     } else {
                         DecimalFormat df = new DecimalFormat("#.###");
-                        ImageProcessor ipDP = donorImg.getProcessor();
-                        ImageProcessor ipTP = transferImg.getProcessor();
-                        ImageProcessor ipAP = acceptorImg.getProcessor();
-                        ImageProcessor ipAFP = autofluorescenceImg.getProcessor();
-                        double b1c = 0;
-                        double b2c = 0;
-                        double b3c = 0;
-                        double countc = 0;
-                        float[][] imgB1Points = null;
-                        float[][] imgB2Points = null;
-                        float[][] imgB3Points = null;
-                        int width = ipDP.getWidth();
-                        int height = ipDP.getHeight();
-                        if (showBImagesCB.isSelected()) {
-                            imgB1Points = new float[width][height];
-                            imgB2Points = new float[width][height];
-                            imgB3Points = new float[width][height];
-                        }
-                        float currentB1 = 0;
-                        float currentB2 = 0;
-                        float currentB3 = 0;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                currentB1 = ipDP.getPixelValue(i, j) / ipAFP.getPixelValue(i, j);
-                                currentB2 = ipTP.getPixelValue(i, j) / ipAFP.getPixelValue(i, j);
-                                currentB3 = ipAP.getPixelValue(i, j) / ipAFP.getPixelValue(i, j);
-                                if (!Float.isNaN(currentB1) && !Float.isNaN(currentB2) && !Float.isNaN(currentB3)) {
-                                    b1c += currentB1;
-                                    b2c += currentB2;
-                                    b3c += currentB3;
-                                    countc++;
-                                }
+                        int width = autofluorescenceImg.getWidth();
+                        int height = autofluorescenceImg.getHeight();
+                        RatioCalculator ratioCalculator = new RatioCalculator(3, mainWindow.getFactorEstimator());
+                        boolean bootstrap = mainWindow.isBootstrap();
+                        ratioCalculator.setBootstrap(bootstrap);
+                        float[] denominator = (float[]) autofluorescenceImg.getProcessor().getPixels();
+                        float[][] numerators = {(float[]) donorImg.getProcessor().getPixels(), (float[]) transferImg.getProcessor().getPixels(), (float[]) acceptorImg.getProcessor().getPixels()};
+                        mainWindow.runTask("B1/B2/B3 calculation", task -> {
+                            ratioCalculator.add(denominator, numerators, width);
+                            if (bootstrap) {
+                                task.checkCancelled();
+                                mainWindow.logConfidenceIntervals(ratioCalculator, new String[]{"B1", "B2", "B3"}, "B1/B2/B3 calc.");
+                            }
+                            return () -> {
                                 if (showBImagesCB.isSelected()) {
-                                    imgB1Points[i][j] = currentB1;
-                                    imgB2Points[i][j] = currentB2;
-                                    imgB3Points[i][j] = currentB3;
+                                    ImagePlus b1b2b3Img = new ImagePlus("B1/B2/B3 images (live)", new RatioStack(width, height, denominator, numerators, new String[]{"B1", "B2", "B3"}));
+                                    b1b2b3Img.show();
                                 }
-                            }
-                        }
-                        if (showBImagesCB.isSelected()) {
-                            ImagePlus b1Img = new ImagePlus("B1 image", new FloatProcessor(imgB1Points));
-                            b1Img.show();
-                            ImagePlus b2Img = new ImagePlus("B2 image", new FloatProcessor(imgB2Points));
-                            b2Img.show();
-                            ImagePlus b3Img = new ImagePlus("B3 image", new FloatProcessor(imgB3Points));
-                            b3Img.show();
-                        }
-                        float avgB1 = (float) (b1c / countc);
-                        float avgB2 = (float) (b2c / countc);
-                        float avgB3 = (float) (b3c / countc);
-                        b1ResultLabel.setText(df.format(avgB1));
-                        b2ResultLabel.setText(df.format(avgB2));
-                        b3ResultLabel.setText(df.format(avgB3));
-                        calculateButton.setBackground(mainWindow.greenColor);
-                        calculateButton.setOpaque(true);
-                        calculateButton.setBorderPainted(false);
-                        donorImg.changes = false;
-                        transferImg.changes = false;
-                        acceptorImg.changes = false;
-                        autofluorescenceImg.changes = false;
+                                float avgB1 = (float) ratioCalculator.getFactor(0);
+                                float avgB2 = (float) ratioCalculator.getFactor(1);
+                                float avgB3 = (float) ratioCalculator.getFactor(2);
+                                b1ResultLabel.setText(df.format(avgB1));
+                                b2ResultLabel.setText(df.format(avgB2));
+                                b3ResultLabel.setText(df.format(avgB3));
+                                calculateButton.setBackground(mainWindow.greenColor);
+                                calculateButton.setOpaque(true);
+                                calculateButton.setBorderPainted(false);
+                                donorImg.changes = false;
+                                transferImg.changes = false;
+                                acceptorImg.changes = false;
+                                autofluorescenceImg.changes = false;
+                            };
+                        });
                     }
                     break;
                 case "setfactor":
@@ -1052,6 +924,8 @@ public class B1B2B3Dialog extends JDialog implements ActionListener {
             }
         } catch (NumberFormatException t) {
             mainWindow.logException(t.toString(), t);
+        } catch (IllegalArgumentException ex) {
+            mainWindow.logError(ex.getMessage() + " (B1/B2/B3 calc.)");
         }
     }
 }
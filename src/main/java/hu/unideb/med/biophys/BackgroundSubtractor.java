@@ -0,0 +1,62 @@
+/*-
+ * #%L
+ * an ImageJ plugin for intensity-based three-filter set FRET.
+ * %%
+ * Copyright (C) 2009 - 2023 RiFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.util.stream.IntStream;
+
+/**
+ * Subtracts background from 32-bit images in place. It works directly on the
+ * row-major pixel arrays instead of reading and writing the pixels one by one
+ * through the image processor.
+ */
+public class BackgroundSubtractor {
+
+    private BackgroundSubtractor() {
+    }
+
+    /**
+     * Subtracts the background from every pixel. NaN pixels stay NaN.
+     */
+    public static void subtract(float[] pixels, float background) {
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] -= background;
+        }
+    }
+
+    /**
+     * Subtracts the background from a 32-bit image.
+     */
+    public static void subtract(ImageProcessor ip, float background) {
+        subtract((float[]) ip.getPixels(), background);
+    }
+
+    /**
+     * Subtracts backgrounds[n - 1] from slice n of a 32-bit stack. The slices
+     * are processed in parallel.
+     */
+    public static void subtract(ImageStack stack, float[] backgrounds) {
+        IntStream.range(0, stack.getSize()).parallel().forEach(n -> subtract((float[]) stack.getPixels(n + 1), backgrounds[n]));
+    }
+}
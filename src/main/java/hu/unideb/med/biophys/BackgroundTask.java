@@ -0,0 +1,127 @@
+/*-
+ * #%L
+ * an ImageJ plugin for intensity-based three-filter set FRET.
+ * %%
+ * Copyright (C) 2009 - 2023 RiFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+
+/**
+ * Runs a long operation of the main window on a worker thread, so the window
+ * stays responsive. The operation returns the update of the window (button
+ * colors, new images), which is run on the event dispatch thread when the
+ * operation has finished. The update is skipped if the task is cancelled.
+ */
+class BackgroundTask extends SwingWorker<Runnable, Void> {
+
+    interface Operation {
+
+        Runnable run(BackgroundTask task) throws Exception;
+    }
+
+    private final RiFRET_Plugin mainWindow;
+    private final String name;
+    private final Operation operation;
+    private volatile boolean finished;
+    private volatile String cancelledWarning;
+
+    BackgroundTask(RiFRET_Plugin mainWindow, String name, Operation operation) {
+        this.mainWindow = mainWindow;
+        this.name = name;
+        this.operation = operation;
+    }
+
+    /**
+     * Reports the progress of the operation as the number of finished steps.
+     */
+    void setProgress(int done, int total) {
+        setProgress(total > 0 ? Math.min(100, 100 * done / total) : 0);
+    }
+
+    /**
+     * Throws InterruptedException if the task has been cancelled. Operations
+     * call it between their steps.
+     */
+    void checkCancelled() throws InterruptedException {
+        if (isCancelled() || Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    /**
+     * Sets a warning that is logged if the task is cancelled from now on, for
+     * operations that start to modify images which cannot be restored.
+     */
+    void setCancelledWarning(String warning) {
+        cancelledWarning = warning;
+    }
+
+    /**
+     * Whether the worker thread has stopped. A cancelled task is done as soon
+     * as it is cancelled, but it is only finished when the current step of
+     * the operation has returned.
+     */
+    boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    protected Runnable doInBackground() throws Exception {
+        try {
+            return operation.run(this);
+        } finally {
+            finished = true;
+            SwingUtilities.invokeLater(mainWindow::taskFinished);
+        }
+    }
+
+    @Override
+    protected void done() {
+        if (isCancelled()) {
+            logCancelled();
+            return;
+        }
+        try {
+            Runnable update = get();
+            if (update != null) {
+                update.run();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof InterruptedException) {
+                logCancelled();
+            } else {
+                mainWindow.logException(cause.toString(), cause);
+            }
+        }
+    }
+
+    private void logCancelled() {
+        mainWindow.logWarning(name + " has been cancelled.");
+        if (cancelledWarning != null) {
+            mainWindow.logWarning(cancelledWarning);
+        }
+    }
+}
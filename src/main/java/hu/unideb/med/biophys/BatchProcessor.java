@@ -0,0 +1,336 @@
+/*-
+ * #%L
+ * an ImageJ plugin for intensity-based three-filter set FRET.
+ * %%
+ * Copyright (C) 2009 - 2023 RiFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.io.Opener;
+import ij.measure.Calibration;
+import ij.measure.Measurements;
+import ij.measure.ResultsTable;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Processes image files with a FRET pipeline, several files at a time. The
+ * files are opened as private images, so no image window is involved. The
+ * FRET image of every file is saved to the output directory and the results
+ * are reported in the order of the input files.
+ */
+public class BatchProcessor {
+
+    private final FretPipeline fretPipeline;
+    private final int donorSlice;
+    private final int transferSlice;
+    private final int acceptorSlice;
+    private final int autofluorescenceSlice;
+    private final int nThreads;
+    private final DateTimeFormatter timeStampFormat = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+    private boolean saveCorrectedImages;
+    private RegistrationCache.Offsets registrationOffsets;
+
+    /**
+     * Creates a batch processor. The slices are the 1-based positions of the
+     * channels in the image files; the autofluorescence slice is only used
+     * with autofluorescence correction.
+     */
+    public BatchProcessor(FretPipeline fretPipeline, int donorSlice, int transferSlice, int acceptorSlice, int autofluorescenceSlice, int nThreads) {
+        this.fretPipeline = fretPipeline;
+        this.donorSlice = donorSlice;
+        this.transferSlice = transferSlice;
+        this.acceptorSlice = acceptorSlice;
+        this.autofluorescenceSlice = autofluorescenceSlice;
+        this.nThreads = nThreads;
+    }
+
+    /**
+     * Corrected donor and acceptor images are saved together with the FRET
+     * image if autofluorescence correction is used.
+     */
+    public void setSaveCorrectedImages(boolean saveCorrectedImages) {
+        this.saveCorrectedImages = saveCorrectedImages;
+    }
+
+    /**
+     * The transfer and acceptor channels of every file are shifted by the
+     * given offsets before processing. Files of a different size fail.
+     */
+    public void setRegistrationOffsets(RegistrationCache.Offsets registrationOffsets) {
+        this.registrationOffsets = registrationOffsets;
+    }
+
+    /**
+     * Finds the registration offsets of the transfer and acceptor channels of
+     * a file, to be used for the other files taken with the same setup.
+     */
+    public RegistrationCache.Offsets findRegistrationOffsets(File file) throws IOException {
+        ImagePlus image = new Opener().openImage(file.getAbsolutePath());
+        if (image == null) {
+            throw new IOException("Could not open file.");
+        }
+        int nSlices = image.getStackSize();
+        if (donorSlice > nSlices || transferSlice > nSlices || acceptorSlice > nSlices) {
+            throw new IOException("The file has only " + nSlices + " slices.");
+        }
+        ImageProcessor donor = getChannel(image, donorSlice).getProcessor(1);
+        ChannelRegistration registration = new ChannelRegistration(donor);
+        return new RegistrationCache.Offsets(donor.getWidth(), donor.getHeight(),
+                registration.findShift(getChannel(image, transferSlice).getProcessor(1)),
+                registration.findShift(getChannel(image, acceptorSlice).getProcessor(1)));
+    }
+
+    /**
+     * Lists the LSM, CZI and TIF files of a directory in name order.
+     */
+    public static File[] listImageFiles(File directory) {
+        File[] files = directory.listFiles(file -> file.isFile() && isImageFile(file.getName()));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static boolean isImageFile(String name) {
+        String lowerCaseName = name.toLowerCase();
+        return lowerCaseName.endsWith(".lsm") || lowerCaseName.endsWith(".czi") || lowerCaseName.endsWith(".tif");
+    }
+
+    /**
+     * Processes the files and saves the FRET images to the output path. At
+     * most as many files are processed (and kept in memory) at the same time
+     * as the number of threads. The listener is called from the calling
+     * thread with the result of every file, in the order of the files.
+     */
+    public List<FileResult> process(File[] files, String outputPath, Consumer<FileResult> listener) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            List<Future<FileResult>> futures = new ArrayList<>();
+            for (File file : files) {
+                futures.add(executor.submit(() -> processFile(file, outputPath)));
+            }
+            List<FileResult> results = new ArrayList<>();
+            for (int i = 0; i < files.length; i++) {
+                FileResult result;
+                try {
+                    result = futures.get(i).get();
+                } catch (ExecutionException ex) {
+                    result = new FileResult(files[i], ex.getCause().toString());
+                }
+                results.add(result);
+                if (listener != null) {
+                    listener.accept(result);
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private FileResult processFile(File file, String outputPath) {
+        try {
+            ImagePlus image = new Opener().openImage(file.getAbsolutePath());
+            if (image == null) {
+                return new FileResult(file, "Could not open file.");
+            }
+            ImageStack donor = getChannel(image, donorSlice);
+            ImageStack transfer = getChannel(image, transferSlice);
+            ImageStack acceptor = getChannel(image, acceptorSlice);
+            ImageStack autofluorescence = fretPipeline.getFretCalculator().isAutofluorescenceCorrection() ? getChannel(image, autofluorescenceSlice) : null;
+            if (registrationOffsets != null) {
+                if (donor.getWidth() != registrationOffsets.getWidth() || donor.getHeight() != registrationOffsets.getHeight()) {
+                    return new FileResult(file, "Image size differs from the size of the registration offsets.");
+                }
+                double[] transferShift = registrationOffsets.getTransferShift();
+                double[] acceptorShift = registrationOffsets.getAcceptorShift();
+                ChannelRegistration.shift(transfer.getProcessor(1), transferShift[0], transferShift[1], Float.NaN);
+                ChannelRegistration.shift(acceptor.getProcessor(1), acceptorShift[0], acceptorShift[1], Float.NaN);
+            }
+            ImageStack fretStack = fretPipeline.run(donor, transfer, acceptor, autofluorescence);
+            FloatProcessor fretProcessor = (FloatProcessor) fretStack.getProcessor(1);
+
+            String title = "FRET image - " + timeStampFormat.format(OffsetDateTime.now());
+            ImagePlus fretImage;
+            if (saveCorrectedImages && autofluorescence != null) {
+                FretCalculator fretCalculator = fretPipeline.getFretCalculator();
+                float[] efficiency = (float[]) fretProcessor.getPixels();
+                float[] donorPixels = (float[]) donor.getPixels(1);
+                float[] autofluorescencePixels = (float[]) autofluorescence.getPixels(1);
+                int width = fretStack.getWidth();
+                int height = fretStack.getHeight();
+                ImageStack correctedStack = new ImageStack(width, height);
+                correctedStack.addSlice("FRET image", fretProcessor);
+                correctedStack.addSlice("Corrected Donor Image", new FloatProcessor(width, height, fretCalculator.calculateCorrectedDonor(efficiency, donorPixels, autofluorescencePixels)));
+                correctedStack.addSlice("Corrected Acceptor Image", new FloatProcessor(width, height, fretCalculator.calculateCorrectedAcceptor(donorPixels, (float[]) acceptor.getPixels(1), autofluorescencePixels)));
+                fretImage = new ImagePlus(title, correctedStack);
+            } else {
+                fretImage = new ImagePlus(title, fretProcessor);
+            }
+            Calibration calibration = image.getCalibration().copy();
+            calibration.disableDensityCalibration();
+            fretImage.setCalibration(calibration);
+            if (!new FileSaver(fretImage).saveAsTiff(outputPath + file.getName() + " " + title + ".tif")) {
+                return new FileResult(file, "Could not save FRET image.");
+            }
+            return new FileResult(file, fretProcessor);
+        } catch (Exception ex) {
+            return new FileResult(file, ex.toString());
+        }
+    }
+
+    private static ImageStack getChannel(ImagePlus image, int slice) {
+        ImageProcessor ip = image.getStack().getProcessor(slice);
+        ip.setCalibrationTable(image.getCalibration().getCTable());
+        ImageStack channel = new ImageStack(ip.getWidth(), ip.getHeight());
+        channel.addSlice("" + slice, ip.convertToFloatProcessor());
+        return channel;
+    }
+
+    /**
+     * Creates a results table with one row for every successfully processed
+     * file.
+     */
+    public static ResultsTable createResultsTable(List<FileResult> results) {
+        ResultsTable resultsTable = new ResultsTable();
+        resultsTable.setPrecision(3);
+        for (FileResult result : results) {
+            if (!result.isProcessed()) {
+                continue;
+            }
+            resultsTable.incrementCounter();
+            resultsTable.addValue("File", result.getFile().getName());
+            resultsTable.addValue("Pixels", result.getPixels());
+            resultsTable.addValue("Not NaN p.", result.getNotNanPixels());
+            resultsTable.addValue("Mean", (float) result.getMean());
+            resultsTable.addValue("Median", (float) result.getMedian());
+            resultsTable.addValue("Std. dev.", (float) result.getStdDev());
+            resultsTable.addValue("Min", (float) result.getMin());
+            resultsTable.addValue("Max", (float) result.getMax());
+        }
+        return resultsTable;
+    }
+
+    /**
+     * Outcome of processing a file: the statistics of its FRET image, or the
+     * reason it failed.
+     */
+    public static class FileResult {
+
+        private final File file;
+        private final String error;
+        private final int pixels;
+        private final int notNanPixels;
+        private final double mean;
+        private final double median;
+        private final double stdDev;
+        private final double min;
+        private final double max;
+
+        FileResult(File file, String error) {
+            this.file = file;
+            this.error = error;
+            pixels = 0;
+            notNanPixels = 0;
+            mean = Double.NaN;
+            median = Double.NaN;
+            stdDev = Double.NaN;
+            min = Double.NaN;
+            max = Double.NaN;
+        }
+
+        FileResult(File file, FloatProcessor fretProcessor) {
+            this.file = file;
+            error = null;
+            float[] efficiency = (float[]) fretProcessor.getPixels();
+            int notNan = 0;
+            for (float value : efficiency) {
+                if (!Float.isNaN(value)) {
+                    notNan++;
+                }
+            }
+            pixels = efficiency.length;
+            notNanPixels = notNan;
+            ImageStatistics statistics = ImageStatistics.getStatistics(fretProcessor, Measurements.MEAN | Measurements.MEDIAN | Measurements.STD_DEV | Measurements.MIN_MAX, null);
+            mean = statistics.mean;
+            median = statistics.median;
+            stdDev = statistics.stdDev;
+            min = statistics.min;
+            max = statistics.max;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public boolean isProcessed() {
+            return error == null;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public int getPixels() {
+            return pixels;
+        }
+
+        public int getNotNanPixels() {
+            return notNanPixels;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getMedian() {
+            return median;
+        }
+
+        public double getStdDev() {
+            return stdDev;
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public double getMax() {
+            return max;
+        }
+    }
+}
@@ -119,6 +119,9 @@ public class CalculateRatioDialog extends JDialog implements ActionListener {
 
     @Override
     public void actionPerformed(ActionEvent e) {
+        if (mainWindow.isTaskRunning()) {
+            return;
+        }
         try {
             switch (e.getActionCommand()) {
                 case "setFirstImage":
@@ -202,13 +205,11 @@ public class CalculateRatioDialog extends JDialog implements ActionListener {
                     float[] ip2P = (float[]) ip2.getPixels();
                     int width = ip1.getWidth();
                     int height = ip1.getHeight();
-                    float[][] ratioImgPoints = new float[width][height];
-                    for (int i = 0; i < width; i++) {
-                        for (int j = 0; j < height; j++) {
-                            ratioImgPoints[i][j] = ip1P[width * j + i] / ip2P[width * j + i];
-                        }
+                    float[] ratioImgPoints = new float[width * height];
+                    for (int i = 0; i < ratioImgPoints.length; i++) {
+                        ratioImgPoints[i] = ip1P[i] / ip2P[i];
                     }
-                    FloatProcessor fp = new FloatProcessor(ratioImgPoints);
+                    FloatProcessor fp = new FloatProcessor(width, height, ratioImgPoints);
                     ImagePlus ratioImg = new ImagePlus("Ratio of images", fp);
                     ratioImg.show();
                     break;
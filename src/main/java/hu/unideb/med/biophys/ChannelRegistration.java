@@ -0,0 +1,248 @@
+/*-
+ * #%L
+ * an ImageJ plugin for intensity-based three-filter set FRET.
+ * %%
+ * Copyright (C) 2009 - 2023 RiFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.ImageStack;
+import ij.process.FHT;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.stream.IntStream;
+
+/**
+ * Registers channel images to a reference image (the donor channel) with
+ * normalized phase correlation. The Hartley transform of the reference is
+ * computed once, so every further image needs one forward and one inverse
+ * transform. The peak of the correlation is located with sub-pixel accuracy
+ * and the image is shifted in a single step, with bilinear interpolation.
+ */
+public class ChannelRegistration {
+
+    private static final float REGULARIZATION = 1e-3f;
+
+    private final int width;
+    private final int height;
+    // Size of the transforms: the smallest power of 2 the images fit in.
+    private final int size;
+    private final FHT reference;
+    private final float[] referenceMagnitude;
+
+    public ChannelRegistration(ImageProcessor reference) {
+        width = reference.getWidth();
+        height = reference.getHeight();
+        int n = 2;
+        while (n < Math.max(width, height)) {
+            n *= 2;
+        }
+        size = n;
+        this.reference = transform(reference);
+        referenceMagnitude = getMagnitude((float[]) this.reference.getPixels());
+    }
+
+    /**
+     * Returns the shift {dx, dy} in pixels that moves the image onto the
+     * reference; positive values shift right and down.
+     */
+    public double[] findShift(ImageProcessor ip) {
+        if (ip.getWidth() != width || ip.getHeight() != height) {
+            throw new IllegalArgumentException("Image size differs from the size of the reference image.");
+        }
+        FHT fht = transform(ip);
+        float[] magnitude = getMagnitude((float[]) fht.getPixels());
+        FHT correlation = reference.conjugateMultiply(fht);
+        float[] pixels = (float[]) correlation.getPixels();
+        // Normalized cross-power spectrum. The regularization keeps the
+        // frequencies without signal, where the phase is only noise, from
+        // dominating the correlation of smooth fluorescence images.
+        float maxProduct = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            maxProduct = Math.max(maxProduct, referenceMagnitude[i] * magnitude[i]);
+        }
+        float epsilon = REGULARIZATION * maxProduct;
+        for (int i = 0; i < pixels.length; i++) {
+            float product = referenceMagnitude[i] * magnitude[i] + epsilon;
+            pixels[i] = product > 0 ? pixels[i] / product : 0;
+        }
+        correlation.setShowProgress(false);
+        correlation.inverseTransform();
+        pixels = (float[]) correlation.getPixels();
+
+        int peak = 0;
+        for (int i = 1; i < pixels.length; i++) {
+            if (pixels[i] > pixels[peak]) {
+                peak = i;
+            }
+        }
+        int peakX = peak % size;
+        int peakY = peak / size;
+        double dx = peakX + getPeakOffset(pixels[peakY * size + (peakX + size - 1) % size], pixels[peak], pixels[peakY * size + (peakX + 1) % size]);
+        double dy = peakY + getPeakOffset(pixels[(peakY + size - 1) % size * size + peakX], pixels[peak], pixels[(peakY + 1) % size * size + peakX]);
+        return new double[]{dx > size / 2 ? dx - size : dx, dy > size / 2 ? dy - size : dy};
+    }
+
+    /**
+     * Finds the shift of every slice of the stacks to the same slice of the
+     * reference stack; shifts[k][n - 1] is the shift of slice n of stack k.
+     * The transform of each reference slice is computed once for all stacks.
+     * The slices are registered in parallel.
+     */
+    public static double[][][] findShifts(ImageStack reference, ImageStack... stacks) {
+        double[][][] shifts = new double[stacks.length][reference.getSize()][];
+        IntStream.range(0, reference.getSize()).parallel().forEach(n -> {
+            ChannelRegistration registration = new ChannelRegistration(reference.getProcessor(n + 1));
+            for (int k = 0; k < stacks.length; k++) {
+                shifts[k][n] = registration.findShift(stacks[k].getProcessor(n + 1));
+            }
+        });
+        return shifts;
+    }
+
+    /**
+     * Finds the drift of every slice of the stack relative to the reference
+     * slice, e.g. between the time points of a time-lapse series.
+     */
+    public static double[][] findDrift(ImageStack stack, int referenceSlice) {
+        ChannelRegistration registration = new ChannelRegistration(stack.getProcessor(referenceSlice));
+        double[][] shifts = new double[stack.getSize()][];
+        IntStream.range(0, shifts.length).parallel().forEach(n
+                -> shifts[n] = n + 1 == referenceSlice ? new double[2] : registration.findShift(stack.getProcessor(n + 1)));
+        return shifts;
+    }
+
+    /**
+     * Shifts slice n of a 32-bit stack by shifts[n - 1] in place. The slices
+     * are shifted in parallel.
+     */
+    public static void shift(ImageStack stack, double[][] shifts, float fill) {
+        IntStream.range(0, shifts.length).parallel().forEach(n -> {
+            if (shifts[n][0] != 0 || shifts[n][1] != 0) {
+                shift(stack.getProcessor(n + 1), shifts[n][0], shifts[n][1], fill);
+            }
+        });
+    }
+
+    /**
+     * Shifts a 32-bit image in place by the given number of pixels with
+     * bilinear interpolation. Pixels that would be interpolated from outside
+     * the image are set to the fill value, e.g. NaN, so that they are left
+     * out of later calculations.
+     */
+    public static void shift(ImageProcessor ip, double dx, double dy, float fill) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        float[] pixels = (float[]) ip.getPixels();
+        float[] shifted = new float[width * height];
+        int x0 = (int) Math.floor(dx);
+        int y0 = (int) Math.floor(dy);
+        float fx = (float) (dx - x0);
+        float fy = (float) (dy - y0);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                shifted[y * width + x] = interpolate(pixels, width, height, x - x0, y - y0, fx, fy, fill);
+            }
+        }
+        System.arraycopy(shifted, 0, pixels, 0, pixels.length);
+    }
+
+    // Interpolates between the source pixel and its left and upper
+    // neighbours, which have the weights fx and fy. Neighbours of zero weight
+    // are not read, so an integer shift copies the pixels exactly.
+    private static float interpolate(float[] pixels, int width, int height, int sx, int sy, float fx, float fy, float fill) {
+        int left = fx > 0 ? sx - 1 : sx;
+        int top = fy > 0 ? sy - 1 : sy;
+        if (left < 0 || top < 0 || sx >= width || sy >= height) {
+            return fill;
+        }
+        int i = sy * width + sx;
+        float bottom = fx > 0 ? (1 - fx) * pixels[i] + fx * pixels[i - 1] : pixels[i];
+        if (fy == 0) {
+            return bottom;
+        }
+        i -= width;
+        float upper = fx > 0 ? (1 - fx) * pixels[i] + fx * pixels[i - 1] : pixels[i];
+        return fy * upper + (1 - fy) * bottom;
+    }
+
+    // The image is placed in the top left corner of the transform, without
+    // its mean and faded to 0 at its border by a Hann window, so that the
+    // image border and the padding do not correlate.
+    private FHT transform(ImageProcessor ip) {
+        double sum = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                sum += ip.getf(x, y);
+            }
+        }
+        float mean = (float) (sum / (width * height));
+        float[] windowX = getHannWindow(width);
+        float[] windowY = getHannWindow(height);
+        float[] padded = new float[size * size];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                padded[y * size + x] = (ip.getf(x, y) - mean) * windowX[x] * windowY[y];
+            }
+        }
+        FHT fht = new FHT(new FloatProcessor(size, size, padded));
+        fht.setShowProgress(false);
+        fht.transform();
+        return fht;
+    }
+
+    private static float[] getHannWindow(int length) {
+        float[] window = new float[length];
+        for (int i = 0; i < length; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * (i + 0.5) / length));
+        }
+        return window;
+    }
+
+    // Amplitude of the Fourier transform from the Hartley transform:
+    // |F(k)|^2 = (H(k)^2 + H(-k)^2) / 2.
+    private float[] getMagnitude(float[] hartley) {
+        float[] magnitude = new float[hartley.length];
+        for (int row = 0; row < size; row++) {
+            int mirrorRow = (size - row) % size;
+            for (int column = 0; column < size; column++) {
+                float h = hartley[row * size + column];
+                float mirror = hartley[mirrorRow * size + (size - column) % size];
+                magnitude[row * size + column] = (float) Math.sqrt((h * h + mirror * mirror) / 2);
+            }
+        }
+        return magnitude;
+    }
+
+    // Sub-pixel position of the peak relative to the peak pixel: the vertex
+    // of the Gaussian through the peak and its two neighbours, or of the
+    // parabola if a neighbour is not positive.
+    private static double getPeakOffset(float left, float center, float right) {
+        double l = left;
+        double c = center;
+        double r = right;
+        if (left > 0 && right > 0) {
+            l = Math.log(left);
+            c = Math.log(center);
+            r = Math.log(right);
+        }
+        double denominator = l - 2 * c + r;
+        return denominator < 0 ? 0.5 * (l - r) / denominator : 0;
+    }
+}
@@ -0,0 +1,167 @@
+/*-
+ * #%L
+ * an ImageJ plugin for intensity-based three-filter set FRET.
+ * %%
+ * Copyright (C) 2009 - 2023 RiFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.stream.IntStream;
+
+/**
+ * Count, mean and variance of the pixels of a channel, NaN pixels excluded.
+ * The statistics of several channels are calculated in a single parallel
+ * pass over their pixel arrays. Blocks of pixels are reduced independently,
+ * and the block statistics are merged in a fixed order, so the result does
+ * not depend on the number of threads.
+ */
+public class ChannelStatistics {
+
+    private static final int BLOCK_SIZE = 1 << 14;
+
+    private long count;
+    private double mean;
+    // Sum of squared deviations from the mean.
+    private double squaredDeviations;
+
+    public ChannelStatistics() {
+    }
+
+    private ChannelStatistics(long count, double mean, double squaredDeviations) {
+        this.count = count;
+        this.mean = mean;
+        this.squaredDeviations = squaredDeviations;
+    }
+
+    /**
+     * Calculates the statistics of every pixel array. The arrays may have
+     * different lengths.
+     */
+    public static ChannelStatistics[] calculate(float[]... planes) {
+        int length = 0;
+        for (float[] plane : planes) {
+            length = Math.max(length, plane.length);
+        }
+        int nBlocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        ChannelStatistics[][] blockStatistics = new ChannelStatistics[nBlocks][planes.length];
+        IntStream.range(0, nBlocks).parallel().forEach(block -> {
+            int from = block * BLOCK_SIZE;
+            for (int p = 0; p < planes.length; p++) {
+                blockStatistics[block][p] = calculate(planes[p], from, Math.min(from + BLOCK_SIZE, planes[p].length));
+            }
+        });
+        ChannelStatistics[] statistics = new ChannelStatistics[planes.length];
+        for (int p = 0; p < planes.length; p++) {
+            statistics[p] = new ChannelStatistics();
+            for (int block = 0; block < nBlocks; block++) {
+                statistics[p].add(blockStatistics[block][p]);
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Calculates the statistics of the pixels of an image.
+     */
+    public static ChannelStatistics calculate(ImageProcessor ip) {
+        return calculate(getPixels(ip))[0];
+    }
+
+    /**
+     * Pixels of a 32-bit image, or the calibrated pixel values of other
+     * images.
+     */
+    public static float[] getPixels(ImageProcessor ip) {
+        return (float[]) (ip instanceof FloatProcessor ? ip : ip.convertToFloatProcessor()).getPixels();
+    }
+
+    // Two passes over the block, which stays in the cache: the mean, then the
+    // squared deviations, which is more accurate than a sum of squares.
+    private static ChannelStatistics calculate(float[] pixels, int from, int to) {
+        double sum = 0;
+        int blockCount = 0;
+        for (int i = from; i < to; i++) {
+            float value = pixels[i];
+            if (!Float.isNaN(value)) {
+                sum += value;
+                blockCount++;
+            }
+        }
+        if (blockCount == 0) {
+            return new ChannelStatistics();
+        }
+        double blockMean = sum / blockCount;
+        double blockSquaredDeviations = 0;
+        for (int i = from; i < to; i++) {
+            float value = pixels[i];
+            if (!Float.isNaN(value)) {
+                double deviation = value - blockMean;
+                blockSquaredDeviations += deviation * deviation;
+            }
+        }
+        return new ChannelStatistics(blockCount, blockMean, blockSquaredDeviations);
+    }
+
+    /**
+     * Adds a value, NaN values are ignored.
+     */
+    public void add(double value) {
+        if (!Double.isNaN(value)) {
+            add(new ChannelStatistics(1, value, 0));
+        }
+    }
+
+    /**
+     * Adds the pixels of other statistics, e.g. to pool several images.
+     */
+    public void add(ChannelStatistics other) {
+        if (other.count == 0) {
+            return;
+        }
+        long total = count + other.count;
+        double delta = other.mean - mean;
+        mean += delta * other.count / total;
+        squaredDeviations += other.squaredDeviations + delta * delta * count * other.count / total;
+        count = total;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Mean of the values, NaN without values.
+     */
+    public double getMean() {
+        return count > 0 ? mean : Double.NaN;
+    }
+
+    /**
+     * Sample variance of the values, NaN with less than two values.
+     */
+    public double getVariance() {
+        return count > 1 ? squaredDeviations / (count - 1) : Double.NaN;
+    }
+
+    public double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+}
@@ -0,0 +1,229 @@
+/*-
+ * #%L
+ * an ImageJ plugin for intensity-based three-filter set FRET.
+ * %%
+ * Copyright (C) 2009 - 2023 RiFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Calculates FRET efficiency from the donor, transfer, acceptor and
+ * (optionally) autofluorescence channels. It works on plain pixel arrays and
+ * does not need any window, so the main window, batch processing and scripts
+ * can all use it.
+ */
+public class FretCalculator {
+
+    private static final int MIN_BAND_HEIGHT = 32;
+
+    private final boolean autofluorescenceCorrection;
+
+    // Coefficients of the efficiency formula. With autofluorescence correction
+    // E = n / d, otherwise E = n / (n + d), where n and d are linear
+    // combinations of the channels.
+    private final double nDD;
+    private final double nDA;
+    private final double nAA;
+    private final double nAF;
+    private final double dDD;
+    private final double dDA;
+    private final double dAA;
+    private final double dAF;
+    // Coefficients of the corrected donor and acceptor channels.
+    private final double cdDD;
+    private final double cdAF;
+    private final double caDD;
+    private final double caAF;
+
+    /**
+     * Creates a calculator for three-filter FRET without autofluorescence
+     * correction.
+     */
+    public FretCalculator(double s1Factor, double s2Factor, double s3Factor, double s4Factor, double alphaFactor) {
+        autofluorescenceCorrection = false;
+        nDD = -s1Factor * s2Factor * (s1Factor - s2Factor * s3Factor);
+        nDA = s1Factor * s2Factor * (1 - s3Factor * s4Factor);
+        nAA = -s1Factor * s2Factor * (s2Factor - s1Factor * s4Factor);
+        nAF = 0;
+        dDD = (s1Factor - s2Factor * s3Factor) * alphaFactor * s2Factor;
+        dDA = -(s1Factor - s2Factor * s3Factor) * alphaFactor * s4Factor;
+        dAA = 0;
+        dAF = 0;
+        cdDD = 0;
+        cdAF = 0;
+        caDD = 0;
+        caAF = 0;
+    }
+
+    /**
+     * Creates a calculator with pixel-wise autofluorescence correction.
+     */
+    public FretCalculator(double s1Factor, double s2Factor, double s3Factor, double s4Factor, double s5Factor, double s6Factor,
+            double b1Factor, double b2Factor, double b3Factor, double alphaFactor, double eRatio) {
+        autofluorescenceCorrection = true;
+        nDD = s2Factor * (s1Factor - s2Factor * s3Factor + b3Factor * (s2Factor * s5Factor - s1Factor * s6Factor) - b2Factor * (s5Factor - s3Factor * s6Factor));
+        nDA = s2Factor * (-1 + b1Factor * s5Factor - b3Factor * s4Factor * s5Factor + b3Factor * s6Factor + s3Factor * (s4Factor - b1Factor * s6Factor));
+        nAA = s2Factor * (s2Factor - s1Factor * s4Factor - b1Factor * (s2Factor * s5Factor - s1Factor * s6Factor) - b2Factor * (s6Factor - s4Factor * s5Factor));
+        nAF = s2Factor * (b2Factor - s2Factor * b3Factor + b1Factor * (s2Factor * s3Factor - s1Factor) + b3Factor * s1Factor * s4Factor - b2Factor * s3Factor * s4Factor);
+        double k = alphaFactor * (-1 + eRatio);
+        dDD = nDD + k * (s2Factor - b2Factor * s6Factor);
+        dDA = nDA + k * (b1Factor * s6Factor - s4Factor);
+        dAA = nAA;
+        dAF = nAF + k * (b2Factor * s4Factor - b1Factor * s2Factor);
+        double c = 1 / (b1Factor * s5Factor - 1);
+        cdDD = -c;
+        cdAF = b1Factor * c;
+        caDD = -b3Factor * s5Factor * c;
+        caAF = b3Factor * c;
+    }
+
+    public boolean isAutofluorescenceCorrection() {
+        return autofluorescenceCorrection;
+    }
+
+    /**
+     * Calculates the FRET efficiency of every pixel. Pixels that are NaN in
+     * any of the channels are NaN in the result. The autofluorescence channel
+     * is only used (and required) with autofluorescence correction.
+     */
+    public float[] calculateEfficiency(float[] donor, float[] transfer, float[] acceptor, float[] autofluorescence) {
+        float[] efficiency = new float[donor.length];
+        calculateEfficiency(donor, transfer, acceptor, autofluorescence, efficiency);
+        return efficiency;
+    }
+
+    /**
+     * Calculates the FRET efficiency of every pixel into the given array,
+     * which may be one of the input arrays.
+     */
+    public void calculateEfficiency(float[] donor, float[] transfer, float[] acceptor, float[] autofluorescence, float[] efficiency) {
+        if (autofluorescenceCorrection && autofluorescence == null) {
+            throw new IllegalArgumentException("Autofluorescence channel is required for autofluorescence correction.");
+        }
+        calculateEfficiency(donor, transfer, acceptor, autofluorescence, efficiency, 0, efficiency.length);
+    }
+
+    // A single pass per pixel with the coefficients folded in advance. NaN
+    // pixels are skipped explicitly: HotSpot runs this guarded scalar loop
+    // faster than the same arithmetic without the checks.
+    void calculateEfficiency(float[] donor, float[] transfer, float[] acceptor, float[] autofluorescence, float[] efficiency, int from, int to) {
+        if (autofluorescenceCorrection) {
+            for (int i = from; i < to; i++) {
+                float dd = donor[i];
+                float da = transfer[i];
+                float aa = acceptor[i];
+                float af = autofluorescence[i];
+                if (!Float.isNaN(dd) && !Float.isNaN(da) && !Float.isNaN(aa) && !Float.isNaN(af)) {
+                    efficiency[i] = (float) ((nDD * dd + nDA * da + nAA * aa + nAF * af) / (dDD * dd + dDA * da + dAA * aa + dAF * af));
+                } else {
+                    efficiency[i] = Float.NaN;
+                }
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                float dd = donor[i];
+                float da = transfer[i];
+                float aa = acceptor[i];
+                if (!Float.isNaN(dd) && !Float.isNaN(da) && !Float.isNaN(aa)) {
+                    // E = x / (1 + x) with x = n / d, without the second division.
+                    double n = nDD * dd + nDA * da + nAA * aa;
+                    double d = dDD * dd + dDA * da;
+                    efficiency[i] = d != 0 ? (float) (n / (n + d)) : Float.NaN;
+                } else {
+                    efficiency[i] = Float.NaN;
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates the autofluorescence corrected donor channel from the FRET
+     * efficiency. Only available with autofluorescence correction.
+     */
+    public float[] calculateCorrectedDonor(float[] efficiency, float[] donor, float[] autofluorescence) {
+        if (!autofluorescenceCorrection) {
+            throw new IllegalStateException("Corrected donor channel requires autofluorescence correction.");
+        }
+        float[] correctedDonor = new float[donor.length];
+        for (int i = 0; i < correctedDonor.length; i++) {
+            correctedDonor[i] = (float) ((cdDD * donor[i] + cdAF * autofluorescence[i]) / (1 - efficiency[i]));
+        }
+        return correctedDonor;
+    }
+
+    /**
+     * Calculates the autofluorescence corrected acceptor channel. Only
+     * available with autofluorescence correction.
+     */
+    public float[] calculateCorrectedAcceptor(float[] donor, float[] acceptor, float[] autofluorescence) {
+        if (!autofluorescenceCorrection) {
+            throw new IllegalStateException("Corrected acceptor channel requires autofluorescence correction.");
+        }
+        float[] correctedAcceptor = new float[acceptor.length];
+        for (int i = 0; i < correctedAcceptor.length; i++) {
+            correctedAcceptor[i] = (float) (acceptor[i] + caDD * donor[i] + caAF * autofluorescence[i]);
+        }
+        return correctedAcceptor;
+    }
+
+    /**
+     * Creates a FRET efficiency stack from 32-bit channel stacks of the same
+     * size. The autofluorescence stack is only used with autofluorescence
+     * correction. The channel stacks are not modified. Slices, and row bands
+     * of large slices, are processed in parallel; the order of the slices is
+     * kept.
+     */
+    public ImageStack createFretStack(ImageStack donor, ImageStack transfer, ImageStack acceptor, ImageStack autofluorescence) {
+        if (autofluorescenceCorrection && autofluorescence == null) {
+            throw new IllegalArgumentException("Autofluorescence channel is required for autofluorescence correction.");
+        }
+        int width = donor.getWidth();
+        int height = donor.getHeight();
+        int nSlices = donor.getSize();
+        int nBands = getBandCount(nSlices, height);
+        float[][] efficiencies = new float[nSlices][width * height];
+        IntStream.range(0, nSlices * nBands).parallel().forEach(unit -> {
+            int slice = unit / nBands;
+            int band = unit % nBands;
+            calculateEfficiency((float[]) donor.getPixels(slice + 1), (float[]) transfer.getPixels(slice + 1), (float[]) acceptor.getPixels(slice + 1),
+                    autofluorescenceCorrection ? (float[]) autofluorescence.getPixels(slice + 1) : null, efficiencies[slice],
+                    band * height / nBands * width, (band + 1) * height / nBands * width);
+        });
+        ImageStack fretStack = new ImageStack(width, height);
+        for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
+            fretStack.addSlice("" + currentSlice, new FloatProcessor(width, height, efficiencies[currentSlice - 1]));
+        }
+        return fretStack;
+    }
+
+    /**
+     * Number of row bands each slice is split into, so that short stacks keep
+     * every worker of the common pool busy as well.
+     */
+    static int getBandCount(int nSlices, int height) {
+        int workUnits = 4 * ForkJoinPool.getCommonPoolParallelism();
+        int nBands = (workUnits + nSlices - 1) / nSlices;
+        return Math.max(1, Math.min(nBands, height / MIN_BAND_HEIGHT));
+    }
+}
@@ -0,0 +1,160 @@
+/*-
+ * #%L
+ * an ImageJ plugin for intensity-based three-filter set FRET.
+ * %%
+ * Copyright (C) 2009 - 2023 RiFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Parameters of FRET calculation and preprocessing as stored in a parameter
+ * CSV file: spectral correction factors, Gaussian blur sigmas, background
+ * values and thresholds. Values are kept as text, as they are entered in the
+ * main window.
+ */
+public class FretParameters {
+
+    public static final String[] HEADERS = {
+        "S1", "S2", "S3", "S4", "S5", "S6", "B1", "B2", "B3", "EPSRAT", "ALPHA",
+        "BLUR_D", "BLUR_T", "BLUR_A", "BLUR_AF",
+        "IBG_D", "IBG_T", "IBG_A", "IBG_AF",
+        "THRES_D_MIN", "THRES_D_MAX", "THRES_T_MIN", "THRES_T_MAX", "THRES_A_MIN", "THRES_A_MAX", "THRES_AF_MIN", "THRES_AF_MAX",
+        "THRES_FRET_MIN", "THRES_FRET_MAX",
+        "RECURSIVE_BLUR_D", "RECURSIVE_BLUR_T", "RECURSIVE_BLUR_A", "RECURSIVE_BLUR_AF"};
+
+    private static final String[] BLUR_HEADERS = {"BLUR_D", "BLUR_T", "BLUR_A", "BLUR_AF"};
+    private static final String[] RECURSIVE_BLUR_HEADERS = {"RECURSIVE_BLUR_D", "RECURSIVE_BLUR_T", "RECURSIVE_BLUR_A", "RECURSIVE_BLUR_AF"};
+    private static final String[] BACKGROUND_HEADERS = {"IBG_D", "IBG_T", "IBG_A", "IBG_AF"};
+    private static final String[] THRESHOLD_MIN_HEADERS = {"THRES_D_MIN", "THRES_T_MIN", "THRES_A_MIN", "THRES_AF_MIN"};
+    private static final String[] THRESHOLD_MAX_HEADERS = {"THRES_D_MAX", "THRES_T_MAX", "THRES_A_MAX", "THRES_AF_MAX"};
+
+    private final Map<String, String> values = new HashMap<>();
+
+    /**
+     * Loads parameters from a CSV file with a header line. Header names are
+     * case insensitive; if the file has more records, the last one is used.
+     */
+    public static FretParameters load(String path) throws IOException {
+        FretParameters parameters = new FretParameters();
+        try (Reader in = Files.newBufferedReader(Paths.get(path))) {
+            Iterable<CSVRecord> records = CSVFormat.DEFAULT
+                    .withIgnoreHeaderCase()
+                    .withIgnoreSurroundingSpaces()
+                    .withFirstRecordAsHeader().parse(in);
+            for (CSVRecord record : records) {
+                for (Map.Entry<String, String> entry : record.toMap().entrySet()) {
+                    parameters.set(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return parameters;
+    }
+
+    public void save(String path) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(Paths.get(path))) {
+            CSVPrinter printer = CSVFormat.DEFAULT
+                    .withIgnoreSurroundingSpaces()
+                    .withHeader(HEADERS).print(writer);
+            Object[] record = new Object[HEADERS.length];
+            for (int i = 0; i < HEADERS.length; i++) {
+                record[i] = get(HEADERS[i]);
+            }
+            printer.printRecord(record);
+            printer.flush();
+        }
+    }
+
+    /**
+     * Returns the value of a parameter, or an empty string if it is not set.
+     */
+    public String get(String name) {
+        String value = values.get(name.toUpperCase(Locale.ROOT));
+        return value == null ? "" : value.trim();
+    }
+
+    public void set(String name, String value) {
+        values.put(name.toUpperCase(Locale.ROOT), value);
+    }
+
+    /**
+     * Creates a FRET calculator from the spectral correction factors.
+     *
+     * @throws IllegalArgumentException if a required factor is missing or is
+     * not a number
+     */
+    public FretCalculator createFretCalculator(boolean autofluorescenceCorrection) {
+        if (autofluorescenceCorrection) {
+            return new FretCalculator(getFactor("S1"), getFactor("S2"), getFactor("S3"), getFactor("S4"), getFactor("S5"), getFactor("S6"),
+                    getFactor("B1"), getFactor("B2"), getFactor("B3"), getFactor("ALPHA"), getFactor("EPSRAT"));
+        }
+        return new FretCalculator(getFactor("S1"), getFactor("S2"), getFactor("S3"), getFactor("S4"), getFactor("ALPHA"));
+    }
+
+    /**
+     * Creates a pipeline with the blur, background and threshold values of
+     * the channels used by the calculator. Empty values are taken as 0.
+     *
+     * @throws IllegalArgumentException if a value is not a number
+     */
+    public FretPipeline createFretPipeline(FretCalculator fretCalculator) {
+        FretPipeline fretPipeline = new FretPipeline(fretCalculator);
+        int nChannels = fretCalculator.isAutofluorescenceCorrection() ? 4 : 3;
+        for (int channel = 0; channel < nChannels; channel++) {
+            fretPipeline.setSigma(channel, getValue(BLUR_HEADERS[channel]));
+            fretPipeline.setRecursiveBlur(channel, Boolean.parseBoolean(get(RECURSIVE_BLUR_HEADERS[channel])));
+            fretPipeline.setBackground(channel, (float) getValue(BACKGROUND_HEADERS[channel]));
+            fretPipeline.setThreshold(channel, getValue(THRESHOLD_MIN_HEADERS[channel]), getValue(THRESHOLD_MAX_HEADERS[channel]));
+        }
+        fretPipeline.setFretThreshold(getValue("THRES_FRET_MIN"), getValue("THRES_FRET_MAX"));
+        return fretPipeline;
+    }
+
+    private double getFactor(String name) {
+        String value = get(name);
+        if (value.isEmpty()) {
+            throw new IllegalArgumentException(name + " has to be given.");
+        }
+        return parse(name, value);
+    }
+
+    private double getValue(String name) {
+        String value = get(name);
+        return value.isEmpty() ? 0 : parse(name, value);
+    }
+
+    private static double parse(String name, String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(name + " has to be a number, not \"" + value + "\".");
+        }
+    }
+}
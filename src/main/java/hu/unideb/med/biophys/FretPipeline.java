@@ -0,0 +1,175 @@
+/*-
+ * #%L
+ * an ImageJ plugin for intensity-based three-filter set FRET.
+ * %%
+ * Copyright (C) 2009 - 2023 RiFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+import java.util.stream.IntStream;
+
+/**
+ * Preprocessing and FRET calculation of a set of channel stacks. The stages
+ * always run in this order: Gaussian blur, background subtraction and
+ * thresholding of the channels, then calculation and thresholding of the FRET
+ * efficiency. Apart from the blur, which needs whole slices, all stages are
+ * done tile by tile in a single pass, so the pixels of a tile are read from
+ * memory only once. The channel stacks are processed in place.
+ */
+public class FretPipeline {
+
+    public static final int DONOR = 0;
+    public static final int TRANSFER = 1;
+    public static final int ACCEPTOR = 2;
+    public static final int AUTOFLUORESCENCE = 3;
+
+    private static final int CHANNELS = 4;
+    // Pixels per tile; the tiles of the four channels and the FRET image fit
+    // in the L2 cache together.
+    private static final int TILE_SIZE = 8192;
+
+    private final FretCalculator fretCalculator;
+    private final double[] sigma = new double[CHANNELS];
+    private final boolean[] recursiveBlur = new boolean[CHANNELS];
+    private final float[] background = new float[CHANNELS];
+    private final boolean[] thresholded = new boolean[CHANNELS];
+    private final double[] thresholdMin = new double[CHANNELS];
+    private final double[] thresholdMax = new double[CHANNELS];
+    private boolean fretThresholded;
+    private double fretThresholdMin;
+    private double fretThresholdMax;
+
+    public FretPipeline(FretCalculator fretCalculator) {
+        this.fretCalculator = fretCalculator;
+    }
+
+    public FretCalculator getFretCalculator() {
+        return fretCalculator;
+    }
+
+    /**
+     * Sets the sigma (radius) of the Gaussian blur of a channel in pixels. The
+     * channel is not blurred if it is 0.
+     */
+    public void setSigma(int channel, double sigma) {
+        this.sigma[channel] = sigma;
+    }
+
+    /**
+     * Blurs the channel with the recursive Gaussian filter, whose run time
+     * does not depend on sigma.
+     */
+    public void setRecursiveBlur(int channel, boolean recursive) {
+        recursiveBlur[channel] = recursive;
+    }
+
+    /**
+     * Sets the background value subtracted from every pixel of a channel.
+     */
+    public void setBackground(int channel, float background) {
+        this.background[channel] = background;
+    }
+
+    /**
+     * Pixels of the channel outside the given range (after background
+     * subtraction) are set to NaN.
+     */
+    public void setThreshold(int channel, double min, double max) {
+        thresholded[channel] = true;
+        thresholdMin[channel] = min;
+        thresholdMax[channel] = max;
+    }
+
+    /**
+     * Pixels of the FRET image outside the given range are set to NaN.
+     */
+    public void setFretThreshold(double min, double max) {
+        fretThresholded = true;
+        fretThresholdMin = min;
+        fretThresholdMax = max;
+    }
+
+    /**
+     * Runs the pipeline on 32-bit channel stacks of the same size and returns
+     * the FRET efficiency stack. The autofluorescence stack is only used with
+     * autofluorescence correction.
+     */
+    public ImageStack run(ImageStack donor, ImageStack transfer, ImageStack acceptor, ImageStack autofluorescence) {
+        if (fretCalculator.isAutofluorescenceCorrection() && autofluorescence == null) {
+            throw new IllegalArgumentException("Autofluorescence channel is required for autofluorescence correction.");
+        }
+        ImageStack[] channels = {donor, transfer, acceptor, fretCalculator.isAutofluorescenceCorrection() ? autofluorescence : null};
+        int width = donor.getWidth();
+        int height = donor.getHeight();
+        int nSlices = donor.getSize();
+
+        GaussianSmoother.blur(channels, sigma, recursiveBlur);
+
+        int nBands = FretCalculator.getBandCount(nSlices, height);
+        float[][] efficiencies = new float[nSlices][width * height];
+        IntStream.range(0, nSlices * nBands).parallel().forEach(unit -> {
+            int slice = unit / nBands;
+            int band = unit % nBands;
+            float[][] pixels = new float[CHANNELS][];
+            for (int channel = 0; channel < CHANNELS; channel++) {
+                if (channels[channel] != null) {
+                    pixels[channel] = (float[]) channels[channel].getPixels(slice + 1);
+                }
+            }
+            float[] efficiency = efficiencies[slice];
+            int bandEnd = (band + 1) * height / nBands * width;
+            for (int from = band * height / nBands * width; from < bandEnd; from += TILE_SIZE) {
+                int to = Math.min(from + TILE_SIZE, bandEnd);
+                for (int channel = 0; channel < CHANNELS; channel++) {
+                    if (pixels[channel] != null) {
+                        correctChannel(channel, pixels[channel], from, to);
+                    }
+                }
+                fretCalculator.calculateEfficiency(pixels[DONOR], pixels[TRANSFER], pixels[ACCEPTOR], pixels[AUTOFLUORESCENCE], efficiency, from, to);
+                if (fretThresholded) {
+                    NanThresholder.threshold(efficiency, fretThresholdMin, fretThresholdMax, from, to);
+                }
+            }
+        });
+
+        ImageStack fretStack = new ImageStack(width, height);
+        for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
+            fretStack.addSlice("" + currentSlice, new FloatProcessor(width, height, efficiencies[currentSlice - 1]));
+        }
+        return fretStack;
+    }
+
+    private void correctChannel(int channel, float[] pixels, int from, int to) {
+        float channelBackground = background[channel];
+        if (thresholded[channel]) {
+            double min = thresholdMin[channel];
+            double max = thresholdMax[channel];
+            for (int i = from; i < to; i++) {
+                float value = pixels[i] - channelBackground;
+                pixels[i] = value < min || value > max ? Float.NaN : value;
+            }
+        } else if (channelBackground != 0) {
+            for (int i = from; i < to; i++) {
+                pixels[i] -= channelBackground;
+            }
+        }
+    }
+}
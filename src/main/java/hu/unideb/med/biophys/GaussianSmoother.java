@@ -0,0 +1,111 @@
+/*-
+ * #%L
+ * an ImageJ plugin for intensity-based three-filter set FRET.
+ * %%
+ * Copyright (C) 2009 - 2023 RiFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.ImageStack;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.stream.IntStream;
+
+/**
+ * Gaussian blur of whole stacks. Every slice of every stack is a separate
+ * work unit, so all slices of all channels are blurred concurrently.
+ */
+public class GaussianSmoother {
+
+    private static final double ACCURACY = 0.01;
+
+    // GaussianBlur is not thread-safe, so every worker thread keeps its own.
+    private static final ThreadLocal<GaussianBlur> GAUSSIAN_BLUR = ThreadLocal.withInitial(GaussianBlur::new);
+
+    private GaussianSmoother() {
+    }
+
+    /**
+     * Blurs every slice of the stack in place with the given sigma (radius)
+     * in pixels.
+     */
+    public static void blur(ImageStack stack, double sigma) {
+        blur(stack, sigma, false);
+    }
+
+    /**
+     * Blurs every slice of the stack in place, optionally with the recursive
+     * filter.
+     */
+    public static void blur(ImageStack stack, double sigma, boolean recursive) {
+        blur(new ImageStack[]{stack}, new double[]{sigma}, new boolean[]{recursive});
+    }
+
+    /**
+     * Blurs every slice of the stacks in place, stack i with sigmas[i]. Null
+     * stacks and stacks with a sigma of 0 are skipped.
+     */
+    public static void blur(ImageStack[] stacks, double[] sigmas) {
+        blur(stacks, sigmas, new boolean[stacks.length]);
+    }
+
+    /**
+     * Blurs every slice of the stacks in place, stack i with sigmas[i], and
+     * with the recursive filter if recursive[i] is set. The recursive filter
+     * takes the same time for any sigma but is less accurate; it is only
+     * used for 32-bit slices without NaN pixels, and for sigmas of at least
+     * RecursiveGaussian.MIN_SIGMA. Other slices are blurred with ImageJ's
+     * GaussianBlur.
+     */
+    public static void blur(ImageStack[] stacks, double[] sigmas, boolean[] recursive) {
+        int nSlices = 0;
+        for (ImageStack stack : stacks) {
+            if (stack != null) {
+                nSlices = Math.max(nSlices, stack.getSize());
+            }
+        }
+        int maxSlices = nSlices;
+        IntStream.range(0, stacks.length * maxSlices).parallel().forEach(unit -> {
+            int index = unit / maxSlices;
+            ImageStack stack = stacks[index];
+            int slice = unit % maxSlices + 1;
+            double sigma = sigmas[index];
+            if (stack == null || sigma <= 0 || slice > stack.getSize()) {
+                return;
+            }
+            ImageProcessor ip = stack.getProcessor(slice);
+            if (recursive[index] && sigma >= RecursiveGaussian.MIN_SIGMA && ip instanceof FloatProcessor && !containsNaN((float[]) ip.getPixels())) {
+                new RecursiveGaussian(sigma).blur((float[]) ip.getPixels(), ip.getWidth(), ip.getHeight());
+            } else {
+                GAUSSIAN_BLUR.get().blurGaussian(ip, sigma, sigma, ACCURACY);
+            }
+        });
+    }
+
+    // The recursive filter would spread a NaN along its whole row and column.
+    private static boolean containsNaN(float[] pixels) {
+        for (float value : pixels) {
+            if (Float.isNaN(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
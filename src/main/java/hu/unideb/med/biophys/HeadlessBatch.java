@@ -0,0 +1,217 @@
+/*-
+ * #%L
+ * an ImageJ plugin for intensity-based three-filter set FRET.
+ * %%
+ * Copyright (C) 2009 - 2023 RiFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.measure.ResultsTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+/**
+ * Batch processing from the command line, without any window. It runs the
+ * same pipeline as batch processing in the main window, for example:
+ *
+ * <pre>
+ * java -Djava.awt.headless=true -cp "RiFRET_.jar:ij.jar:commons-csv.jar" hu.unideb.med.biophys.RiFRET_Plugin \
+ *     --input images --parameters parameters.csv --channels 1,2,3,4
+ * </pre>
+ *
+ * A summary line is printed to the standard output for every file as CSV
+ * (File, Status, Message); progress and errors go to the standard error.
+ * ImageJ prints some messages, e.g. of files it cannot open, to System.out,
+ * so System.out is redirected to the standard error while running.
+ */
+public class HeadlessBatch {
+
+    public static final int EXIT_OK = 0;
+    public static final int EXIT_FAILED_FILES = 1;
+    public static final int EXIT_ERROR = 2;
+
+    private static final List<String> FLAGS = Arrays.asList("--corrected-images", "--estimate-registration");
+    private static final List<String> OPTIONS = Arrays.asList("--input", "--parameters", "--output", "--channels", "--threads", "--registration", "--setup");
+    private static final String USAGE = "Usage: --input <directory> --parameters <CSV file> [options]\n"
+            + "Options:\n"
+            + "  --output <directory>   output directory (default: Output in the input directory)\n"
+            + "  --channels <d,t,a[,af]> slices of the donor, transfer, acceptor and (for\n"
+            + "                         autofluorescence correction) autofluorescence channels\n"
+            + "                         (default: 1,2,3)\n"
+            + "  --threads <n>          number of files processed in parallel (default: number of processors)\n"
+            + "  --corrected-images     save corrected donor and acceptor images (autofluorescence correction only)\n"
+            + "  --registration <CSV file> shift the transfer and acceptor channels by the registration\n"
+            + "                         offsets of the setup cached in the file\n"
+            + "  --setup <name>         instrument setup of the registration offsets (default: default)\n"
+            + "  --estimate-registration find the registration offsets in the first file and cache them\n"
+            + "                         if the file has none for the setup\n"
+            + "Exit status: 0 if every file was processed, 1 if some files failed, 2 on other errors.";
+
+    public static void main(String[] args) {
+        PrintStream out = System.out;
+        int status;
+        System.setOut(System.err);
+        try {
+            status = run(args, out, System.err);
+        } finally {
+            System.setOut(out);
+        }
+        System.exit(status);
+    }
+
+    public static int run(String[] args, PrintStream out, PrintStream err) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (FLAGS.contains(args[i])) {
+                options.put(args[i], "true");
+            } else if (OPTIONS.contains(args[i]) && i + 1 < args.length) {
+                options.put(args[i], args[++i]);
+            } else {
+                err.println((OPTIONS.contains(args[i]) ? "Missing value of argument: " : "Unknown argument: ") + args[i]);
+                err.println(USAGE);
+                return EXIT_ERROR;
+            }
+        }
+        if (!options.containsKey("--input") || !options.containsKey("--parameters")) {
+            err.println(USAGE);
+            return EXIT_ERROR;
+        }
+        File inputDirectory = new File(options.get("--input"));
+        if (!inputDirectory.isDirectory()) {
+            err.println("Input directory does not exist: " + inputDirectory);
+            return EXIT_ERROR;
+        }
+        File outputDirectory = new File(options.getOrDefault("--output", new File(inputDirectory, "Output").getPath()));
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            err.println("Could not create output directory: " + outputDirectory);
+            return EXIT_ERROR;
+        }
+        String outputPath = outputDirectory.getPath() + File.separator;
+
+        BatchProcessor batchProcessor;
+        try {
+            String[] channelOrder = options.getOrDefault("--channels", "1,2,3").split(",");
+            if (channelOrder.length != 3 && channelOrder.length != 4) {
+                throw new IllegalArgumentException("Three or four channels have to be given.");
+            }
+            int[] slices = new int[4];
+            for (int i = 0; i < channelOrder.length; i++) {
+                slices[i] = parseInt("Channel", channelOrder[i]);
+            }
+            int nThreads = options.containsKey("--threads") ? parseInt("Thread count", options.get("--threads")) : Runtime.getRuntime().availableProcessors();
+            if (nThreads < 1) {
+                throw new IllegalArgumentException("Thread count has to be at least 1.");
+            }
+            FretParameters parameters = FretParameters.load(options.get("--parameters"));
+            FretCalculator fretCalculator = parameters.createFretCalculator(channelOrder.length == 4);
+            batchProcessor = new BatchProcessor(parameters.createFretPipeline(fretCalculator), slices[0], slices[1], slices[2], slices[3], nThreads);
+            batchProcessor.setSaveCorrectedImages(options.containsKey("--corrected-images"));
+        } catch (IOException ex) {
+            err.println("Could not load parameters from: " + options.get("--parameters"));
+            return EXIT_ERROR;
+        } catch (IllegalArgumentException ex) {
+            err.println(ex.getMessage());
+            return EXIT_ERROR;
+        }
+
+        File[] files = BatchProcessor.listImageFiles(inputDirectory);
+        if (options.containsKey("--registration")) {
+            String registrationPath = options.get("--registration");
+            String setup = options.getOrDefault("--setup", "default");
+            try {
+                RegistrationCache registrationCache = RegistrationCache.load(registrationPath);
+                RegistrationCache.Offsets registrationOffsets = registrationCache.get(setup);
+                if (registrationOffsets == null && !options.containsKey("--estimate-registration")) {
+                    err.println("No registration offsets of setup \"" + setup + "\" in: " + registrationPath);
+                    return EXIT_ERROR;
+                } else if (registrationOffsets == null && files.length > 0) {
+                    // The offsets are found in the first file that can be registered.
+                    for (File file : files) {
+                        try {
+                            registrationOffsets = batchProcessor.findRegistrationOffsets(file);
+                        } catch (IOException | IllegalArgumentException ex) {
+                            err.println("Could not find registration offsets in " + file.getName() + ": " + ex.getMessage());
+                            continue;
+                        }
+                        registrationCache.put(setup, registrationOffsets);
+                        registrationCache.save(registrationPath);
+                        err.println("Saved registration offsets of setup \"" + setup + "\" found in " + file.getName() + " to: " + registrationPath);
+                        break;
+                    }
+                    if (registrationOffsets == null) {
+                        err.println("Could not find registration offsets of setup \"" + setup + "\" in any file.");
+                        return EXIT_ERROR;
+                    }
+                }
+                batchProcessor.setRegistrationOffsets(registrationOffsets);
+            } catch (IOException ex) {
+                err.println("Could not use registration offsets from: " + registrationPath + " (" + ex.getMessage() + ")");
+                return EXIT_ERROR;
+            }
+        }
+        err.println("Processing " + files.length + " files from " + inputDirectory + "...");
+        AtomicInteger nFinished = new AtomicInteger();
+        List<BatchProcessor.FileResult> results;
+        try {
+            results = batchProcessor.process(files, outputPath, result -> err.println(
+                    (result.isProcessed() ? "Processed " : "Failed ") + result.getFile().getName() + " (" + nFinished.incrementAndGet() + "/" + files.length + ")"
+                    + (result.isProcessed() ? "" : ": " + result.getError())));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            err.println("Processing files has been interrupted.");
+            return EXIT_ERROR;
+        }
+
+        int nFailed = 0;
+        try {
+            CSVPrinter printer = CSVFormat.DEFAULT.withHeader("File", "Status", "Message").print(out);
+            for (BatchProcessor.FileResult result : results) {
+                if (!result.isProcessed()) {
+                    nFailed++;
+                }
+                printer.printRecord(result.getFile().getName(), result.isProcessed() ? "OK" : "FAILED", result.isProcessed() ? "" : result.getError());
+            }
+            printer.flush();
+            ResultsTable resultsTable = BatchProcessor.createResultsTable(results);
+            resultsTable.saveAs(outputPath + "Results.csv");
+        } catch (IOException ex) {
+            err.println("Could not save results to: " + outputPath + "Results.csv");
+            return EXIT_ERROR;
+        }
+        err.println("Processed: " + (results.size() - nFailed) + ", failed: " + nFailed + ".");
+        return nFailed > 0 ? EXIT_FAILED_FILES : EXIT_OK;
+    }
+
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(name + " has to be a whole number, not \"" + value + "\".");
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*-
+ * #%L
+ * an ImageJ plugin for intensity-based three-filter set FRET.
+ * %%
+ * Copyright (C) 2009 - 2023 RiFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.stream.IntStream;
+
+/**
+ * Sets the pixels of 32-bit images outside a range to NaN, like the "NaN
+ * Background" command of ImageJ, but on every slice and without needing an
+ * image window.
+ */
+public class NanThresholder {
+
+    private NanThresholder() {
+    }
+
+    /**
+     * Sets the pixels below min or above max to NaN in the given range of the
+     * array.
+     */
+    public static void threshold(float[] pixels, double min, double max, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (pixels[i] < min || pixels[i] > max) {
+                pixels[i] = Float.NaN;
+            }
+        }
+    }
+
+    /**
+     * Sets the pixels below min or above max to NaN on every slice of a
+     * 32-bit stack. The slices are processed in parallel.
+     */
+    public static void threshold(ImageStack stack, double min, double max) {
+        IntStream.rangeClosed(1, stack.getSize()).parallel().forEach(n -> {
+            float[] pixels = (float[]) stack.getPixels(n);
+            threshold(pixels, min, max, 0, pixels.length);
+        });
+    }
+
+    /**
+     * Thresholds every slice of a 32-bit image and updates its display.
+     */
+    public static void threshold(ImagePlus image, double min, double max) {
+        threshold(image.getStack(), min, max);
+        image.updateAndDraw();
+    }
+}
@@ -0,0 +1,203 @@
+/*-
+ * #%L
+ * an ImageJ plugin for intensity-based three-filter set FRET.
+ * %%
+ * Copyright (C) 2009 - 2023 RiFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.ImagePlus;
+import ij.io.Opener;
+import ij.measure.ResultsTable;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Calculates a set of spectral or autofluorescence correction factors from
+ * many control images at once (donor only, acceptor only or unlabeled
+ * samples). The ratios of every image are added to running sums, so only one
+ * image is kept in memory at a time, and the factors are estimated from the
+ * ratios of the pixels of all images.
+ */
+public class PooledCalibration {
+
+    public static final String[] FACTOR_SETS = {"S1/S3", "S2/S4", "S1/S3/S5", "S2/S4/S6", "B1/B2/B3"};
+
+    private static final int[] DENOMINATORS = {FretPipeline.DONOR, FretPipeline.ACCEPTOR, FretPipeline.DONOR, FretPipeline.ACCEPTOR, FretPipeline.AUTOFLUORESCENCE};
+    private static final int[][] NUMERATORS = {
+        {FretPipeline.TRANSFER, FretPipeline.ACCEPTOR},
+        {FretPipeline.TRANSFER, FretPipeline.DONOR},
+        {FretPipeline.TRANSFER, FretPipeline.ACCEPTOR, FretPipeline.AUTOFLUORESCENCE},
+        {FretPipeline.TRANSFER, FretPipeline.DONOR, FretPipeline.AUTOFLUORESCENCE},
+        {FretPipeline.DONOR, FretPipeline.TRANSFER, FretPipeline.ACCEPTOR}};
+
+    private final int factorSet;
+    private final int estimator;
+    private boolean bootstrap;
+    private final int[] slices;
+    private final float[] background = new float[4];
+    private double denominatorMin = Double.NEGATIVE_INFINITY;
+    private final RatioCalculator ratioCalculator;
+    private final ResultsTable resultsTable = new ResultsTable();
+
+    /**
+     * Creates a calibration of the given factor set (an index of
+     * FACTOR_SETS). The slices are the 1-based positions of the donor,
+     * transfer, acceptor and autofluorescence channels in the images; the
+     * autofluorescence slice is only used by the sets that need it. The
+     * estimator is one of the estimators of RatioCalculator.
+     */
+    public PooledCalibration(int factorSet, int[] slices, int estimator) {
+        this.factorSet = factorSet;
+        this.slices = slices;
+        this.estimator = estimator;
+        ratioCalculator = new RatioCalculator(NUMERATORS[factorSet].length, estimator);
+        resultsTable.setPrecision(3);
+    }
+
+    public String[] getFactorNames() {
+        return FACTOR_SETS[factorSet].split("/");
+    }
+
+    /**
+     * Sets the background value subtracted from every pixel of a channel.
+     */
+    public void setBackground(int channel, float background) {
+        this.background[channel] = background;
+    }
+
+    /**
+     * Keeps the statistics needed for bootstrap confidence intervals of the
+     * pooled factors. It has to be set before adding images.
+     */
+    public void setBootstrap(boolean bootstrap) {
+        this.bootstrap = bootstrap;
+        ratioCalculator.setBootstrap(bootstrap);
+    }
+
+    /**
+     * Pixels whose denominator channel is below the minimum (after background
+     * subtraction) are left out, so that background pixels do not distort
+     * the ratios.
+     */
+    public void setDenominatorMin(double min) {
+        denominatorMin = min;
+    }
+
+    /**
+     * Opens an image file and adds its pixels.
+     */
+    public void add(File file) throws IOException {
+        ImagePlus image = new Opener().openImage(file.getAbsolutePath());
+        if (image == null) {
+            throw new IOException("Could not open file.");
+        }
+        add(image, file.getName());
+    }
+
+    /**
+     * Adds the pixels of an image whose slices are the channels, or of every
+     * position of a hyperstack, e.g. one slice or frame for every cell. The
+     * image is not modified.
+     */
+    public void add(ImagePlus image, String name) {
+        int nChannels = image.getNChannels() > 1 ? image.getNChannels() : image.getStackSize();
+        int nPositions = image.getStackSize() / nChannels;
+        for (int position = 0; position < nPositions; position++) {
+            add(image, position * nChannels, nChannels, nPositions > 1 ? name + " " + (position + 1) : name);
+        }
+    }
+
+    private void add(ImagePlus image, int offset, int nChannels, String name) {
+        int[] channels = NUMERATORS[factorSet];
+        int denominatorChannel = DENOMINATORS[factorSet];
+        float[] denominator = getChannel(image, offset, nChannels, denominatorChannel);
+        NanThresholder.threshold(denominator, denominatorMin, Double.POSITIVE_INFINITY, 0, denominator.length);
+        float[][] numerators = new float[channels.length][];
+        for (int k = 0; k < channels.length; k++) {
+            numerators[k] = getChannel(image, offset, nChannels, channels[k]);
+        }
+        RatioCalculator imageRatios = new RatioCalculator(channels.length, estimator);
+        imageRatios.setBootstrap(bootstrap);
+        imageRatios.add(denominator, numerators, image.getWidth());
+        ratioCalculator.add(imageRatios);
+
+        String[] names = getFactorNames();
+        resultsTable.incrementCounter();
+        resultsTable.addValue("Image", name);
+        resultsTable.addValue("Pixels", imageRatios.getCount());
+        for (int k = 0; k < names.length; k++) {
+            resultsTable.addValue(names[k], imageRatios.getFactor(k));
+        }
+    }
+
+    // A background subtracted copy of a channel.
+    private float[] getChannel(ImagePlus image, int offset, int nChannels, int channel) {
+        int slice = slices[channel];
+        if (slice < 1 || slice > nChannels) {
+            throw new IllegalArgumentException("Image " + image.getTitle() + " has no channel " + slice + ".");
+        }
+        ImageProcessor ip = image.getStack().getProcessor(offset + slice);
+        ip.setCalibrationTable(image.getCalibration().getCTable());
+        float[] pixels = (float[]) ip.convertToFloatProcessor().getPixels();
+        if (pixels == ip.getPixels()) {
+            pixels = pixels.clone();
+        }
+        BackgroundSubtractor.subtract(pixels, background[channel]);
+        return pixels;
+    }
+
+    /**
+     * The calculator of the pooled factors.
+     */
+    public RatioCalculator getRatioCalculator() {
+        return ratioCalculator;
+    }
+
+    /**
+     * Number of pixels counted in all images.
+     */
+    public long getCount() {
+        return ratioCalculator.getCount();
+    }
+
+    /**
+     * Estimate of a factor (an index of getFactorNames) over all images.
+     */
+    public double getFactor(int factor) {
+        return ratioCalculator.getFactor(factor);
+    }
+
+    /**
+     * Returns a table with the factors of every image added so far, and of
+     * all images pooled in the last row.
+     */
+    public ResultsTable getResultsTable() {
+        ResultsTable table = (ResultsTable) resultsTable.clone();
+        String[] names = getFactorNames();
+        table.incrementCounter();
+        table.addValue("Image", "Pooled");
+        table.addValue("Pixels", getCount());
+        for (int k = 0; k < names.length; k++) {
+            table.addValue(names[k], getFactor(k));
+        }
+        return table;
+    }
+}
@@ -0,0 +1,429 @@
+/*-
+ * #%L
+ * an ImageJ plugin for intensity-based three-filter set FRET.
+ * %%
+ * Copyright (C) 2009 - 2023 RiFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Calculates correction factors as estimates of pixel-wise channel ratios,
+ * as needed for the spectral and autofluorescence correction factors. Every
+ * ratio has the same denominator channel. A pixel is counted only if none of
+ * its ratios is NaN. The pixels are read once, directly from the pixel
+ * arrays. Blocks of pixels are summed in double precision in parallel, and
+ * the block sums are added with compensated (Kahan) summation in a fixed
+ * order, so the result does not depend on the number of threads and stays
+ * accurate for any number of pixels. Several images can be added to pool
+ * their pixels.
+ * <p>
+ * Besides the mean of the ratios, the intensity-weighted mean (the ratio of
+ * the channel sums) is always available. The median and the trimmed mean are
+ * estimated from a histogram of the ratios, filled in the same pass if one of
+ * them is the estimator.
+ * <p>
+ * For confidence intervals the pixels are summed in bands of a few rows
+ * instead of fixed blocks, so that even small images have enough bands. The
+ * statistics of every band with counted pixels are kept, and the bands are
+ * resampled with replacement (block bootstrap), so that the correlation of
+ * neighbouring pixels is taken into account.
+ */
+public class RatioCalculator {
+
+    public static final int MEAN = 0;
+    public static final int WEIGHTED_MEAN = 1;
+    public static final int MEDIAN = 2;
+    public static final int TRIMMED_MEAN = 3;
+    public static final String[] ESTIMATORS = {"Mean", "Intensity-weighted mean", "Median", "Trimmed mean (10%)"};
+    /**
+     * The least number of bands with counted pixels for confidence intervals.
+     */
+    public static final int MIN_BOOTSTRAP_BLOCKS = 50;
+
+    // Fraction of the ratios left out at both ends by the trimmed mean.
+    private static final double TRIM_FRACTION = 0.1;
+    private static final int BLOCK_SIZE = 1 << 14;
+    // Rows of a bootstrap band, unless the image is too short for
+    // MIN_BOOTSTRAP_BLOCKS bands.
+    private static final int BOOTSTRAP_BAND_ROWS = 8;
+    private static final int MAX_RATIOS = 3;
+
+    private final int nRatios;
+    private final int estimator;
+    // Sums of the ratios, of the numerators and of the denominator.
+    private final double[] sums;
+    private final double[] compensations;
+    private final double[] numeratorSums;
+    private final double[] numeratorCompensations;
+    private final double[] denominatorSum = new double[1];
+    private final double[] denominatorCompensation = new double[1];
+    private final RatioHistogram[] histograms;
+    private long count;
+    private boolean bootstrap;
+    // Statistics of the blocks for the bootstrap: the block sums with the
+    // pixel count appended, and the non-empty histogram buckets (index, count
+    // pairs) of every ratio.
+    private final List<double[]> blockStatistics = new ArrayList<>();
+    private final List<int[][]> blockBuckets = new ArrayList<>();
+    // Working histograms of the threads, empty between uses.
+    private final ThreadLocal<RatioHistogram[]> resampleHistograms = ThreadLocal.withInitial(this::createHistograms);
+
+    /**
+     * Creates a calculator of 1 to 3 ratios estimated by their mean.
+     */
+    public RatioCalculator(int nRatios) {
+        this(nRatios, MEAN);
+    }
+
+    /**
+     * Creates a calculator of 1 to 3 ratios with the given estimator, one of
+     * MEAN, WEIGHTED_MEAN, MEDIAN and TRIMMED_MEAN.
+     */
+    public RatioCalculator(int nRatios, int estimator) {
+        if (nRatios < 1 || nRatios > MAX_RATIOS) {
+            throw new IllegalArgumentException("1 to " + MAX_RATIOS + " ratios can be calculated.");
+        }
+        this.nRatios = nRatios;
+        this.estimator = estimator;
+        sums = new double[nRatios];
+        compensations = new double[nRatios];
+        numeratorSums = new double[nRatios];
+        numeratorCompensations = new double[nRatios];
+        histograms = usesHistogram() ? createHistograms() : null;
+    }
+
+    private boolean usesHistogram() {
+        return estimator == MEDIAN || estimator == TRIMMED_MEAN;
+    }
+
+    private RatioHistogram[] createHistograms() {
+        RatioHistogram[] newHistograms = new RatioHistogram[nRatios];
+        for (int k = 0; k < nRatios; k++) {
+            newHistograms[k] = new RatioHistogram();
+        }
+        return newHistograms;
+    }
+
+    /**
+     * Keeps the statistics of every block of pixels added from now on, for
+     * bootstrap confidence intervals.
+     */
+    public void setBootstrap(boolean bootstrap) {
+        this.bootstrap = bootstrap;
+    }
+
+    /**
+     * Adds the ratios numerators[k] / denominator of every pixel of images of
+     * the given width.
+     */
+    public void add(float[] denominator, float[][] numerators, int width) {
+        if (numerators.length != nRatios) {
+            throw new IllegalArgumentException(nRatios + " numerator channels are required.");
+        }
+        for (float[] numerator : numerators) {
+            if (numerator.length != denominator.length) {
+                throw new IllegalArgumentException("The channel images have different sizes.");
+            }
+        }
+        int blockSize = bootstrap ? getBootstrapBandRows(denominator.length / width) * width : BLOCK_SIZE;
+        int nBlocks = (denominator.length + blockSize - 1) / blockSize;
+        // Block sums: the ratios, the numerators and the denominator.
+        double[][] blockSums = new double[nBlocks][2 * nRatios + 2];
+        int[][][] buckets = bootstrap && histograms != null ? new int[nBlocks][][] : null;
+        int[] blockCounts = new int[nBlocks];
+        // Histograms are filled per run of blocks, as they are large; their
+        // counts are exact, so the runs do not affect the result.
+        int nRuns = histograms != null ? Math.min(nBlocks, ForkJoinPool.getCommonPoolParallelism()) : nBlocks;
+        RatioHistogram[][] runHistograms = new RatioHistogram[nRuns][];
+        IntStream.range(0, nRuns).parallel().forEach(run -> {
+            runHistograms[run] = histograms != null ? createHistograms() : null;
+            for (int block = run * nBlocks / nRuns; block < (run + 1) * nBlocks / nRuns; block++) {
+                int from = block * blockSize;
+                int to = Math.min(from + blockSize, denominator.length);
+                blockCounts[block] = sumBlock(denominator, numerators, runHistograms[run], from, to, blockSums[block]);
+                if (buckets != null) {
+                    buckets[block] = getBuckets(denominator, numerators, from, to);
+                }
+            }
+        });
+        for (int block = 0; block < nBlocks; block++) {
+            for (int k = 0; k < nRatios; k++) {
+                add(sums, compensations, k, blockSums[block][k]);
+                add(numeratorSums, numeratorCompensations, k, blockSums[block][nRatios + k]);
+            }
+            add(denominatorSum, denominatorCompensation, 0, blockSums[block][2 * nRatios]);
+            count += blockCounts[block];
+            if (bootstrap && blockCounts[block] > 0) {
+                blockSums[block][2 * nRatios + 1] = blockCounts[block];
+                blockStatistics.add(blockSums[block]);
+                if (buckets != null) {
+                    blockBuckets.add(buckets[block]);
+                }
+            }
+        }
+        if (histograms != null) {
+            for (RatioHistogram[] run : runHistograms) {
+                for (int k = 0; k < nRatios; k++) {
+                    histograms[k].add(run[k]);
+                }
+            }
+        }
+    }
+
+    private static int getBootstrapBandRows(int height) {
+        return Math.max(1, Math.min(BOOTSTRAP_BAND_ROWS, height / MIN_BOOTSTRAP_BLOCKS));
+    }
+
+    // The sums are kept in local variables, so the JIT can hold them in
+    // registers; unused numerators are skipped by loop invariant checks.
+    private int sumBlock(float[] denominator, float[][] numerators, RatioHistogram[] blockHistograms, int from, int to, double[] blockSums) {
+        float[] numerator0 = numerators[0];
+        float[] numerator1 = nRatios > 1 ? numerators[1] : null;
+        float[] numerator2 = nRatios > 2 ? numerators[2] : null;
+        double sum0 = 0;
+        double sum1 = 0;
+        double sum2 = 0;
+        double numeratorSum0 = 0;
+        double numeratorSum1 = 0;
+        double numeratorSum2 = 0;
+        double denominatorBlockSum = 0;
+        int blockCount = 0;
+        for (int i = from; i < to; i++) {
+            float ratio0 = numerator0[i] / denominator[i];
+            float ratio1 = numerator1 != null ? numerator1[i] / denominator[i] : 0;
+            float ratio2 = numerator2 != null ? numerator2[i] / denominator[i] : 0;
+            if (ratio0 != ratio0 || ratio1 != ratio1 || ratio2 != ratio2) {
+                continue;
+            }
+            sum0 += ratio0;
+            sum1 += ratio1;
+            sum2 += ratio2;
+            numeratorSum0 += numerator0[i];
+            if (numerator1 != null) {
+                numeratorSum1 += numerator1[i];
+            }
+            if (numerator2 != null) {
+                numeratorSum2 += numerator2[i];
+            }
+            denominatorBlockSum += denominator[i];
+            if (blockHistograms != null) {
+                blockHistograms[0].add(ratio0);
+                if (numerator1 != null) {
+                    blockHistograms[1].add(ratio1);
+                }
+                if (numerator2 != null) {
+                    blockHistograms[2].add(ratio2);
+                }
+            }
+            blockCount++;
+        }
+        double[] ratioSums = {sum0, sum1, sum2};
+        double[] blockNumeratorSums = {numeratorSum0, numeratorSum1, numeratorSum2};
+        for (int k = 0; k < nRatios; k++) {
+            blockSums[k] = ratioSums[k];
+            blockSums[nRatios + k] = blockNumeratorSums[k];
+        }
+        blockSums[2 * nRatios] = denominatorBlockSum;
+        return blockCount;
+    }
+
+    // The histogram buckets of the counted pixels of a block; the ratios of a
+    // block fall into few buckets.
+    private int[][] getBuckets(float[] denominator, float[][] numerators, int from, int to) {
+        RatioHistogram[] blockHistograms = resampleHistograms.get();
+        for (int i = from; i < to; i++) {
+            boolean counted = true;
+            for (int k = 0; k < nRatios; k++) {
+                float ratio = numerators[k][i] / denominator[i];
+                counted &= ratio == ratio;
+            }
+            if (counted) {
+                for (int k = 0; k < nRatios; k++) {
+                    blockHistograms[k].add(numerators[k][i] / denominator[i]);
+                }
+            }
+        }
+        int[][] buckets = new int[nRatios][];
+        for (int k = 0; k < nRatios; k++) {
+            buckets[k] = blockHistograms[k].removeBuckets();
+        }
+        return buckets;
+    }
+
+    // Kahan summation. The compensation is reset for an infinite sum
+    // (division by 0), which would turn it into NaN.
+    private static void add(double[] sums, double[] compensations, int k, double value) {
+        double y = value - compensations[k];
+        double t = sums[k] + y;
+        compensations[k] = Double.isInfinite(t) ? 0 : (t - sums[k]) - y;
+        sums[k] = t;
+    }
+
+    /**
+     * Adds the pixels counted by another calculator of the same ratios and
+     * estimator.
+     */
+    public void add(RatioCalculator other) {
+        if (other.nRatios != nRatios || other.estimator != estimator) {
+            throw new IllegalArgumentException("The calculators have different ratios or estimators.");
+        }
+        for (int k = 0; k < nRatios; k++) {
+            add(sums, compensations, k, other.sums[k]);
+            add(numeratorSums, numeratorCompensations, k, other.numeratorSums[k]);
+            if (histograms != null) {
+                histograms[k].add(other.histograms[k]);
+            }
+        }
+        add(denominatorSum, denominatorCompensation, 0, other.denominatorSum[0]);
+        count += other.count;
+        if (bootstrap) {
+            blockStatistics.addAll(other.blockStatistics);
+            blockBuckets.addAll(other.blockBuckets);
+        }
+    }
+
+    /**
+     * Number of pixels counted so far.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * The estimate of a ratio with the estimator of the calculator; NaN if no
+     * pixel was counted.
+     */
+    public double getFactor(int ratio) {
+        switch (estimator) {
+            case WEIGHTED_MEAN:
+                return getWeightedMean(ratio);
+            case MEDIAN:
+                return histograms[ratio].getQuantile(0.5);
+            case TRIMMED_MEAN:
+                return histograms[ratio].getTrimmedMean(TRIM_FRACTION);
+            default:
+                return getMean(ratio);
+        }
+    }
+
+    /**
+     * Number of bands with counted pixels kept for the bootstrap.
+     */
+    public int getBootstrapBlockCount() {
+        return blockStatistics.size();
+    }
+
+    /**
+     * Returns the 95% confidence interval {lower, upper} of every ratio from
+     * the given number of bootstrap resamples of the bands, with the
+     * estimator of the calculator. The resamples are evaluated in parallel;
+     * the same seed gives the same intervals.
+     *
+     * @throws IllegalStateException if bootstrap was not set before adding
+     * the pixels, or there are less than MIN_BOOTSTRAP_BLOCKS bands with
+     * counted pixels
+     */
+    public double[][] getConfidenceIntervals(int nResamples, long seed) {
+        if (!bootstrap) {
+            throw new IllegalStateException("Bootstrap has to be set before adding pixels.");
+        }
+        if (blockStatistics.size() < MIN_BOOTSTRAP_BLOCKS) {
+            throw new IllegalStateException("Too few bands of pixels (" + blockStatistics.size() + ") for a confidence interval.");
+        }
+        double[][] estimates = new double[nRatios][nResamples];
+        IntStream.range(0, nResamples).parallel().forEach(resample -> {
+            double[] estimate = getResampleEstimate(new SplittableRandom(seed + resample));
+            for (int k = 0; k < nRatios; k++) {
+                estimates[k][resample] = estimate[k];
+            }
+        });
+        double[][] intervals = new double[nRatios][];
+        for (int k = 0; k < nRatios; k++) {
+            Arrays.sort(estimates[k]);
+            intervals[k] = new double[]{estimates[k][(int) (0.025 * (nResamples - 1))], estimates[k][(int) Math.ceil(0.975 * (nResamples - 1))]};
+        }
+        return intervals;
+    }
+
+    private double[] getResampleEstimate(SplittableRandom random) {
+        int nBlocks = blockStatistics.size();
+        double[] resampleSums = new double[2 * nRatios + 2];
+        RatioHistogram[] resampleHistogram = histograms != null ? resampleHistograms.get() : null;
+        for (int i = 0; i < nBlocks; i++) {
+            int block = random.nextInt(nBlocks);
+            double[] statistics = blockStatistics.get(block);
+            for (int j = 0; j < resampleSums.length; j++) {
+                resampleSums[j] += statistics[j];
+            }
+            if (resampleHistogram != null) {
+                int[][] buckets = blockBuckets.get(block);
+                for (int k = 0; k < nRatios; k++) {
+                    for (int j = 0; j < buckets[k].length; j += 2) {
+                        resampleHistogram[k].add(buckets[k][j], buckets[k][j + 1]);
+                    }
+                }
+            }
+        }
+        double[] estimate = new double[nRatios];
+        for (int k = 0; k < nRatios; k++) {
+            switch (estimator) {
+                case WEIGHTED_MEAN:
+                    estimate[k] = resampleSums[nRatios + k] / resampleSums[2 * nRatios];
+                    break;
+                case MEDIAN:
+                    estimate[k] = resampleHistogram[k].getQuantile(0.5);
+                    break;
+                case TRIMMED_MEAN:
+                    estimate[k] = resampleHistogram[k].getTrimmedMean(TRIM_FRACTION);
+                    break;
+                default:
+                    estimate[k] = resampleSums[k] / resampleSums[2 * nRatios + 1];
+                    break;
+            }
+        }
+        if (resampleHistogram != null) {
+            for (RatioHistogram histogram : resampleHistogram) {
+                histogram.clear();
+            }
+        }
+        return estimate;
+    }
+
+    /**
+     * Mean of a ratio over the counted pixels; NaN if no pixel was counted.
+     */
+    public double getMean(int ratio) {
+        return sums[ratio] / count;
+    }
+
+    /**
+     * Sum of the numerator divided by the sum of the denominator over the
+     * counted pixels, i.e. the mean of the ratio weighted by the intensity of
+     * the denominator. Dim pixels, whose ratios are the noisiest, count less.
+     */
+    public double getWeightedMean(int ratio) {
+        return count > 0 ? numeratorSums[ratio] / denominatorSum[0] : Double.NaN;
+    }
+}
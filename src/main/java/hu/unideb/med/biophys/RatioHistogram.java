@@ -0,0 +1,166 @@
+/*-
+ * #%L
+ * an ImageJ plugin for intensity-based three-filter set FRET.
+ * %%
+ * Copyright (C) 2009 - 2023 RiFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of ratios for estimating their quantiles in a single pass. The
+ * buckets are taken from the bits of the float values: 512 buckets for every
+ * power of 2, so a value is represented with a relative error of at most
+ * 0.1%, without computing any logarithm. Values of magnitude below 2^-20 are
+ * counted as 0 and above 2^20 (including infinity) as 2^20. Histograms can be
+ * merged, so parts of the pixels can be counted in parallel.
+ */
+class RatioHistogram {
+
+    private static final int SHIFT = 23 - 9;
+    private static final int MIN_KEY = Float.floatToRawIntBits(0x1p-20f) >> SHIFT;
+    private static final int MAX_KEY = Float.floatToRawIntBits(0x1p20f) >> SHIFT;
+    // Buckets of each sign. The negative buckets come first in decreasing
+    // order of magnitude, then the bucket of 0, then the positive buckets.
+    private static final int N_BUCKETS = MAX_KEY - MIN_KEY;
+
+    private final long[] counts = new long[2 * N_BUCKETS + 1];
+    private long total;
+    // Range of the buckets that may be non-zero, so that sparse histograms
+    // are scanned and cleared quickly.
+    private int minIndex = counts.length;
+    private int maxIndex = -1;
+
+    void add(float value) {
+        add(getIndex(value), 1);
+    }
+
+    void add(int index, long count) {
+        counts[index] += count;
+        total += count;
+        minIndex = Math.min(minIndex, index);
+        maxIndex = Math.max(maxIndex, index);
+    }
+
+    void add(RatioHistogram other) {
+        for (int i = other.minIndex; i <= other.maxIndex; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        minIndex = Math.min(minIndex, other.minIndex);
+        maxIndex = Math.max(maxIndex, other.maxIndex);
+    }
+
+    void clear() {
+        if (maxIndex >= minIndex) {
+            Arrays.fill(counts, minIndex, maxIndex + 1, 0);
+        }
+        total = 0;
+        minIndex = counts.length;
+        maxIndex = -1;
+    }
+
+    /**
+     * Returns the non-empty buckets as (index, count) pairs and clears the
+     * histogram.
+     */
+    int[] removeBuckets() {
+        int length = 0;
+        for (int i = minIndex; i <= maxIndex; i++) {
+            if (counts[i] != 0) {
+                length += 2;
+            }
+        }
+        int[] buckets = new int[length];
+        length = 0;
+        for (int i = minIndex; i <= maxIndex; i++) {
+            if (counts[i] != 0) {
+                buckets[length++] = i;
+                buckets[length++] = (int) counts[i];
+            }
+        }
+        clear();
+        return buckets;
+    }
+
+    static int getIndex(float value) {
+        int key = (Float.floatToRawIntBits(value) & 0x7fffffff) >> SHIFT;
+        if (key < MIN_KEY) {
+            return N_BUCKETS;
+        }
+        int bucket = Math.min(key, MAX_KEY - 1) - MIN_KEY;
+        return value > 0 ? N_BUCKETS + 1 + bucket : N_BUCKETS - 1 - bucket;
+    }
+
+    // The lower (or upper) bound of the values of a bucket.
+    private static double getBound(int index, boolean upper) {
+        if (index == N_BUCKETS) {
+            return 0;
+        }
+        boolean positive = index > N_BUCKETS;
+        int key = MIN_KEY + (positive ? index - N_BUCKETS - 1 : N_BUCKETS - 1 - index);
+        if (positive == upper) {
+            key++;
+        }
+        double bound = Float.intBitsToFloat(key << SHIFT);
+        return positive ? bound : -bound;
+    }
+
+    /**
+     * Returns the value below which the given fraction of the values lie, or
+     * NaN if the histogram is empty. The values of a bucket are taken as
+     * evenly spread over the bucket.
+     */
+    double getQuantile(double fraction) {
+        if (total == 0) {
+            return Double.NaN;
+        }
+        long rank = Math.min(total - 1, (long) (fraction * total));
+        long cumulative = 0;
+        for (int i = minIndex; i <= maxIndex; i++) {
+            if (cumulative + counts[i] > rank) {
+                double lower = getBound(i, false);
+                return lower + (rank - cumulative + 0.5) / counts[i] * (getBound(i, true) - lower);
+            }
+            cumulative += counts[i];
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Returns the mean of the values without the given fraction of the
+     * smallest and of the largest values, or NaN if no value is left.
+     */
+    double getTrimmedMean(double fraction) {
+        long low = (long) (fraction * total);
+        long high = total - low;
+        double sum = 0;
+        long count = 0;
+        long cumulative = 0;
+        for (int i = minIndex; i <= maxIndex && cumulative < high; i++) {
+            long included = Math.min(cumulative + counts[i], high) - Math.max(cumulative, low);
+            if (included > 0) {
+                sum += included * (getBound(i, false) + getBound(i, true)) / 2;
+                count += included;
+            }
+            cumulative += counts[i];
+        }
+        return count > 0 ? sum / count : Double.NaN;
+    }
+}
@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * an ImageJ plugin for intensity-based three-filter set FRET.
+ * %%
+ * Copyright (C) 2009 - 2023 RiFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.VirtualStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Virtual stack of pixel-wise channel ratio images, one slice for every
+ * numerator channel. A slice is only calculated when it is displayed or
+ * processed, from the current pixels of the channels, so the ratio images
+ * take no memory until they are looked at. The ratios are live, not a
+ * snapshot: they follow later changes of the channel images, e.g. background
+ * subtraction, so the slice labels are marked as live.
+ */
+public class RatioStack extends VirtualStack {
+
+    private final float[] denominator;
+    private final float[][] numerators;
+    private final String[] labels;
+
+    public RatioStack(int width, int height, float[] denominator, float[][] numerators, String[] labels) {
+        super(width, height);
+        this.denominator = denominator;
+        this.numerators = numerators;
+        this.labels = labels;
+        setBitDepth(32);
+    }
+
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        float[] numerator = numerators[n - 1];
+        float[] ratio = new float[denominator.length];
+        for (int i = 0; i < ratio.length; i++) {
+            ratio[i] = numerator[i] / denominator[i];
+        }
+        return new FloatProcessor(getWidth(), getHeight(), ratio);
+    }
+
+    @Override
+    public Object getPixels(int n) {
+        return getProcessor(n).getPixels();
+    }
+
+    @Override
+    public int getSize() {
+        return numerators.length;
+    }
+
+    @Override
+    public int size() {
+        return getSize();
+    }
+
+    @Override
+    public String getSliceLabel(int n) {
+        return labels[n - 1] + " (live)";
+    }
+}
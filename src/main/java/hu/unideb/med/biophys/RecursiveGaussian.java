@@ -0,0 +1,157 @@
+/*-
+ * #%L
+ * an ImageJ plugin for intensity-based three-filter set FRET.
+ * %%
+ * Copyright (C) 2009 - 2023 RiFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+/**
+ * Recursive approximation of the Gaussian blur after Young and van Vliet
+ * (Signal Processing 44, 1995). Each row and column is filtered forward and
+ * backward with a third-order IIR filter, so the cost per pixel does not
+ * depend on sigma. Pixels outside the image are taken as equal to the
+ * nearest edge pixel, as in ImageJ's GaussianBlur; the backward pass starts
+ * from the exact boundary values of Triggs and Sdika (IEEE Trans. Signal
+ * Process. 54, 2006).
+ */
+public class RecursiveGaussian {
+
+    /**
+     * The smallest sigma the filter coefficients are defined for.
+     */
+    public static final double MIN_SIGMA = 0.5;
+
+    private final double b;
+    private final double a1;
+    private final double a2;
+    private final double a3;
+    // Boundary matrix of the backward pass, multiplied by b.
+    private final double[] m = new double[9];
+
+    public RecursiveGaussian(double sigma) {
+        if (sigma < MIN_SIGMA) {
+            throw new IllegalArgumentException("Sigma has to be at least " + MIN_SIGMA + ".");
+        }
+        double q = sigma >= 2.5 ? 0.98711 * sigma - 0.96330 : 3.97156 - 4.14554 * Math.sqrt(1 - 0.26891 * sigma);
+        double q2 = q * q;
+        double q3 = q2 * q;
+        double b0 = 1.57825 + 2.44413 * q + 1.4281 * q2 + 0.422205 * q3;
+        a1 = (2.44413 * q + 2.85619 * q2 + 1.26661 * q3) / b0;
+        a2 = -(1.4281 * q2 + 1.26661 * q3) / b0;
+        a3 = 0.422205 * q3 / b0;
+        b = 1 - (a1 + a2 + a3);
+
+        double f = b / ((1 + a1 - a2 + a3) * (1 - a1 - a2 - a3) * (1 + a2 + (a1 - a3) * a3));
+        m[0] = f * (-a3 * a1 + 1 - a3 * a3 - a2);
+        m[1] = f * (a3 + a1) * (a2 + a3 * a1);
+        m[2] = f * a3 * (a1 + a3 * a2);
+        m[3] = f * (a1 + a3 * a2);
+        m[4] = -f * (a2 - 1) * (a2 + a3 * a1);
+        m[5] = -f * a3 * (a3 * a1 + a3 * a3 + a2 - 1);
+        m[6] = f * (a3 * a1 + a2 + a1 * a1 - a2 * a2);
+        m[7] = f * (a1 * a2 + a3 * a2 * a2 - a1 * a3 * a3 - a3 * a3 * a3 - a3 * a2 + a3);
+        m[8] = f * a3 * (a1 + a3 * a2);
+    }
+
+    /**
+     * Blurs a row-major image in place. Lines shorter than 3 pixels are left
+     * unchanged.
+     */
+    public void blur(float[] pixels, int width, int height) {
+        if (width >= 3) {
+            for (int y = 0; y < height; y++) {
+                blurRow(pixels, y * width, width);
+            }
+        }
+        if (height >= 3) {
+            blurColumns(pixels, width, height);
+        }
+    }
+
+    private void blurRow(float[] pixels, int offset, int width) {
+        int last = offset + width - 1;
+        double first = pixels[offset];
+        double edge = pixels[last];
+        double w1 = first;
+        double w2 = first;
+        double w3 = first;
+        for (int x = offset; x <= last; x++) {
+            double value = b * pixels[x] + a1 * w1 + a2 * w2 + a3 * w3;
+            pixels[x] = (float) value;
+            w3 = w2;
+            w2 = w1;
+            w1 = value;
+        }
+        double d1 = w1 - edge;
+        double d2 = w2 - edge;
+        double d3 = w3 - edge;
+        w1 = edge + m[0] * d1 + m[1] * d2 + m[2] * d3;
+        w2 = edge + m[3] * d1 + m[4] * d2 + m[5] * d3;
+        w3 = edge + m[6] * d1 + m[7] * d2 + m[8] * d3;
+        pixels[last] = (float) w1;
+        for (int x = last - 1; x >= offset; x--) {
+            double value = b * pixels[x] + a1 * w1 + a2 * w2 + a3 * w3;
+            pixels[x] = (float) value;
+            w3 = w2;
+            w2 = w1;
+            w1 = value;
+        }
+    }
+
+    // The columns are filtered together, row by row, so the image is read
+    // in memory order.
+    private void blurColumns(float[] pixels, int width, int height) {
+        int lastRow = (height - 1) * width;
+        float[] edge = new float[width];
+        System.arraycopy(pixels, lastRow, edge, 0, width);
+        double[] w1 = new double[width];
+        double[] w2 = new double[width];
+        double[] w3 = new double[width];
+        for (int x = 0; x < width; x++) {
+            w1[x] = pixels[x];
+            w2[x] = pixels[x];
+            w3[x] = pixels[x];
+        }
+        for (int y = 0; y < height; y++) {
+            filterRow(pixels, y * width, width, w1, w2, w3);
+        }
+        for (int x = 0; x < width; x++) {
+            double d1 = w1[x] - edge[x];
+            double d2 = w2[x] - edge[x];
+            double d3 = w3[x] - edge[x];
+            w1[x] = edge[x] + m[0] * d1 + m[1] * d2 + m[2] * d3;
+            w2[x] = edge[x] + m[3] * d1 + m[4] * d2 + m[5] * d3;
+            w3[x] = edge[x] + m[6] * d1 + m[7] * d2 + m[8] * d3;
+            pixels[lastRow + x] = (float) w1[x];
+        }
+        for (int y = height - 2; y >= 0; y--) {
+            filterRow(pixels, y * width, width, w1, w2, w3);
+        }
+    }
+
+    private void filterRow(float[] pixels, int offset, int width, double[] w1, double[] w2, double[] w3) {
+        for (int x = 0; x < width; x++) {
+            double value = b * pixels[offset + x] + a1 * w1[x] + a2 * w2[x] + a3 * w3[x];
+            pixels[offset + x] = (float) value;
+            w3[x] = w2[x];
+            w2[x] = w1[x];
+            w1[x] = value;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*-
+ * #%L
+ * an ImageJ plugin for intensity-based three-filter set FRET.
+ * %%
+ * Copyright (C) 2009 - 2023 RiFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Registration offsets of the transfer and acceptor channels stored in a CSV
+ * file, one record for every instrument setup. The misalignment of the
+ * channels is a property of the optical path, so the offsets found once can
+ * be applied to every image taken with the same setup.
+ */
+public class RegistrationCache {
+
+    public static final String[] HEADERS = {"SETUP", "WIDTH", "HEIGHT", "TRANSFER_DX", "TRANSFER_DY", "ACCEPTOR_DX", "ACCEPTOR_DY"};
+
+    private final Map<String, Offsets> offsets = new LinkedHashMap<>();
+
+    /**
+     * Loads the offsets from a CSV file with a header line. A missing file is
+     * taken as an empty cache.
+     */
+    public static RegistrationCache load(String path) throws IOException {
+        RegistrationCache cache = new RegistrationCache();
+        if (!new File(path).exists()) {
+            return cache;
+        }
+        try (Reader in = Files.newBufferedReader(Paths.get(path))) {
+            Iterable<CSVRecord> records = CSVFormat.DEFAULT
+                    .withIgnoreHeaderCase()
+                    .withIgnoreSurroundingSpaces()
+                    .withFirstRecordAsHeader().parse(in);
+            for (CSVRecord record : records) {
+                try {
+                    cache.put(record.get("SETUP"), new Offsets(Integer.parseInt(record.get("WIDTH")), Integer.parseInt(record.get("HEIGHT")),
+                            new double[]{Double.parseDouble(record.get("TRANSFER_DX")), Double.parseDouble(record.get("TRANSFER_DY"))},
+                            new double[]{Double.parseDouble(record.get("ACCEPTOR_DX")), Double.parseDouble(record.get("ACCEPTOR_DY"))}));
+                } catch (IllegalArgumentException ex) {
+                    throw new IOException("Invalid registration offsets in line " + record.getRecordNumber() + ".", ex);
+                }
+            }
+        }
+        return cache;
+    }
+
+    public void save(String path) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(Paths.get(path))) {
+            CSVPrinter printer = CSVFormat.DEFAULT
+                    .withIgnoreSurroundingSpaces()
+                    .withHeader(HEADERS).print(writer);
+            for (Map.Entry<String, Offsets> entry : offsets.entrySet()) {
+                Offsets setupOffsets = entry.getValue();
+                printer.printRecord(entry.getKey(), setupOffsets.getWidth(), setupOffsets.getHeight(),
+                        setupOffsets.getTransferShift()[0], setupOffsets.getTransferShift()[1],
+                        setupOffsets.getAcceptorShift()[0], setupOffsets.getAcceptorShift()[1]);
+            }
+            printer.flush();
+        }
+    }
+
+    /**
+     * Returns the offsets of the setup, or null if they are not cached.
+     */
+    public Offsets get(String setup) {
+        return offsets.get(setup.trim());
+    }
+
+    public void put(String setup, Offsets setupOffsets) {
+        offsets.put(setup.trim(), setupOffsets);
+    }
+
+    /**
+     * Shifts that move the transfer and acceptor channels onto the donor
+     * channel, for images of the given size.
+     */
+    public static class Offsets {
+
+        private final int width;
+        private final int height;
+        private final double[] transferShift;
+        private final double[] acceptorShift;
+
+        public Offsets(int width, int height, double[] transferShift, double[] acceptorShift) {
+            this.width = width;
+            this.height = height;
+            this.transferShift = transferShift;
+            this.acceptorShift = acceptorShift;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public double[] getTransferShift() {
+            return transferShift;
+        }
+
+        public double[] getAcceptorShift() {
+            return acceptorShift;
+        }
+    }
+}
@@ -24,9 +24,9 @@ package hu.unideb.med.biophys;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
-import ij.gui.Roi;
 import ij.io.DirectoryChooser;
 import ij.io.FileSaver;
 import ij.io.OpenDialog;
@@ -39,8 +39,6 @@ import ij.plugin.HyperStackConverter;
 import ij.plugin.StackEditor;
 import ij.plugin.WindowOrganizer;
 import ij.plugin.filter.Analyzer;
-import ij.plugin.filter.GaussianBlur;
-import ij.process.FHT;
 import ij.process.FloatProcessor;
 import ij.process.ImageConverter;
 import ij.process.ImageProcessor;
@@ -65,22 +63,22 @@ import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.Reader;
 import java.io.StringWriter;
-import java.io.Writer;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.text.DecimalFormat;
 import java.time.LocalTime;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.BorderFactory;
+import javax.swing.ButtonGroup;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JCheckBoxMenuItem;
@@ -92,19 +90,18 @@ import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.JRadioButtonMenuItem;
 import javax.swing.JScrollPane;
 import javax.swing.JTextField;
 import javax.swing.JTextPane;
 import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
 import javax.swing.ToolTipManager;
 import javax.swing.text.Style;
 import javax.swing.text.StyleConstants;
 import javax.swing.text.StyleContext;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
-import org.apache.commons.csv.CSVRecord;
-
 public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListener {
 
     private final String imagej2Version = "2.1.0";
@@ -112,6 +109,9 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
     private final String javaVersion = "1.8.0_202";
     private final int windowWidth = 730;
     private final int windowHeight = 820;
+    private final int bootstrapResamples = 2000;
+    // Action commands of the estimators, in the order of RatioCalculator.ESTIMATORS.
+    private final String[] estimatorCommands = {"meanEstimator", "weightedMeanEstimator", "medianEstimator", "trimmedMeanEstimator"};
     private ImagePlus donorInDImage;
     private ImagePlus donorInAImage;
     private ImagePlus acceptorInAImage;
@@ -150,6 +150,11 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
     private JMenuItem tileMenuItem;
     private JMenuItem applyMaskMenuItem;
     private JMenuItem registerMenuItem;
+    private JMenuItem correctDriftMenuItem;
+    private JMenuItem pooledCalibrationMenuItem;
+    private JRadioButtonMenuItem[] estimatorMenuItems;
+    private int factorEstimator = RatioCalculator.MEAN;
+    private JCheckBoxMenuItem bootstrapMenuItem;
     private JMenuItem calculateRatioMenuItem;
     private JMenuItem thresholdMenuItem;
     private JMenuItem lutFireMenuItem;
@@ -222,10 +227,13 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
     private JButton createButton;
     private JButton saveButton;
     private JButton measureButton;
-    private JButton nextButton;
     private JButton closeImagesButton;
     private JCheckBox useImageStacks;
     private JCheckBox correctedImagesCB;
+    private JCheckBox recursiveBlurDDCB;
+    private JCheckBox recursiveBlurDACB;
+    private JCheckBox recursiveBlurAACB;
+    private JCheckBox recursiveBlurAFCB;
     private JCheckBox eRatioCheckbox;
     private JTextField s1Field;
     private JTextField s2Field;
@@ -246,14 +254,14 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
     public JButton calculateAlphaButton;
     private JTextPane log;
     private JScrollPane logScrollPane;
+    private JPanel taskPanel;
+    private JProgressBar progressBar;
+    private JButton cancelTaskButton;
+    private BackgroundTask currentTask;
     private final DateTimeFormatter dateTimeFormat;
     private final DateTimeFormatter timeStampFormat;
     private final DateTimeFormatter timeFormat;
-    private File[] automaticallyProcessedFiles = null;
-    private int currentlyProcessedFile = 0;
-    private String currentlyProcessedFileName = null;
     private String currentDirectory = null;
-    private String outputPath = null;
     public Color originalButtonColor = null;
     public Color greenColor = new Color(142, 207, 125);
     public JCheckBoxMenuItem autofluorescenceCorrectionMenuItem;
@@ -293,6 +301,24 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
         autofluorescenceCorrectionMenuItem.setActionCommand("pwAutofluorescenceCorrection");
         autofluorescenceCorrectionMenuItem.addActionListener(this);
         correctionsMenu.add(autofluorescenceCorrectionMenuItem);
+        pooledCalibrationMenuItem = new JMenuItem("Pooled Calibration...");
+        pooledCalibrationMenuItem.setActionCommand("pooledCalibration");
+        pooledCalibrationMenuItem.addActionListener(this);
+        correctionsMenu.add(pooledCalibrationMenuItem);
+        JMenu estimatorMenu = new JMenu("Correction Factor Estimator");
+        ButtonGroup estimatorGroup = new ButtonGroup();
+        estimatorMenuItems = new JRadioButtonMenuItem[RatioCalculator.ESTIMATORS.length];
+        for (int estimator = 0; estimator < estimatorMenuItems.length; estimator++) {
+            estimatorMenuItems[estimator] = new JRadioButtonMenuItem(RatioCalculator.ESTIMATORS[estimator], estimator == factorEstimator);
+            estimatorMenuItems[estimator].setActionCommand(estimatorCommands[estimator]);
+            estimatorMenuItems[estimator].addActionListener(this);
+            estimatorGroup.add(estimatorMenuItems[estimator]);
+            estimatorMenu.add(estimatorMenuItems[estimator]);
+        }
+        correctionsMenu.add(estimatorMenu);
+        bootstrapMenuItem = new JCheckBoxMenuItem("Bootstrap Confidence Intervals of Factors");
+        bootstrapMenuItem.setSelected(false);
+        correctionsMenu.add(bootstrapMenuItem);
         helpMenu = new JMenu("Help");
         menuBar.add(helpMenu);
         openMenuItem = new JMenuItem("Open...");
@@ -355,6 +381,10 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
         registerMenuItem.setActionCommand("registerTransferCh");
         registerMenuItem.addActionListener(this);
         imageMenu.add(registerMenuItem);
+        correctDriftMenuItem = new JMenuItem("Correct Drift of Stacks");
+        correctDriftMenuItem.setActionCommand("correctDrift");
+        correctDriftMenuItem.addActionListener(this);
+        imageMenu.add(correctDriftMenuItem);
         calculateRatioMenuItem = new JMenuItem("Calculate Ratio of Images...");
         calculateRatioMenuItem.setActionCommand("calculateRatio");
         calculateRatioMenuItem.addActionListener(this);
@@ -796,11 +826,18 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
         smoothDonorInDImageButton = new JButton("Blur");
         smoothDonorInDImageButton.addActionListener(this);
         smoothDonorInDImageButton.setActionCommand("smoothDD");
-        gc.gridwidth = GridBagConstraints.REMAINDER;
+        gc.gridwidth = 1;
         gc.gridx = 10;
         gc.gridy = 17;
         container.add(smoothDonorInDImageButton, gc);
 
+        recursiveBlurDDCB = new JCheckBox("Recursive", false);
+        recursiveBlurDDCB.setToolTipText("Recursive Gaussian filter: faster for large sigmas, slightly less accurate");
+        gc.gridwidth = GridBagConstraints.REMAINDER;
+        gc.gridx = 11;
+        gc.gridy = 17;
+        container.add(recursiveBlurDDCB, gc);
+
         // Step 2b: Blur transfer channel
         gc.gridwidth = 9;
         gc.gridx = 0;
@@ -817,11 +854,18 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
         smoothDonorInAImageButton = new JButton("Blur");
         smoothDonorInAImageButton.addActionListener(this);
         smoothDonorInAImageButton.setActionCommand("smoothDA");
-        gc.gridwidth = GridBagConstraints.REMAINDER;
+        gc.gridwidth = 1;
         gc.gridx = 10;
         gc.gridy = 18;
         container.add(smoothDonorInAImageButton, gc);
 
+        recursiveBlurDACB = new JCheckBox("Recursive", false);
+        recursiveBlurDACB.setToolTipText("Recursive Gaussian filter: faster for large sigmas, slightly less accurate");
+        gc.gridwidth = GridBagConstraints.REMAINDER;
+        gc.gridx = 11;
+        gc.gridy = 18;
+        container.add(recursiveBlurDACB, gc);
+
         // Step 2c: Blur acceptor channel
         gc.gridwidth = 9;
         gc.gridx = 0;
@@ -838,11 +882,18 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
         smoothAcceptorInAImageButton = new JButton("Blur");
         smoothAcceptorInAImageButton.addActionListener(this);
         smoothAcceptorInAImageButton.setActionCommand("smoothAA");
-        gc.gridwidth = GridBagConstraints.REMAINDER;
+        gc.gridwidth = 1;
         gc.gridx = 10;
         gc.gridy = 19;
         container.add(smoothAcceptorInAImageButton, gc);
 
+        recursiveBlurAACB = new JCheckBox("Recursive", false);
+        recursiveBlurAACB.setToolTipText("Recursive Gaussian filter: faster for large sigmas, slightly less accurate");
+        gc.gridwidth = GridBagConstraints.REMAINDER;
+        gc.gridx = 11;
+        gc.gridy = 19;
+        container.add(recursiveBlurAACB, gc);
+
         // Step 2d: Blur autofluorescence channel
         gc.gridwidth = 9;
         gc.gridx = 0;
@@ -860,15 +911,23 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
         smoothAutofluorescenceImageButton = new JButton("Blur");
         smoothAutofluorescenceImageButton.addActionListener(this);
         smoothAutofluorescenceImageButton.setActionCommand("smoothAF");
-        gc.gridwidth = GridBagConstraints.REMAINDER;
+        gc.gridwidth = 1;
         gc.gridx = 10;
         gc.gridy = 20;
         container.add(smoothAutofluorescenceImageButton, gc);
 
+        recursiveBlurAFCB = new JCheckBox("Recursive", false);
+        recursiveBlurAFCB.setToolTipText("Recursive Gaussian filter: faster for large sigmas, slightly less accurate");
+        gc.gridwidth = GridBagConstraints.REMAINDER;
+        gc.gridx = 11;
+        gc.gridy = 20;
+        container.add(recursiveBlurAFCB, gc);
+
         if (!autofluorescenceCorrectionMenuItem.isSelected()) {
             smoothAutofluorescenceImageLabel.setVisible(false);
             sigmaFieldAF.setVisible(false);
             smoothAutofluorescenceImageButton.setVisible(false);
+            recursiveBlurAFCB.setVisible(false);
         }
 
         // Separator panel 3
@@ -1301,15 +1360,6 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
         gc.gridy = 42;
         gc.gridwidth = 6;
         container.add(measureButton, gc);
-        nextButton = new JButton("Next");
-        nextButton.setMargin(new Insets(2, 2, 2, 2));
-        nextButton.addActionListener(this);
-        nextButton.setActionCommand("nextImage");
-        gc.gridx = 16;
-        gc.gridy = 42;
-        gc.gridwidth = GridBagConstraints.REMAINDER;
-        container.add(nextButton, gc);
-        nextButton.setVisible(false);
 
         // Log panel
         gc.weighty = 20;
@@ -1330,7 +1380,18 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
         logScrollPane = new JScrollPane(log);
         logScrollPane.setBorder(BorderFactory.createTitledBorder("Messages"));
         logScrollPane.setPreferredSize(new Dimension(10, 60));
-        contentPane.add(logScrollPane, BorderLayout.SOUTH);
+        progressBar = new JProgressBar(0, 100);
+        cancelTaskButton = new JButton("Cancel");
+        cancelTaskButton.setActionCommand("cancelTask");
+        cancelTaskButton.addActionListener(this);
+        taskPanel = new JPanel(new BorderLayout());
+        taskPanel.add(progressBar, BorderLayout.CENTER);
+        taskPanel.add(cancelTaskButton, BorderLayout.EAST);
+        taskPanel.setVisible(false);
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        bottomPanel.add(logScrollPane, BorderLayout.CENTER);
+        bottomPanel.add(taskPanel, BorderLayout.SOUTH);
+        contentPane.add(bottomPanel, BorderLayout.SOUTH);
 
         // Main scrollpane
         mainScrollPane.setViewportView(container);
@@ -1339,8 +1400,18 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
 
     @Override
     public void actionPerformed(ActionEvent e) {
+        if (!e.getActionCommand().equals("cancelTask") && isTaskRunning()) {
+            // Undo the selection of a refused estimator.
+            estimatorMenuItems[factorEstimator].setSelected(true);
+            return;
+        }
         try {
             switch (e.getActionCommand()) {
+                case "cancelTask":
+                    if (currentTask != null) {
+                        currentTask.cancel(true);
+                    }
+                    break;
                 case "exit":
                     exit();
                     break;
@@ -1365,83 +1436,45 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                     }
                     String path = directory + name;
                     try {
-                        Reader in = new FileReader(path);
-                        Iterable<CSVRecord> records = CSVFormat.DEFAULT
-                                .withIgnoreHeaderCase()
-                                .withIgnoreSurroundingSpaces()
-                                .withFirstRecordAsHeader().parse(in);
-                        for (CSVRecord record : records) {
-                            String s1 = record.get("S1");
-                            String s2 = record.get("S2");
-                            String s3 = record.get("S3");
-                            String s4 = record.get("S4");
-                            String alpha = record.get("ALPHA");
-
-                            if (autofluorescenceCorrectionMenuItem.isEnabled()) {
-                                String s5 = record.get("S5");
-                                String s6 = record.get("S6");
-                                String b1 = record.get("B1");
-                                String b2 = record.get("B2");
-                                String b3 = record.get("B3");
-                                String eRatio = record.get("EPSRAT");
-
-                                String blurAF = record.get("BLUR_AF");
-                                String ibgAF = record.get("IBG_AF");
-                                String thresholdAFMin = record.get("THRES_AF_MIN");
-                                String thresholdAFMax = record.get("THRES_AF_MAX");
-
-                                setS5Factor(s5);
-                                setS6Factor(s6);
-                                setB1Factor(b1);
-                                setB2Factor(b2);
-                                setB3Factor(b3);
-                                setERatio(eRatio);
-
-                                sigmaFieldAF.setText(blurAF);
-                                autoflAFField.setText(ibgAF);
-                                thresholdAFMinField.setText(thresholdAFMin);
-                                thresholdAFMaxField.setText(thresholdAFMax);
-                            }
-                            String blurD = record.get("BLUR_D");
-                            String blurT = record.get("BLUR_T");
-                            String blurA = record.get("BlUR_A");
-
-                            String ibgD = record.get("IBG_D");
-                            String ibgT = record.get("IBG_T");
-                            String ibgA = record.get("IBG_A");
-
-                            String thresholdDonorMin = record.get("THRES_D_MIN");
-                            String thresholdDonorMax = record.get("THRES_D_MAX");
-                            String thresholdTransferMin = record.get("THRES_T_MIN");
-                            String thresholdTransferMax = record.get("THRES_T_MAX");
-                            String thresholdAcceptorMin = record.get("THRES_A_MIN");
-                            String thresholdAcceptorMax = record.get("THRES_A_MAX");
-                            String thresholdFretMin = record.get("THRES_FRET_MIN");
-                            String thresholdFretMax = record.get("THRES_FRET_MAX");
-
-                            setS1Factor(s1);
-                            setS2Factor(s2);
-                            setS3Factor(s3);
-                            setS4Factor(s4);
-                            setAlphaFactor(alpha);
-
-                            sigmaFieldDD.setText(blurD);
-                            sigmaFieldDA.setText(blurT);
-                            sigmaFieldAA.setText(blurA);
-
-                            autoflDInDField.setText(ibgD);
-                            autoflAInDField.setText(ibgT);
-                            autoflAInAField.setText(ibgA);
-
-                            thresholdDonorMinField.setText(thresholdDonorMin);
-                            thresholdDonorMaxField.setText(thresholdDonorMax);
-                            thresholdTransferMinField.setText(thresholdTransferMin);
-                            thresholdTransferMaxField.setText(thresholdTransferMax);
-                            thresholdAcceptorMinField.setText(thresholdAcceptorMin);
-                            thresholdAcceptorMaxField.setText(thresholdAcceptorMax);
-                            thresholdFretMinField.setText(thresholdFretMin);
-                            thresholdFretMaxField.setText(thresholdFretMax);
+                        FretParameters parameters = FretParameters.load(path);
+                        setS1Factor(parameters.get("S1"));
+                        setS2Factor(parameters.get("S2"));
+                        setS3Factor(parameters.get("S3"));
+                        setS4Factor(parameters.get("S4"));
+                        setAlphaFactor(parameters.get("ALPHA"));
+                        if (autofluorescenceCorrectionMenuItem.isEnabled()) {
+                            setS5Factor(parameters.get("S5"));
+                            setS6Factor(parameters.get("S6"));
+                            setB1Factor(parameters.get("B1"));
+                            setB2Factor(parameters.get("B2"));
+                            setB3Factor(parameters.get("B3"));
+                            setERatio(parameters.get("EPSRAT"));
+
+                            sigmaFieldAF.setText(parameters.get("BLUR_AF"));
+                            recursiveBlurAFCB.setSelected(Boolean.parseBoolean(parameters.get("RECURSIVE_BLUR_AF")));
+                            autoflAFField.setText(parameters.get("IBG_AF"));
+                            thresholdAFMinField.setText(parameters.get("THRES_AF_MIN"));
+                            thresholdAFMaxField.setText(parameters.get("THRES_AF_MAX"));
                         }
+                        sigmaFieldDD.setText(parameters.get("BLUR_D"));
+                        sigmaFieldDA.setText(parameters.get("BLUR_T"));
+                        sigmaFieldAA.setText(parameters.get("BLUR_A"));
+                        recursiveBlurDDCB.setSelected(Boolean.parseBoolean(parameters.get("RECURSIVE_BLUR_D")));
+                        recursiveBlurDACB.setSelected(Boolean.parseBoolean(parameters.get("RECURSIVE_BLUR_T")));
+                        recursiveBlurAACB.setSelected(Boolean.parseBoolean(parameters.get("RECURSIVE_BLUR_A")));
+
+                        autoflDInDField.setText(parameters.get("IBG_D"));
+                        autoflAInDField.setText(parameters.get("IBG_T"));
+                        autoflAInAField.setText(parameters.get("IBG_A"));
+
+                        thresholdDonorMinField.setText(parameters.get("THRES_D_MIN"));
+                        thresholdDonorMaxField.setText(parameters.get("THRES_D_MAX"));
+                        thresholdTransferMinField.setText(parameters.get("THRES_T_MIN"));
+                        thresholdTransferMaxField.setText(parameters.get("THRES_T_MAX"));
+                        thresholdAcceptorMinField.setText(parameters.get("THRES_A_MIN"));
+                        thresholdAcceptorMaxField.setText(parameters.get("THRES_A_MAX"));
+                        thresholdFretMinField.setText(parameters.get("THRES_FRET_MIN"));
+                        thresholdFretMaxField.setText(parameters.get("THRES_FRET_MAX"));
                         log("Loaded parameters from: " + path);
                     } catch (IOException ioe) {
                         logError("Could not load parameters from: " + path);
@@ -1457,70 +1490,7 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                     }
                     String path = directory + name;
                     try {
-                        Writer writer = Files.newBufferedWriter(Paths.get(path));
-                        CSVPrinter printer = CSVFormat.DEFAULT
-                                .withIgnoreSurroundingSpaces()
-                                .withHeader(
-                                        "S1",
-                                        "S2",
-                                        "S3",
-                                        "S4",
-                                        "S5",
-                                        "S6",
-                                        "B1",
-                                        "B2",
-                                        "B3",
-                                        "EPSRAT",
-                                        "ALPHA",
-                                        "BLUR_D",
-                                        "BLUR_T",
-                                        "BLUR_A",
-                                        "BLUR_AF",
-                                        "IBG_D",
-                                        "IBG_T",
-                                        "IBG_A",
-                                        "IBG_AF",
-                                        "THRES_D_MIN",
-                                        "THRES_D_MAX",
-                                        "THRES_T_MIN",
-                                        "THRES_T_MAX",
-                                        "THRES_A_MIN",
-                                        "THRES_A_MAX",
-                                        "THRES_AF_MIN",
-                                        "THRES_AF_MAX",
-                                        "THRES_FRET_MIN",
-                                        "THRES_FRET_MAX").print(writer);
-                        printer.printRecord(
-                                getS1Factor(),
-                                getS2Factor(),
-                                getS3Factor(),
-                                getS4Factor(),
-                                getS5Factor(),
-                                getS6Factor(),
-                                getB1Factor(),
-                                getB2Factor(),
-                                getB3Factor(),
-                                eRatioField.getText(),
-                                alphaField.getText(),
-                                sigmaFieldDD.getText(),
-                                sigmaFieldDA.getText(),
-                                sigmaFieldAA.getText(),
-                                sigmaFieldAF.getText(),
-                                autoflDInDField.getText(),
-                                autoflAInDField.getText(),
-                                autoflAInAField.getText(),
-                                autoflAFField.getText(),
-                                thresholdDonorMinField.getText(),
-                                thresholdDonorMaxField.getText(),
-                                thresholdTransferMinField.getText(),
-                                thresholdTransferMaxField.getText(),
-                                thresholdAcceptorMinField.getText(),
-                                thresholdAcceptorMaxField.getText(),
-                                thresholdAFMinField.getText(),
-                                thresholdAFMaxField.getText(),
-                                thresholdFretMinField.getText(),
-                                thresholdFretMaxField.getText());
-                        printer.flush();
+                        getParameters().save(path);
                         log("Saved parameters to: " + path);
                     } catch (IOException ioe) {
                         logError("Could not save parameters to: " + path);
@@ -1540,116 +1510,211 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                     applyMaskRiDialog.setVisible(true);
                     break;
                 case "registerTransferCh":
+                case "registerAcceptorCh": {
+                    boolean transfer = e.getActionCommand().equals("registerTransferCh");
                     if (donorInDImage == null) {
                         logError("No image is set as donor channel.");
-                    } else if (donorInAImage == null) {
+                        return;
+                    } else if (transfer && donorInAImage == null) {
                         logError("No image is set as transfer channel.");
-                    } else {
-                        FHT fht1 = new FHT(donorInDImage.getProcessor().duplicate());
-                        fht1.setShowProgress(false);
-                        fht1.transform();
-                        FHT fht2 = new FHT(donorInAImage.getProcessor().duplicate());
-                        fht2.setShowProgress(false);
-                        fht2.transform();
-                        FHT res = fht1.conjugateMultiply(fht2);
-                        res.setShowProgress(false);
-                        res.inverseTransform();
-                        ImagePlus image = new ImagePlus("Result of registration", res);
-                        ImageProcessor ip = image.getProcessor();
-                        int width = ip.getWidth();
-                        int height = ip.getHeight();
-                        int maximum = 0;
-                        int maxx = -1;
-                        int maxy = -1;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                if (ip.getPixel(i, j) > maximum) {
-                                    maximum = ip.getPixel(i, j);
-                                    maxx = i;
-                                    maxy = j;
-                                }
-                            }
+                        return;
+                    } else if (!transfer && acceptorInAImage == null) {
+                        logError("No image is set as acceptor channel.");
+                        return;
+                    }
+                    int nSlices = donorInDImage.getImageStackSize();
+                    if ((transfer && donorInAImage.getImageStackSize() != nSlices) || (acceptorInAImage != null && acceptorInAImage.getImageStackSize() != nSlices)) {
+                        logError("The channels have different numbers of slices.");
+                        return;
+                    }
+                    boolean perSlice = false;
+                    if (nSlices > 1) {
+                        GenericDialog gd = new GenericDialog("Register Stacks");
+                        gd.addCheckbox("Find the shift of every slice (otherwise of the current slice)", true);
+                        gd.showDialog();
+                        if (gd.wasCanceled()) {
+                            return;
                         }
-                        int shiftX = 0;
-                        int shiftY = 0;
-                        if (maxx != 0 || maxy != 0) {
-                            ShiftDialogRi sd = new ShiftDialogRi(this);
-                            if (maxy > height / 2) {
-                                log("Shifting transfer channel image up " + (height - maxy) + " pixel" + ((height - maxy) > 1 ? "s" : "") + ".");
-                                sd.shiftUp(donorInAImage, height - maxy);
-                            } else if (maxy != 0) {
-                                log("Shifting transfer channel image down " + maxy + " pixel" + (maxy > 1 ? "s" : "") + ".");
-                                sd.shiftDown(donorInAImage, maxy);
-                            }
-                            if (maxx > width / 2) {
-                                log("Shifting transfer channel image to the left " + (width - maxx) + " pixel" + ((width - maxx) > 1 ? "s" : "") + ".");
-                                sd.shiftLeft(donorInAImage, width - maxx);
-                            } else if (maxx != 0) {
-                                log("Shifting transfer channel image to the right " + maxx + " pixel" + (maxx > 1 ? "s" : "") + ".");
-                                sd.shiftRight(donorInAImage, maxx);
-                            }
-                            actionPerformed(new ActionEvent(registerMenuItem, 1, "registerTransferCh"));
+                        perSlice = gd.getNextBoolean();
+                    }
+                    int currentSlice = donorInDImage.getCurrentSlice();
+                    boolean registerEverySlice = perSlice;
+                    runTask("Registration", task -> {
+                        ResultsTable registrationTable = new ResultsTable();
+                        List<ImageStack> stacks = new ArrayList<>();
+                        if (transfer) {
+                            stacks.add(donorInAImage.getStack());
+                        }
+                        if (acceptorInAImage != null) {
+                            stacks.add(acceptorInAImage.getStack());
+                        }
+                        double[][][] shifts = findRegistrationShifts(stacks.toArray(new ImageStack[0]), registerEverySlice, currentSlice);
+                        task.checkCancelled();
+                        if (transfer) {
+                            registerChannel(donorInAImage, "transfer", shifts[0], registerEverySlice, registrationTable);
+                        }
+                        if (acceptorInAImage != null) {
+                            registerChannel(acceptorInAImage, "acceptor", shifts[shifts.length - 1], registerEverySlice, registrationTable);
                         } else {
-                            log("Registration of transfer channel has been finished.");
-                            actionPerformed(new ActionEvent(registerMenuItem, 1, "registerAcceptorCh"));
+                            logError("No image is set as acceptor channel.");
                         }
-                    }
+                        return () -> {
+                            if (transfer) {
+                                donorInAImage.updateAndDraw();
+                            }
+                            if (acceptorInAImage != null) {
+                                acceptorInAImage.updateAndDraw();
+                            }
+                            if (nSlices > 1) {
+                                registrationTable.show("Registration");
+                            }
+                        };
+                    });
                     break;
-                case "registerAcceptorCh":
+                }
+                case "correctDrift": {
                     if (donorInDImage == null) {
                         logError("No image is set as donor channel.");
-                    } else if (acceptorInAImage == null) {
-                        logError("No image is set as acceptor channel.");
-                    } else {
-                        FHT fht1 = new FHT(donorInDImage.getProcessor().duplicate());
-                        fht1.setShowProgress(false);
-                        fht1.transform();
-                        FHT fht2 = new FHT(acceptorInAImage.getProcessor().duplicate());
-                        fht2.setShowProgress(false);
-                        fht2.transform();
-                        FHT res = fht1.conjugateMultiply(fht2);
-                        res.setShowProgress(false);
-                        res.inverseTransform();
-                        ImagePlus image = new ImagePlus("Result of registration", res);
-                        ImageProcessor ip = image.getProcessor();
-                        int width = ip.getWidth();
-                        int height = ip.getHeight();
-                        int maximum = 0;
-                        int maxx = -1;
-                        int maxy = -1;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                if (ip.getPixel(i, j) > maximum) {
-                                    maximum = ip.getPixel(i, j);
-                                    maxx = i;
-                                    maxy = j;
-                                }
+                        return;
+                    } else if (donorInDImage.getImageStackSize() < 2) {
+                        logError("Drift can only be corrected for stacks.");
+                        return;
+                    }
+                    ImagePlus[] channels = {donorInDImage, donorInAImage, acceptorInAImage, autofluorescenceImage};
+                    for (ImagePlus channel : channels) {
+                        if (channel != null && channel.getImageStackSize() != donorInDImage.getImageStackSize()) {
+                            logError("The channels have different numbers of slices.");
+                            return;
+                        }
+                    }
+                    runTask("Drift correction", task -> {
+                        double[][] drift = ChannelRegistration.findDrift(donorInDImage.getStack(), 1);
+                        task.checkCancelled();
+                        for (ImagePlus channel : channels) {
+                            if (channel != null) {
+                                ChannelRegistration.shift(channel.getStack(), drift, Float.NaN);
                             }
                         }
-                        int shiftX = 0;
-                        int shiftY = 0;
-                        if (maxx != 0 || maxy != 0) {
-                            ShiftDialogRi sd = new ShiftDialogRi(this);
-                            if (maxy > height / 2) {
-                                log("Shifting acceptor channel image up " + (height - maxy) + " pixel" + ((height - maxy) > 1 ? "s" : "") + ".");
-                                sd.shiftUp(acceptorInAImage, height - maxy);
-                            } else if (maxy != 0) {
-                                log("Shifting acceptor channel image down " + maxy + " pixel" + (maxy > 1 ? "s" : "") + ".");
-                                sd.shiftDown(acceptorInAImage, maxy);
+                        ResultsTable driftTable = new ResultsTable();
+                        driftTable.setPrecision(3);
+                        for (int i = 0; i < drift.length; i++) {
+                            driftTable.incrementCounter();
+                            driftTable.addValue("Slice", i + 1);
+                            driftTable.addValue("dx", drift[i][0]);
+                            driftTable.addValue("dy", drift[i][1]);
+                        }
+                        log("Corrected the drift of " + drift.length + " slices relative to the first slice.");
+                        return () -> {
+                            for (ImagePlus channel : channels) {
+                                if (channel != null) {
+                                    channel.updateAndDraw();
+                                }
                             }
-                            if (maxx > width / 2) {
-                                log("Shifting acceptor channel image to the left " + (width - maxx) + " pixel" + ((width - maxx) > 1 ? "s" : "") + ".");
-                                sd.shiftLeft(acceptorInAImage, width - maxx);
-                            } else if (maxx != 0) {
-                                log("Shifting acceptor channel image to the right " + maxx + " pixel" + (maxx > 1 ? "s" : "") + ".");
-                                sd.shiftRight(acceptorInAImage, maxx);
+                            driftTable.show("Drift");
+                        };
+                    });
+                    break;
+                }
+                case "meanEstimator":
+                case "weightedMeanEstimator":
+                case "medianEstimator":
+                case "trimmedMeanEstimator":
+                    factorEstimator = Arrays.asList(estimatorCommands).indexOf(e.getActionCommand());
+                    log("Correction factors are estimated by: " + RatioCalculator.ESTIMATORS[factorEstimator].toLowerCase(Locale.ROOT) + ".");
+                    break;
+                case "pooledCalibration": {
+                    String[] sources = {"All files of a directory", "Current image"};
+                    GenericDialog gd = new GenericDialog("Pooled Calibration");
+                    gd.addChoice("Factors:", PooledCalibration.FACTOR_SETS, PooledCalibration.FACTOR_SETS[0]);
+                    gd.addChoice("Images:", sources, sources[0]);
+                    gd.addNumericField("Donor Channel:", 1, 0);
+                    gd.addNumericField("Transfer Channel:", 2, 0);
+                    gd.addNumericField("Acceptor Channel:", 3, 0);
+                    gd.addNumericField("Autofluorescence Channel:", 4, 0);
+                    gd.addNumericField("Donor Background:", 0, 2);
+                    gd.addNumericField("Transfer Background:", 0, 2);
+                    gd.addNumericField("Acceptor Background:", 0, 2);
+                    gd.addNumericField("Autofluorescence Background:", 0, 2);
+                    gd.addStringField("Minimum of Denominator Channel:", "");
+                    gd.addCheckbox("Set the factors in the main window", true);
+                    gd.showDialog();
+                    if (gd.wasCanceled()) {
+                        return;
+                    }
+                    int factorSet = gd.getNextChoiceIndex();
+                    boolean fromDirectory = gd.getNextChoiceIndex() == 0;
+                    int[] slices = new int[4];
+                    for (int channel = 0; channel < slices.length; channel++) {
+                        slices[channel] = (int) gd.getNextNumber();
+                    }
+                    PooledCalibration pooledCalibration = new PooledCalibration(factorSet, slices, factorEstimator);
+                    boolean bootstrap = isBootstrap();
+                    pooledCalibration.setBootstrap(bootstrap);
+                    for (int channel = 0; channel < slices.length; channel++) {
+                        pooledCalibration.setBackground(channel, (float) gd.getNextNumber());
+                    }
+                    String denominatorMin = gd.getNextString().trim();
+                    if (!denominatorMin.isEmpty()) {
+                        pooledCalibration.setDenominatorMin(Double.parseDouble(denominatorMin));
+                    }
+                    boolean setFactors = gd.getNextBoolean();
+                    File[] files = null;
+                    ImagePlus image = null;
+                    if (fromDirectory) {
+                        String directory = new DirectoryChooser("Select Directory of Control Images").getDirectory();
+                        if (directory == null) {
+                            return;
+                        }
+                        files = BatchProcessor.listImageFiles(new File(directory));
+                        log("Pooled calibration of " + PooledCalibration.FACTOR_SETS[factorSet] + " from " + files.length + " files in " + directory + "...");
+                    } else {
+                        image = WindowManager.getCurrentImage();
+                        if (image == null) {
+                            logError("No open image.");
+                            return;
+                        }
+                        log("Pooled calibration of " + PooledCalibration.FACTOR_SETS[factorSet] + " from " + image.getTitle() + "...");
+                    }
+                    File[] controlFiles = files;
+                    ImagePlus controlImage = image;
+                    runTask("Pooled calibration", task -> {
+                        if (controlFiles != null) {
+                            for (int i = 0; i < controlFiles.length; i++) {
+                                task.checkCancelled();
+                                try {
+                                    pooledCalibration.add(controlFiles[i]);
+                                } catch (IOException | IllegalArgumentException ex) {
+                                    logError("Skipped " + controlFiles[i].getName() + ": " + ex.getMessage());
+                                }
+                                task.setProgress(i + 1, controlFiles.length);
                             }
-                            actionPerformed(new ActionEvent(registerMenuItem, 1, "registerAcceptorCh"));
                         } else {
-                            log("Registration of acceptor channel has been finished.");
+                            pooledCalibration.add(controlImage, controlImage.getTitle());
                         }
-                    }
+                        String[] names = pooledCalibration.getFactorNames();
+                        DecimalFormat df = new DecimalFormat("#.###");
+                        String[] factors = new String[names.length];
+                        StringBuilder message = new StringBuilder("Pooled calibration has been finished (" + pooledCalibration.getCount() + " pixels):");
+                        for (int k = 0; k < names.length; k++) {
+                            factors[k] = df.format(pooledCalibration.getFactor(k));
+                            message.append(" ").append(names[k]).append(" = ").append(factors[k]);
+                        }
+                        log(message + ".");
+                        if (bootstrap && pooledCalibration.getCount() > 0) {
+                            logConfidenceIntervals(pooledCalibration.getRatioCalculator(), names, "Pooled calibration");
+                        }
+                        ResultsTable calibrationTable = pooledCalibration.getResultsTable();
+                        return () -> {
+                            calibrationTable.show("Pooled Calibration");
+                            if (setFactors && pooledCalibration.getCount() > 0) {
+                                for (int k = 0; k < names.length; k++) {
+                                    setFactor(names[k], factors[k]);
+                                }
+                            }
+                        };
+                    });
                     break;
+                }
                 case "calculateRatio":
                     if (calculateRatioDialog != null) {
                         calculateRatioDialog.setVisible(false);
@@ -1681,11 +1746,7 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                     if (sigmaString == null || sigmaString.trim().isEmpty()) {
                         return;
                     }
-                    GaussianBlur gb = new GaussianBlur();
-                    int nSlices = WindowManager.getCurrentImage().getImageStackSize();
-                    for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
-                        gb.blurGaussian(WindowManager.getCurrentImage().getStack().getProcessor(currentSlice), Float.parseFloat(sigmaString), Float.parseFloat(sigmaString), 0.01);
-                    }
+                    GaussianSmoother.blur(WindowManager.getCurrentImage().getStack(), Float.parseFloat(sigmaString));
                     WindowManager.getCurrentImage().updateAndDraw();
                     log("Gaussian blurred current image (" + WindowManager.getCurrentImage().getTitle() + ") with sigma (radius) " + Float.parseFloat(sigmaString) + " px.");
                     break;
@@ -1883,9 +1944,6 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                     } else {
                         new ImageConverter(donorInDImage).convertToGray32();
                     }
-                    if (automaticallyProcessedFiles == null) {
-                        currentlyProcessedFileName = null;
-                    }
                     setDonorInDImageButton.setBackground(greenColor);
                     setDonorInDImageButton.setOpaque(true);
                     setDonorInDImageButton.setBorderPainted(false);
@@ -2120,86 +2178,69 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                     } else if (donorInDImage.getRoi() == null && autoflDInDField.getText().trim().equals("0")) {
                         logError("No ROI or constant is defined for donor channel.");
                     } else if (donorInDImage.getRoi() == null && !autoflDInDField.getText().trim().equals("0")) {
-                        float autofl = 0;
-                        if (!autoflDInDField.getText().trim().isEmpty()) {
-                            autofl = Float.parseFloat(autoflDInDField.getText().trim());
-                        }
-                        DecimalFormat df = new DecimalFormat("#.#");
-                        int width = donorInDImage.getWidth();
-                        int height = donorInDImage.getHeight();
-                        int nSlices = donorInDImage.getImageStackSize();
-                        donorInDImageSave = new ImageStack(donorInDImage.getProcessor().getWidth(), donorInDImage.getProcessor().getHeight());
-                        for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
-                            float i = 0;
-                            for (int x = 0; x < width; x++) {
-                                for (int y = 0; y < height; y++) {
-                                    i = donorInDImage.getStack().getProcessor(currentSlice).getPixelValue(x, y);
-                                    i = i - autofl;
-                                    donorInDImage.getStack().getProcessor(currentSlice).putPixelValue(x, y, i);
+                        float autofl = Float.parseFloat(autoflDInDField.getText().trim());
+                        runTask("Background subtraction", task -> {
+                            DecimalFormat df = new DecimalFormat("#.#");
+                            int nSlices = donorInDImage.getImageStackSize();
+                            float[] backgrounds = new float[nSlices];
+                            Arrays.fill(backgrounds, autofl);
+                            task.setCancelledWarning("The donor channel may be partially processed.");
+                            task.checkCancelled();
+                            BackgroundSubtractor.subtract(donorInDImage.getStack(), backgrounds);
+                            donorInDImageSave = new ImageStack(donorInDImage.getWidth(), donorInDImage.getHeight());
+                            for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
+                                FloatProcessor flp = new FloatProcessor(donorInDImage.getWidth(), donorInDImage.getHeight());
+                                flp.setPixels(currentSlice, (FloatProcessor) donorInDImage.getStack().getProcessor(currentSlice).duplicate());
+                                donorInDImageSave.addSlice("" + currentSlice, flp);
+                                if (nSlices == 1) {
+                                    log("Subtracted background (constant: " + df.format(autofl) + ") of donor channel.");
+                                } else {
+                                    log("Subtracted background (constant: " + df.format(autofl) + ") of slice " + currentSlice + " of donor channel.");
                                 }
                             }
-                            FloatProcessor flp = new FloatProcessor(donorInDImage.getStack().getProcessor(currentSlice).getWidth(), donorInDImage.getStack().getProcessor(currentSlice).getHeight());
-                            flp.setPixels(currentSlice, (FloatProcessor) donorInDImage.getStack().getProcessor(currentSlice).duplicate());
-                            donorInDImageSave.addSlice("" + currentSlice, flp);
-                            if (nSlices == 1) {
-                                log("Subtracted background (constant: " + df.format(autofl) + ") of donor channel.");
-                            } else {
-                                log("Subtracted background (constant: " + df.format(autofl) + ") of slice " + currentSlice + " of donor channel.");
-                            }
-                        }
-                        donorInDImage.updateAndDraw();
-                        donorInDImageSave.setColorModel(donorInDImage.getProcessor().getColorModel());
-                        subtractDonorInDImageButton.setBackground(greenColor);
-                        subtractDonorInDImageButton.setOpaque(true);
-                        subtractDonorInDImageButton.setBorderPainted(false);
+                            return () -> {
+                                donorInDImage.updateAndDraw();
+                                donorInDImageSave.setColorModel(donorInDImage.getProcessor().getColorModel());
+                                subtractDonorInDImageButton.setBackground(greenColor);
+                                subtractDonorInDImageButton.setOpaque(true);
+                                subtractDonorInDImageButton.setBorderPainted(false);
+                            };
+                        });
                     } else if (donorInDImage.getRoi() != null) {
-                        float autofl = 0;
-                        if (!autoflDInDField.getText().trim().isEmpty()) {
-                            autofl = Float.parseFloat(autoflDInDField.getText().trim());
-                        }
-                        DecimalFormat df = new DecimalFormat("#.#");
-                        int width = donorInDImage.getWidth();
-                        int height = donorInDImage.getHeight();
-                        int nSlices = donorInDImage.getImageStackSize();
-                        donorInDImageSave = new ImageStack(donorInDImage.getProcessor().getWidth(), donorInDImage.getProcessor().getHeight());
-                        for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
-                            double sum = 0;
-                            int count = 0;
-                            for (int i = 0; i < width; i++) {
-                                for (int j = 0; j < height; j++) {
-                                    if (donorInDImage.getRoi().contains(i, j)) {
-                                        sum += donorInDImage.getStack().getProcessor(currentSlice).getPixelValue(i, j);
-                                        count++;
-                                    }
-                                }
+                        float autofl = Float.parseFloat(autoflDInDField.getText().trim());
+                        runTask("Background subtraction", task -> {
+                            DecimalFormat df = new DecimalFormat("#.#");
+                            int nSlices = donorInDImage.getImageStackSize();
+                            float[] backgrounds = new float[nSlices];
+                            RoiStatistics roiStatistics = new RoiStatistics(donorInDImage.getRoi(), donorInDImage.getWidth(), donorInDImage.getHeight());
+                            for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
+                                task.checkCancelled();
+                                backgrounds[currentSlice - 1] = (float) roiStatistics.getMean((float[]) donorInDImage.getStack().getPixels(currentSlice)) + autofl;
+                                task.setProgress(currentSlice, nSlices);
                             }
-                            float backgroundAvg = (float) (sum / count);
-
-                            backgroundAvg = backgroundAvg + autofl;
-
-                            float i = 0;
-                            for (int x = 0; x < width; x++) {
-                                for (int y = 0; y < height; y++) {
-                                    i = donorInDImage.getStack().getProcessor(currentSlice).getPixelValue(x, y);
-                                    i = i - backgroundAvg;
-                                    donorInDImage.getStack().getProcessor(currentSlice).putPixelValue(x, y, i);
+                            task.setCancelledWarning("The donor channel may be partially processed.");
+                            task.checkCancelled();
+                            BackgroundSubtractor.subtract(donorInDImage.getStack(), backgrounds);
+                            donorInDImageSave = new ImageStack(donorInDImage.getWidth(), donorInDImage.getHeight());
+                            for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
+                                FloatProcessor flp = new FloatProcessor(donorInDImage.getWidth(), donorInDImage.getHeight());
+                                flp.setPixels(currentSlice, (FloatProcessor) donorInDImage.getStack().getProcessor(currentSlice).duplicate());
+                                donorInDImageSave.addSlice("" + currentSlice, flp);
+                                if (nSlices == 1) {
+                                    log("Subtracted background (avg. ROI" + (autofl > 0 ? " and constant" : "") + ": " + df.format(backgrounds[currentSlice - 1]) + ") of donor channel.");
+                                } else {
+                                    log("Subtracted background (avg. ROI" + (autofl > 0 ? " and constant" : "") + ": " + df.format(backgrounds[currentSlice - 1]) + ") of slice " + currentSlice + " of donor channel.");
                                 }
                             }
-                            FloatProcessor flp = new FloatProcessor(donorInDImage.getStack().getProcessor(currentSlice).getWidth(), donorInDImage.getStack().getProcessor(currentSlice).getHeight());
-                            flp.setPixels(currentSlice, (FloatProcessor) donorInDImage.getStack().getProcessor(currentSlice).duplicate());
-                            donorInDImageSave.addSlice("" + currentSlice, flp);
-                            if (nSlices == 1) {
-                                log("Subtracted background (avg. ROI" + (autofl > 0 ? " and constant" : "") + ": " + df.format(backgroundAvg) + ") of donor channel.");
-                            } else {
-                                log("Subtracted background (avg. ROI" + (autofl > 0 ? " and constant" : "") + ": " + df.format(backgroundAvg) + ") of slice " + currentSlice + " of donor channel.");
-                            }
-                        }
-                        donorInDImage.updateAndDraw();
-                        donorInDImage.killRoi();
-                        donorInDImageSave.setColorModel(donorInDImage.getProcessor().getColorModel());
-                        subtractDonorInDImageButton.setBackground(greenColor);
-                        subtractDonorInDImageButton.setOpaque(true);
-                        subtractDonorInDImageButton.setBorderPainted(false);
+                            return () -> {
+                                donorInDImage.updateAndDraw();
+                                donorInDImage.killRoi();
+                                donorInDImageSave.setColorModel(donorInDImage.getProcessor().getColorModel());
+                                subtractDonorInDImageButton.setBackground(greenColor);
+                                subtractDonorInDImageButton.setOpaque(true);
+                                subtractDonorInDImageButton.setBorderPainted(false);
+                            };
+                        });
                     }
                     break;
                 }
@@ -2211,87 +2252,70 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                     } else if (donorInAImage.getRoi() == null && autoflAInDField.getText().trim().equals("0")) {
                         logError("No ROI or constant is defined for transfer channel.");
                     } else if (donorInAImage.getRoi() == null && !autoflAInDField.getText().trim().equals("0")) {
-                        float autofl = 0;
-                        if (!autoflAInDField.getText().trim().isEmpty()) {
-                            autofl = Float.parseFloat(autoflAInDField.getText().trim());
-                        }
-                        DecimalFormat df = new DecimalFormat("#.#");
-                        int width = donorInAImage.getWidth();
-                        int height = donorInAImage.getHeight();
-                        int nSlices = donorInAImage.getImageStackSize();
-                        donorInAImageSave = new ImageStack(donorInAImage.getProcessor().getWidth(), donorInAImage.getProcessor().getHeight());
-                        for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
-                            float i = 0;
-                            for (int x = 0; x < width; x++) {
-                                for (int y = 0; y < height; y++) {
-                                    i = donorInAImage.getStack().getProcessor(currentSlice).getPixelValue(x, y);
-                                    i = i - autofl;
-                                    donorInAImage.getStack().getProcessor(currentSlice).putPixelValue(x, y, i);
+                        float autofl = Float.parseFloat(autoflAInDField.getText().trim());
+                        runTask("Background subtraction", task -> {
+                            DecimalFormat df = new DecimalFormat("#.#");
+                            int nSlices = donorInAImage.getImageStackSize();
+                            float[] backgrounds = new float[nSlices];
+                            Arrays.fill(backgrounds, autofl);
+                            task.setCancelledWarning("The transfer channel may be partially processed.");
+                            task.checkCancelled();
+                            BackgroundSubtractor.subtract(donorInAImage.getStack(), backgrounds);
+                            donorInAImageSave = new ImageStack(donorInAImage.getWidth(), donorInAImage.getHeight());
+                            for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
+                                FloatProcessor flp = new FloatProcessor(donorInAImage.getWidth(), donorInAImage.getHeight());
+                                flp.setPixels(currentSlice, (FloatProcessor) donorInAImage.getStack().getProcessor(currentSlice).duplicate());
+                                donorInAImageSave.addSlice("" + currentSlice, flp);
+                                if (nSlices == 1) {
+                                    log("Subtracted background (constant: " + df.format(autofl) + ") of transfer channel.");
+                                } else {
+                                    log("Subtracted background (constant: " + df.format(autofl) + ") of slice " + currentSlice + " of transfer channel.");
                                 }
                             }
-                            FloatProcessor flp = new FloatProcessor(donorInAImage.getStack().getProcessor(currentSlice).getWidth(), donorInAImage.getStack().getProcessor(currentSlice).getHeight());
-                            flp.setPixels(currentSlice, (FloatProcessor) donorInAImage.getStack().getProcessor(currentSlice).duplicate());
-                            donorInAImageSave.addSlice("" + currentSlice, flp);
-                            if (nSlices == 1) {
-                                log("Subtracted background (constant: " + df.format(autofl) + ") of transfer channel.");
-                            } else {
-                                log("Subtracted background (constant: " + df.format(autofl) + ") of slice " + currentSlice + " of transfer channel.");
-                            }
-                        }
-                        donorInAImage.updateAndDraw();
-                        donorInAImageSave.setColorModel(donorInAImage.getProcessor().getColorModel());
-                        subtractDonorInAImageButton.setBackground(greenColor);
-                        subtractDonorInAImageButton.setOpaque(true);
-                        subtractDonorInAImageButton.setBorderPainted(false);
+                            return () -> {
+                                donorInAImage.updateAndDraw();
+                                donorInAImageSave.setColorModel(donorInAImage.getProcessor().getColorModel());
+                                subtractDonorInAImageButton.setBackground(greenColor);
+                                subtractDonorInAImageButton.setOpaque(true);
+                                subtractDonorInAImageButton.setBorderPainted(false);
+                            };
+                        });
                     } else if (donorInAImage.getRoi() != null) {
 
-                        float autofl = 0;
-                        if (!autoflAInDField.getText().trim().isEmpty()) {
-                            autofl = Float.parseFloat(autoflAInDField.getText().trim());
-                        }
-                        DecimalFormat df = new DecimalFormat("#.#");
-                        int width = donorInAImage.getWidth();
-                        int height = donorInAImage.getHeight();
-                        int nSlices = donorInAImage.getImageStackSize();
-                        donorInAImageSave = new ImageStack(donorInAImage.getProcessor().getWidth(), donorInAImage.getProcessor().getHeight());
-                        for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
-                            double sum = 0;
-                            int count = 0;
-                            for (int i = 0; i < width; i++) {
-                                for (int j = 0; j < height; j++) {
-                                    if (donorInAImage.getRoi().contains(i, j)) {
-                                        sum += donorInAImage.getStack().getProcessor(currentSlice).getPixelValue(i, j);
-                                        count++;
-                                    }
-                                }
+                        float autofl = Float.parseFloat(autoflAInDField.getText().trim());
+                        runTask("Background subtraction", task -> {
+                            DecimalFormat df = new DecimalFormat("#.#");
+                            int nSlices = donorInAImage.getImageStackSize();
+                            float[] backgrounds = new float[nSlices];
+                            RoiStatistics roiStatistics = new RoiStatistics(donorInAImage.getRoi(), donorInAImage.getWidth(), donorInAImage.getHeight());
+                            for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
+                                task.checkCancelled();
+                                backgrounds[currentSlice - 1] = (float) roiStatistics.getMean((float[]) donorInAImage.getStack().getPixels(currentSlice)) + autofl;
+                                task.setProgress(currentSlice, nSlices);
                             }
-                            float backgroundAvg = (float) (sum / count);
-
-                            backgroundAvg = backgroundAvg + autofl;
-
-                            float i = 0;
-                            for (int x = 0; x < width; x++) {
-                                for (int y = 0; y < height; y++) {
-                                    i = donorInAImage.getStack().getProcessor(currentSlice).getPixelValue(x, y);
-                                    i = i - backgroundAvg;
-                                    donorInAImage.getStack().getProcessor(currentSlice).putPixelValue(x, y, i);
+                            task.setCancelledWarning("The transfer channel may be partially processed.");
+                            task.checkCancelled();
+                            BackgroundSubtractor.subtract(donorInAImage.getStack(), backgrounds);
+                            donorInAImageSave = new ImageStack(donorInAImage.getWidth(), donorInAImage.getHeight());
+                            for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
+                                FloatProcessor flp = new FloatProcessor(donorInAImage.getWidth(), donorInAImage.getHeight());
+                                flp.setPixels(currentSlice, (FloatProcessor) donorInAImage.getStack().getProcessor(currentSlice).duplicate());
+                                donorInAImageSave.addSlice("" + currentSlice, flp);
+                                if (nSlices == 1) {
+                                    log("Subtracted background (avg. ROI" + (autofl > 0 ? " and constant" : "") + ": " + df.format(backgrounds[currentSlice - 1]) + ") of transfer channel.");
+                                } else {
+                                    log("Subtracted background (avg. ROI" + (autofl > 0 ? " and constant" : "") + ": " + df.format(backgrounds[currentSlice - 1]) + ") of slice " + currentSlice + " of transfer channel.");
                                 }
                             }
-                            FloatProcessor flp = new FloatProcessor(donorInAImage.getStack().getProcessor(currentSlice).getWidth(), donorInAImage.getStack().getProcessor(currentSlice).getHeight());
-                            flp.setPixels(currentSlice, (FloatProcessor) donorInAImage.getStack().getProcessor(currentSlice).duplicate());
-                            donorInAImageSave.addSlice("" + currentSlice, flp);
-                            if (nSlices == 1) {
-                                log("Subtracted background (avg. ROI" + (autofl > 0 ? " and constant" : "") + ": " + df.format(backgroundAvg) + ") of transfer channel.");
-                            } else {
-                                log("Subtracted background (avg. ROI" + (autofl > 0 ? " and constant" : "") + ": " + df.format(backgroundAvg) + ") of slice " + currentSlice + " of transfer channel.");
-                            }
-                        }
-                        donorInAImage.updateAndDraw();
-                        donorInAImage.killRoi();
-                        donorInAImageSave.setColorModel(donorInAImage.getProcessor().getColorModel());
-                        subtractDonorInAImageButton.setBackground(greenColor);
-                        subtractDonorInAImageButton.setOpaque(true);
-                        subtractDonorInAImageButton.setBorderPainted(false);
+                            return () -> {
+                                donorInAImage.updateAndDraw();
+                                donorInAImage.killRoi();
+                                donorInAImageSave.setColorModel(donorInAImage.getProcessor().getColorModel());
+                                subtractDonorInAImageButton.setBackground(greenColor);
+                                subtractDonorInAImageButton.setOpaque(true);
+                                subtractDonorInAImageButton.setBorderPainted(false);
+                            };
+                        });
                     }
                     break;
                 }
@@ -2303,86 +2327,69 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                     } else if (acceptorInAImage.getRoi() == null && autoflAInAField.getText().trim().equals("0")) {
                         logError("No ROI or constant is defined for acceptor channel.");
                     } else if (acceptorInAImage.getRoi() == null && !autoflAInAField.getText().trim().equals("0")) {
-                        float autofl = 0;
-                        if (!autoflAInAField.getText().trim().isEmpty()) {
-                            autofl = Float.parseFloat(autoflAInAField.getText().trim());
-                        }
-                        DecimalFormat df = new DecimalFormat("#.#");
-                        int width = acceptorInAImage.getWidth();
-                        int height = acceptorInAImage.getHeight();
-                        int nSlices = acceptorInAImage.getImageStackSize();
-                        acceptorInAImageSave = new ImageStack(acceptorInAImage.getProcessor().getWidth(), acceptorInAImage.getProcessor().getHeight());
-                        for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
-                            float i = 0;
-                            for (int x = 0; x < width; x++) {
-                                for (int y = 0; y < height; y++) {
-                                    i = acceptorInAImage.getStack().getProcessor(currentSlice).getPixelValue(x, y);
-                                    i = i - autofl;
-                                    acceptorInAImage.getStack().getProcessor(currentSlice).putPixelValue(x, y, i);
+                        float autofl = Float.parseFloat(autoflAInAField.getText().trim());
+                        runTask("Background subtraction", task -> {
+                            DecimalFormat df = new DecimalFormat("#.#");
+                            int nSlices = acceptorInAImage.getImageStackSize();
+                            float[] backgrounds = new float[nSlices];
+                            Arrays.fill(backgrounds, autofl);
+                            task.setCancelledWarning("The acceptor channel may be partially processed.");
+                            task.checkCancelled();
+                            BackgroundSubtractor.subtract(acceptorInAImage.getStack(), backgrounds);
+                            acceptorInAImageSave = new ImageStack(acceptorInAImage.getWidth(), acceptorInAImage.getHeight());
+                            for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
+                                FloatProcessor flp = new FloatProcessor(acceptorInAImage.getWidth(), acceptorInAImage.getHeight());
+                                flp.setPixels(currentSlice, (FloatProcessor) acceptorInAImage.getStack().getProcessor(currentSlice).duplicate());
+                                acceptorInAImageSave.addSlice("" + currentSlice, flp);
+                                if (nSlices == 1) {
+                                    log("Subtracted background (constant: " + df.format(autofl) + ") of acceptor channel.");
+                                } else {
+                                    log("Subtracted background (constant: " + df.format(autofl) + ") of slice " + currentSlice + " of acceptor channel.");
                                 }
                             }
-                            FloatProcessor flp = new FloatProcessor(acceptorInAImage.getStack().getProcessor(currentSlice).getWidth(), acceptorInAImage.getStack().getProcessor(currentSlice).getHeight());
-                            flp.setPixels(currentSlice, (FloatProcessor) acceptorInAImage.getStack().getProcessor(currentSlice).duplicate());
-                            acceptorInAImageSave.addSlice("" + currentSlice, flp);
-                            if (nSlices == 1) {
-                                log("Subtracted background (constant: " + df.format(autofl) + ") of acceptor channel.");
-                            } else {
-                                log("Subtracted background (constant: " + df.format(autofl) + ") of slice " + currentSlice + " of acceptor channel.");
-                            }
-                        }
-                        acceptorInAImage.updateAndDraw();
-                        acceptorInAImageSave.setColorModel(acceptorInAImage.getProcessor().getColorModel());
-                        subtractAcceptorInAImageButton.setBackground(greenColor);
-                        subtractAcceptorInAImageButton.setOpaque(true);
-                        subtractAcceptorInAImageButton.setBorderPainted(false);
+                            return () -> {
+                                acceptorInAImage.updateAndDraw();
+                                acceptorInAImageSave.setColorModel(acceptorInAImage.getProcessor().getColorModel());
+                                subtractAcceptorInAImageButton.setBackground(greenColor);
+                                subtractAcceptorInAImageButton.setOpaque(true);
+                                subtractAcceptorInAImageButton.setBorderPainted(false);
+                            };
+                        });
                     } else if (acceptorInAImage.getRoi() != null) {
-                        float autofl = 0;
-                        if (!autoflAInAField.getText().trim().isEmpty()) {
-                            autofl = Float.parseFloat(autoflAInAField.getText().trim());
-                        }
-                        DecimalFormat df = new DecimalFormat("#.#");
-                        int width = acceptorInAImage.getWidth();
-                        int height = acceptorInAImage.getHeight();
-                        int nSlices = acceptorInAImage.getImageStackSize();
-                        acceptorInAImageSave = new ImageStack(acceptorInAImage.getProcessor().getWidth(), acceptorInAImage.getProcessor().getHeight());
-                        for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
-                            double sum = 0;
-                            int count = 0;
-                            for (int i = 0; i < width; i++) {
-                                for (int j = 0; j < height; j++) {
-                                    if (acceptorInAImage.getRoi().contains(i, j)) {
-                                        sum += acceptorInAImage.getStack().getProcessor(currentSlice).getPixelValue(i, j);
-                                        count++;
-                                    }
-                                }
+                        float autofl = Float.parseFloat(autoflAInAField.getText().trim());
+                        runTask("Background subtraction", task -> {
+                            DecimalFormat df = new DecimalFormat("#.#");
+                            int nSlices = acceptorInAImage.getImageStackSize();
+                            float[] backgrounds = new float[nSlices];
+                            RoiStatistics roiStatistics = new RoiStatistics(acceptorInAImage.getRoi(), acceptorInAImage.getWidth(), acceptorInAImage.getHeight());
+                            for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
+                                task.checkCancelled();
+                                backgrounds[currentSlice - 1] = (float) roiStatistics.getMean((float[]) acceptorInAImage.getStack().getPixels(currentSlice)) + autofl;
+                                task.setProgress(currentSlice, nSlices);
                             }
-                            float backgroundAvg = (float) (sum / count);
-
-                            backgroundAvg = backgroundAvg + autofl;
-
-                            float i = 0;
-                            for (int x = 0; x < width; x++) {
-                                for (int y = 0; y < height; y++) {
-                                    i = acceptorInAImage.getStack().getProcessor(currentSlice).getPixelValue(x, y);
-                                    i = i - backgroundAvg;
-                                    acceptorInAImage.getStack().getProcessor(currentSlice).putPixelValue(x, y, i);
+                            task.setCancelledWarning("The acceptor channel may be partially processed.");
+                            task.checkCancelled();
+                            BackgroundSubtractor.subtract(acceptorInAImage.getStack(), backgrounds);
+                            acceptorInAImageSave = new ImageStack(acceptorInAImage.getWidth(), acceptorInAImage.getHeight());
+                            for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
+                                FloatProcessor flp = new FloatProcessor(acceptorInAImage.getWidth(), acceptorInAImage.getHeight());
+                                flp.setPixels(currentSlice, (FloatProcessor) acceptorInAImage.getStack().getProcessor(currentSlice).duplicate());
+                                acceptorInAImageSave.addSlice("" + currentSlice, flp);
+                                if (nSlices == 1) {
+                                    log("Subtracted background (avg. ROI" + (autofl > 0 ? " and constant" : "") + ": " + df.format(backgrounds[currentSlice - 1]) + ") of acceptor channel.");
+                                } else {
+                                    log("Subtracted background (avg. ROI" + (autofl > 0 ? " and constant" : "") + ": " + df.format(backgrounds[currentSlice - 1]) + ") of slice " + currentSlice + " of acceptor channel.");
                                 }
                             }
-                            FloatProcessor flp = new FloatProcessor(acceptorInAImage.getStack().getProcessor(currentSlice).getWidth(), acceptorInAImage.getStack().getProcessor(currentSlice).getHeight());
-                            flp.setPixels(currentSlice, (FloatProcessor) acceptorInAImage.getStack().getProcessor(currentSlice).duplicate());
-                            acceptorInAImageSave.addSlice("" + currentSlice, flp);
-                            if (nSlices == 1) {
-                                log("Subtracted background (avg. ROI" + (autofl > 0 ? " and constant" : "") + ": " + df.format(backgroundAvg) + ") of acceptor channel.");
-                            } else {
-                                log("Subtracted background (avg. ROI" + (autofl > 0 ? " and constant" : "") + ": " + df.format(backgroundAvg) + ") of slice " + currentSlice + " of acceptor channel.");
-                            }
-                        }
-                        acceptorInAImage.updateAndDraw();
-                        acceptorInAImage.killRoi();
-                        acceptorInAImageSave.setColorModel(acceptorInAImage.getProcessor().getColorModel());
-                        subtractAcceptorInAImageButton.setBackground(greenColor);
-                        subtractAcceptorInAImageButton.setOpaque(true);
-                        subtractAcceptorInAImageButton.setBorderPainted(false);
+                            return () -> {
+                                acceptorInAImage.updateAndDraw();
+                                acceptorInAImage.killRoi();
+                                acceptorInAImageSave.setColorModel(acceptorInAImage.getProcessor().getColorModel());
+                                subtractAcceptorInAImageButton.setBackground(greenColor);
+                                subtractAcceptorInAImageButton.setOpaque(true);
+                                subtractAcceptorInAImageButton.setBorderPainted(false);
+                            };
+                        });
                     }
                     break;
                 }
@@ -2394,86 +2401,69 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                     } else if (autofluorescenceImage.getRoi() == null && autoflAFField.getText().trim().equals("0")) {
                         logError("No ROI or constant is defined for autofluorescence channel.");
                     } else if (autofluorescenceImage.getRoi() == null && !autoflAFField.getText().trim().equals("0")) {
-                        float autofl = 0;
-                        if (!autoflAFField.getText().trim().isEmpty()) {
-                            autofl = Float.parseFloat(autoflAFField.getText().trim());
-                        }
-                        DecimalFormat df = new DecimalFormat("#.#");
-                        int width = autofluorescenceImage.getWidth();
-                        int height = autofluorescenceImage.getHeight();
-                        int nSlices = autofluorescenceImage.getImageStackSize();
-                        autofluorescenceImageSave = new ImageStack(autofluorescenceImage.getProcessor().getWidth(), autofluorescenceImage.getProcessor().getHeight());
-                        for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
-                            float i = 0;
-                            for (int x = 0; x < width; x++) {
-                                for (int y = 0; y < height; y++) {
-                                    i = autofluorescenceImage.getStack().getProcessor(currentSlice).getPixelValue(x, y);
-                                    i = i - autofl;
-                                    autofluorescenceImage.getStack().getProcessor(currentSlice).putPixelValue(x, y, i);
+                        float autofl = Float.parseFloat(autoflAFField.getText().trim());
+                        runTask("Background subtraction", task -> {
+                            DecimalFormat df = new DecimalFormat("#.#");
+                            int nSlices = autofluorescenceImage.getImageStackSize();
+                            float[] backgrounds = new float[nSlices];
+                            Arrays.fill(backgrounds, autofl);
+                            task.setCancelledWarning("The autofluorescence channel may be partially processed.");
+                            task.checkCancelled();
+                            BackgroundSubtractor.subtract(autofluorescenceImage.getStack(), backgrounds);
+                            autofluorescenceImageSave = new ImageStack(autofluorescenceImage.getWidth(), autofluorescenceImage.getHeight());
+                            for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
+                                FloatProcessor flp = new FloatProcessor(autofluorescenceImage.getWidth(), autofluorescenceImage.getHeight());
+                                flp.setPixels(currentSlice, (FloatProcessor) autofluorescenceImage.getStack().getProcessor(currentSlice).duplicate());
+                                autofluorescenceImageSave.addSlice("" + currentSlice, flp);
+                                if (nSlices == 1) {
+                                    log("Subtracted background (constant: " + df.format(autofl) + ") of autofluorescence channel.");
+                                } else {
+                                    log("Subtracted background (constant: " + df.format(autofl) + ") of slice " + currentSlice + " of autofluorescence channel.");
                                 }
                             }
-                            FloatProcessor flp = new FloatProcessor(autofluorescenceImage.getStack().getProcessor(currentSlice).getWidth(), autofluorescenceImage.getStack().getProcessor(currentSlice).getHeight());
-                            flp.setPixels(currentSlice, (FloatProcessor) autofluorescenceImage.getStack().getProcessor(currentSlice).duplicate());
-                            autofluorescenceImageSave.addSlice("" + currentSlice, flp);
-                            if (nSlices == 1) {
-                                log("Subtracted background (constant: " + df.format(autofl) + ") of autofluorescence channel.");
-                            } else {
-                                log("Subtracted background (constant: " + df.format(autofl) + ") of slice " + currentSlice + " of autofluorescence channel.");
-                            }
-                        }
-                        autofluorescenceImage.updateAndDraw();
-                        autofluorescenceImageSave.setColorModel(autofluorescenceImage.getProcessor().getColorModel());
-                        subtractAutofluorescenceImageButton.setBackground(greenColor);
-                        subtractAutofluorescenceImageButton.setOpaque(true);
-                        subtractAutofluorescenceImageButton.setBorderPainted(false);
+                            return () -> {
+                                autofluorescenceImage.updateAndDraw();
+                                autofluorescenceImageSave.setColorModel(autofluorescenceImage.getProcessor().getColorModel());
+                                subtractAutofluorescenceImageButton.setBackground(greenColor);
+                                subtractAutofluorescenceImageButton.setOpaque(true);
+                                subtractAutofluorescenceImageButton.setBorderPainted(false);
+                            };
+                        });
                     } else if (autofluorescenceImage.getRoi() != null) {
-                        float autofl = 0;
-                        if (!autoflAFField.getText().trim().isEmpty()) {
-                            autofl = Float.parseFloat(autoflAFField.getText().trim());
-                        }
-                        DecimalFormat df = new DecimalFormat("#.#");
-                        int width = autofluorescenceImage.getWidth();
-                        int height = autofluorescenceImage.getHeight();
-                        int nSlices = autofluorescenceImage.getImageStackSize();
-                        autofluorescenceImageSave = new ImageStack(autofluorescenceImage.getProcessor().getWidth(), autofluorescenceImage.getProcessor().getHeight());
-                        for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
-                            double sum = 0;
-                            int count = 0;
-                            for (int i = 0; i < width; i++) {
-                                for (int j = 0; j < height; j++) {
-                                    if (autofluorescenceImage.getRoi().contains(i, j)) {
-                                        sum += autofluorescenceImage.getStack().getProcessor(currentSlice).getPixelValue(i, j);
-                                        count++;
-                                    }
-                                }
+                        float autofl = Float.parseFloat(autoflAFField.getText().trim());
+                        runTask("Background subtraction", task -> {
+                            DecimalFormat df = new DecimalFormat("#.#");
+                            int nSlices = autofluorescenceImage.getImageStackSize();
+                            float[] backgrounds = new float[nSlices];
+                            RoiStatistics roiStatistics = new RoiStatistics(autofluorescenceImage.getRoi(), autofluorescenceImage.getWidth(), autofluorescenceImage.getHeight());
+                            for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
+                                task.checkCancelled();
+                                backgrounds[currentSlice - 1] = (float) roiStatistics.getMean((float[]) autofluorescenceImage.getStack().getPixels(currentSlice)) + autofl;
+                                task.setProgress(currentSlice, nSlices);
                             }
-                            float backgroundAvg = (float) (sum / count);
-
-                            backgroundAvg += autofl;
-
-                            float i = 0;
-                            for (int x = 0; x < width; x++) {
-                                for (int y = 0; y < height; y++) {
-                                    i = autofluorescenceImage.getStack().getProcessor(currentSlice).getPixelValue(x, y);
-                                    i = i - backgroundAvg;
-                                    autofluorescenceImage.getStack().getProcessor(currentSlice).putPixelValue(x, y, i);
+                            task.setCancelledWarning("The autofluorescence channel may be partially processed.");
+                            task.checkCancelled();
+                            BackgroundSubtractor.subtract(autofluorescenceImage.getStack(), backgrounds);
+                            autofluorescenceImageSave = new ImageStack(autofluorescenceImage.getWidth(), autofluorescenceImage.getHeight());
+                            for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
+                                FloatProcessor flp = new FloatProcessor(autofluorescenceImage.getWidth(), autofluorescenceImage.getHeight());
+                                flp.setPixels(currentSlice, (FloatProcessor) autofluorescenceImage.getStack().getProcessor(currentSlice).duplicate());
+                                autofluorescenceImageSave.addSlice("" + currentSlice, flp);
+                                if (nSlices == 1) {
+                                    log("Subtracted background (avg. ROI" + (autofl > 0 ? " and constant" : "") + ": " + df.format(backgrounds[currentSlice - 1]) + ") of autofluorescence channel.");
+                                } else {
+                                    log("Subtracted background (avg. ROI" + (autofl > 0 ? " and constant" : "") + ": " + df.format(backgrounds[currentSlice - 1]) + ") of slice " + currentSlice + " of autofluorescence channel.");
                                 }
                             }
-                            FloatProcessor flp = new FloatProcessor(autofluorescenceImage.getStack().getProcessor(currentSlice).getWidth(), autofluorescenceImage.getStack().getProcessor(currentSlice).getHeight());
-                            flp.setPixels(currentSlice, (FloatProcessor) autofluorescenceImage.getStack().getProcessor(currentSlice).duplicate());
-                            autofluorescenceImageSave.addSlice("" + currentSlice, flp);
-                            if (nSlices == 1) {
-                                log("Subtracted background (avg. ROI" + (autofl > 0 ? " and constant" : "") + ": " + df.format(backgroundAvg) + ") of autofluorescence channel.");
-                            } else {
-                                log("Subtracted background (avg. ROI" + (autofl > 0 ? " and constant" : "") + ": " + df.format(backgroundAvg) + ") of slice " + currentSlice + " of autofluorescence channel.");
-                            }
-                        }
-                        autofluorescenceImage.updateAndDraw();
-                        autofluorescenceImage.killRoi();
-                        autofluorescenceImageSave.setColorModel(autofluorescenceImage.getProcessor().getColorModel());
-                        subtractAutofluorescenceImageButton.setBackground(greenColor);
-                        subtractAutofluorescenceImageButton.setOpaque(true);
-                        subtractAutofluorescenceImageButton.setBorderPainted(false);
+                            return () -> {
+                                autofluorescenceImage.updateAndDraw();
+                                autofluorescenceImage.killRoi();
+                                autofluorescenceImageSave.setColorModel(autofluorescenceImage.getProcessor().getColorModel());
+                                subtractAutofluorescenceImageButton.setBackground(greenColor);
+                                subtractAutofluorescenceImageButton.setOpaque(true);
+                                subtractAutofluorescenceImageButton.setBorderPainted(false);
+                            };
+                        });
                     }
                     break;
                 }
@@ -2490,11 +2480,8 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                     if (!thresholdDonorMaxField.getText().trim().isEmpty()) {
                         thresholdMax = Double.parseDouble(thresholdDonorMaxField.getText().trim());
                     }
-                    ImageProcessor ip = donorInDImage.getProcessor();
-                    ip.setThreshold(thresholdMin, thresholdMax, ImageProcessor.NO_LUT_UPDATE);
                     log("Thresholded donor channel with min: " + thresholdMin + " and max: " + thresholdMax + ".");
-                    IJ.selectWindow(donorInDImage.getTitle());
-                    IJ.run("NaN Background");
+                    NanThresholder.threshold(donorInDImage, thresholdMin, thresholdMax);
                     log("Donor channel background pixels set to NaN.");
                     thresholdDonorInDImageButton.setBackground(greenColor);
                     thresholdDonorInDImageButton.setOpaque(true);
@@ -2514,11 +2501,8 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                     if (!thresholdTransferMaxField.getText().trim().isEmpty()) {
                         thresholdMax = Double.parseDouble(thresholdTransferMaxField.getText().trim());
                     }
-                    ImageProcessor ip = donorInAImage.getProcessor();
-                    ip.setThreshold(thresholdMin, thresholdMax, ImageProcessor.NO_LUT_UPDATE);
                     log("Thresholded transfer channel with min: " + thresholdMin + " and max: " + thresholdMax + ".");
-                    IJ.selectWindow(donorInAImage.getTitle());
-                    IJ.run("NaN Background");
+                    NanThresholder.threshold(donorInAImage, thresholdMin, thresholdMax);
                     log("Transfer channel background pixels set to NaN.");
                     thresholdDonorInAImageButton.setBackground(greenColor);
                     thresholdDonorInAImageButton.setOpaque(true);
@@ -2538,11 +2522,8 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                     if (!thresholdAcceptorMaxField.getText().trim().isEmpty()) {
                         thresholdMax = Double.parseDouble(thresholdAcceptorMaxField.getText().trim());
                     }
-                    ImageProcessor ip = acceptorInAImage.getProcessor();
-                    ip.setThreshold(thresholdMin, thresholdMax, ImageProcessor.NO_LUT_UPDATE);
                     log("Thresholded acceptor channel with min: " + thresholdMin + " and max: " + thresholdMax + ".");
-                    IJ.selectWindow(acceptorInAImage.getTitle());
-                    IJ.run("NaN Background");
+                    NanThresholder.threshold(acceptorInAImage, thresholdMin, thresholdMax);
                     log("Acceptor channel background pixels set to NaN.");
                     thresholdAcceptorInAImageButton.setBackground(greenColor);
                     thresholdAcceptorInAImageButton.setOpaque(true);
@@ -2562,11 +2543,8 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                     if (!thresholdAFMaxField.getText().trim().isEmpty()) {
                         thresholdMax = Double.parseDouble(thresholdAFMaxField.getText().trim());
                     }
-                    ImageProcessor ip = autofluorescenceImage.getProcessor();
-                    ip.setThreshold(thresholdMin, thresholdMax, ImageProcessor.NO_LUT_UPDATE);
                     log("Thresholded autofluorescence channel with min: " + thresholdMin + " and max: " + thresholdMax + ".");
-                    IJ.selectWindow(autofluorescenceImage.getTitle());
-                    IJ.run("NaN Background");
+                    NanThresholder.threshold(autofluorescenceImage, thresholdMin, thresholdMax);
                     log("Autofluorescence channel background pixels set to NaN.");
                     thresholdAutofluorescenceImageButton.setBackground(greenColor);
                     thresholdAutofluorescenceImageButton.setOpaque(true);
@@ -2586,11 +2564,8 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                     if (!thresholdFretMaxField.getText().trim().isEmpty()) {
                         thresholdMax = Double.parseDouble(thresholdFretMaxField.getText().trim());
                     }
-                    ImageProcessor fip = transferImage.getProcessor();
-                    fip.setThreshold(thresholdMin, thresholdMax, ImageProcessor.NO_LUT_UPDATE);
                     log("Thresholded FRET image with min: " + thresholdMin + " and max: " + thresholdMax + ".");
-                    IJ.selectWindow(transferImage.getTitle());
-                    IJ.run("NaN Background");
+                    NanThresholder.threshold(transferImage, thresholdMin, thresholdMax);
                     log("FRET image background pixels set to NaN.");
                     thresholdFretImageButton.setBackground(greenColor);
                     thresholdFretImageButton.setOpaque(true);
@@ -2748,16 +2723,18 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                                 logError("Sigma (radius) has to be given for Gaussian blur.");
                                 return;
                             }
-                            GaussianBlur gb = new GaussianBlur();
-                            int nSlices = donorInDImage.getImageStackSize();
-                            for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
-                                gb.blurGaussian(donorInDImage.getStack().getProcessor(currentSlice), sigma, sigma, 0.01);
-                            }
-                            donorInDImage.updateAndDraw();
-                            smoothDonorInDImageButton.setBackground(greenColor);
-                            smoothDonorInDImageButton.setOpaque(true);
-                            smoothDonorInDImageButton.setBorderPainted(false);
-                            log("Gaussian blurred donor channel with sigma (radius) " + Double.parseDouble(sigmaFieldDD.getText().trim()) + " px.");
+                            double blurSigma = sigma;
+                            boolean recursive = recursiveBlurDDCB.isSelected();
+                            runTask("Gaussian blur", task -> {
+                                GaussianSmoother.blur(donorInDImage.getStack(), blurSigma, recursive);
+                                return () -> {
+                                    donorInDImage.updateAndDraw();
+                                    smoothDonorInDImageButton.setBackground(greenColor);
+                                    smoothDonorInDImageButton.setOpaque(true);
+                                    smoothDonorInDImageButton.setBorderPainted(false);
+                                    log("Gaussian blurred donor channel with sigma (radius) " + blurSigma + " px" + (recursive ? " (recursive filter)." : "."));
+                                };
+                            });
                         }
                     }
                     break;
@@ -2775,16 +2752,18 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                                 logError("Sigma (radius) has to be given for Gaussian blur.");
                                 return;
                             }
-                            GaussianBlur gb = new GaussianBlur();
-                            int nSlices = donorInAImage.getImageStackSize();
-                            for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
-                                gb.blurGaussian(donorInAImage.getStack().getProcessor(currentSlice), sigma, sigma, 0.01);
-                            }
-                            donorInAImage.updateAndDraw();
-                            smoothDonorInAImageButton.setBackground(greenColor);
-                            smoothDonorInAImageButton.setOpaque(true);
-                            smoothDonorInAImageButton.setBorderPainted(false);
-                            log("Gaussian blurred transfer channel with sigma (radius) " + Double.parseDouble(sigmaFieldDA.getText().trim()) + " px.");
+                            double blurSigma = sigma;
+                            boolean recursive = recursiveBlurDACB.isSelected();
+                            runTask("Gaussian blur", task -> {
+                                GaussianSmoother.blur(donorInAImage.getStack(), blurSigma, recursive);
+                                return () -> {
+                                    donorInAImage.updateAndDraw();
+                                    smoothDonorInAImageButton.setBackground(greenColor);
+                                    smoothDonorInAImageButton.setOpaque(true);
+                                    smoothDonorInAImageButton.setBorderPainted(false);
+                                    log("Gaussian blurred transfer channel with sigma (radius) " + blurSigma + " px" + (recursive ? " (recursive filter)." : "."));
+                                };
+                            });
                         }
                     }
                     break;
@@ -2802,16 +2781,18 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                                 logError("Sigma (radius) has to be given for Gaussian blur.");
                                 return;
                             }
-                            GaussianBlur gb = new GaussianBlur();
-                            int nSlices = acceptorInAImage.getImageStackSize();
-                            for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
-                                gb.blurGaussian(acceptorInAImage.getStack().getProcessor(currentSlice), sigma, sigma, 0.01);
-                            }
-                            acceptorInAImage.updateAndDraw();
-                            smoothAcceptorInAImageButton.setBackground(greenColor);
-                            smoothAcceptorInAImageButton.setOpaque(true);
-                            smoothAcceptorInAImageButton.setBorderPainted(false);
-                            log("Gaussian blurred acceptor channel with sigma (radius) " + Double.parseDouble(sigmaFieldAA.getText().trim()) + " px.");
+                            double blurSigma = sigma;
+                            boolean recursive = recursiveBlurAACB.isSelected();
+                            runTask("Gaussian blur", task -> {
+                                GaussianSmoother.blur(acceptorInAImage.getStack(), blurSigma, recursive);
+                                return () -> {
+                                    acceptorInAImage.updateAndDraw();
+                                    smoothAcceptorInAImageButton.setBackground(greenColor);
+                                    smoothAcceptorInAImageButton.setOpaque(true);
+                                    smoothAcceptorInAImageButton.setBorderPainted(false);
+                                    log("Gaussian blurred acceptor channel with sigma (radius) " + blurSigma + " px" + (recursive ? " (recursive filter)." : "."));
+                                };
+                            });
                         }
                     }
                     break;
@@ -2829,16 +2810,18 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                                 logError("Sigma (radius) has to be given for Gaussian blur.");
                                 return;
                             }
-                            GaussianBlur gb = new GaussianBlur();
-                            int nSlices = autofluorescenceImage.getImageStackSize();
-                            for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
-                                gb.blurGaussian(autofluorescenceImage.getStack().getProcessor(currentSlice), sigma, sigma, 0.01);
-                            }
-                            autofluorescenceImage.updateAndDraw();
-                            smoothAutofluorescenceImageButton.setBackground(greenColor);
-                            smoothAutofluorescenceImageButton.setOpaque(true);
-                            smoothAutofluorescenceImageButton.setBorderPainted(false);
-                            log("Gaussian blurred autofluorescence channel with sigma (radius) " + Double.parseDouble(sigmaFieldAF.getText().trim()) + " px.");
+                            double blurSigma = sigma;
+                            boolean recursive = recursiveBlurAFCB.isSelected();
+                            runTask("Gaussian blur", task -> {
+                                GaussianSmoother.blur(autofluorescenceImage.getStack(), blurSigma, recursive);
+                                return () -> {
+                                    autofluorescenceImage.updateAndDraw();
+                                    smoothAutofluorescenceImageButton.setBackground(greenColor);
+                                    smoothAutofluorescenceImageButton.setOpaque(true);
+                                    smoothAutofluorescenceImageButton.setBorderPainted(false);
+                                    log("Gaussian blurred autofluorescence channel with sigma (radius) " + blurSigma + " px" + (recursive ? " (recursive filter)." : "."));
+                                };
+                            });
                         }
                     }
                     break;
@@ -2912,7 +2895,7 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                         alphaDialog.setVisible(true);
                     }
                     break;
-                case "createFretImage":
+                case "createFretImage": {
                     if (donorInDImage == null) {
                         logError("No image is set as donor channel.");
                         return;
@@ -2922,263 +2905,41 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                     } else if (acceptorInAImage == null) {
                         logError("No image is set as acceptor channel.");
                         return;
-                    } else {
-                        if (thresholdFretMinField.getText().trim().isEmpty()) {
-                            logError("Auto-threshold min value has to be given.");
-                            return;
-                        } else if (thresholdFretMaxField.getText().trim().isEmpty()) {
-                            logError("Auto-threshold max value has to be given.");
-                            return;
-                        }
-                        if (s1Field.getText().trim().isEmpty()) {
-                            logError("S1 factor has to be given.");
-                            return;
-                        } else if (s2Field.getText().trim().isEmpty()) {
-                            logError("S2 factor has to be given.");
-                            return;
-                        } else if (s3Field.getText().trim().isEmpty()) {
-                            logError("S3 factor has to be given.");
-                            return;
-                        } else if (s4Field.getText().trim().isEmpty()) {
-                            logError("S4 factor has to be given.");
-                            return;
-                        } else if (alphaField.getText().trim().isEmpty()) {
-                            logError("Alpha factor has to be given.");
-                            return;
-                        } else {
-                            double s1Factor = 0;
-                            try {
-                                s1Factor = Double.parseDouble(s1Field.getText().trim());
-                            } catch (NumberFormatException ex) {
-                                logError("S1 factor has to be given.");
-                                return;
-                            }
-                            if (s1Factor <= 0) {
-                                logWarning("S1 factor should be higher than 0.");
-                            }
-                            double s2Factor = 0;
-                            try {
-                                s2Factor = Double.parseDouble(s2Field.getText().trim());
-                            } catch (NumberFormatException ex) {
-                                logError("S2 factor has to be given.");
-                                return;
-                            }
-                            if (s2Factor <= 0) {
-                                logWarning("S2 factor should be higher than 0.");
-                            }
-                            double s3Factor = 0;
-                            try {
-                                s3Factor = Double.parseDouble(s3Field.getText().trim());
-                            } catch (NumberFormatException ex) {
-                                logError("S3 factor has to be given.");
-                                return;
-                            }
-                            if (s3Factor < 0) {
-                                logWarning("S3 factor should be higher than 0.");
-                            }
-                            double s4Factor = 0;
-                            try {
-                                s4Factor = Double.parseDouble(s4Field.getText().trim());
-                            } catch (NumberFormatException ex) {
-                                logError("S4 factor has to be given.");
-                                return;
-                            }
-                            if (s4Factor < 0) {
-                                logWarning("S4 factor should be higher than 0.");
-                            }
-                            double alphaFactor = 0;
-                            try {
-                                alphaFactor = Double.parseDouble(alphaField.getText().trim());
-                            } catch (NumberFormatException ex) {
-                                logError("Alpha factor has to be given.");
-                                return;
-                            }
-
-                            double autoThMin = 0;
-                            double autoThMax = 0;
-                            try {
-                                autoThMin = Double.parseDouble(thresholdFretMinField.getText().trim());
-                            } catch (NumberFormatException ex) {
-                                logError("Auto-threshold min value has to be given.");
-                                return;
-                            }
-
-                            try {
-                                autoThMax = Double.parseDouble(thresholdFretMaxField.getText().trim());
-                            } catch (NumberFormatException ex) {
-                                logError("Auto-threshold max value has to be given.");
-                                return;
-                            }
-
-                            int nSlices = donorInDImage.getImageStackSize();
-                            ImageStack transferStack = new ImageStack(donorInDImage.getProcessor().getWidth(), donorInDImage.getProcessor().getHeight());
-                            for (int currentSlice = 1; currentSlice <= nSlices; currentSlice++) {
-                                ImageProcessor ipDD = donorInDImage.getStack().getProcessor(currentSlice).duplicate();
-                                ImageProcessor ipDA = donorInAImage.getStack().getProcessor(currentSlice).duplicate();
-                                ImageProcessor ipAA = acceptorInAImage.getStack().getProcessor(currentSlice).duplicate();
-
-                                float[] ipDDP = (float[]) ipDD.getPixels();
-                                float[] ipDAP = (float[]) ipDA.getPixels();
-                                float[] ipAAP = (float[]) ipAA.getPixels();
-                                float[] ipDMP = (float[]) ipDD.getPixelsCopy();
-
-                                if (autofluorescenceCorrectionMenuItem.isSelected()) {
-                                    ImageProcessor ipAF = autofluorescenceImage.getStack().getProcessor(currentSlice).duplicate();
-
-                                    float[] ipAFP = (float[]) ipAF.getPixels();
-
-                                    double s5Factor = 0;
-                                    try {
-                                        s5Factor = Double.parseDouble(s5Field.getText().trim());
-                                    } catch (NumberFormatException ex) {
-                                        logError("S5 factor has to be given.");
-                                        return;
-                                    }
-                                    if (s5Factor < 0) {
-                                        logWarning("S5 factor should be higher than 0.");
-                                    }
-                                    double s6Factor = 0;
-                                    try {
-                                        s6Factor = Double.parseDouble(s6Field.getText().trim());
-                                    } catch (NumberFormatException ex) {
-                                        logError("S6 factor has to be given.");
-                                        return;
-                                    }
-                                    if (s6Factor < 0) {
-                                        logWarning("S6 factor should be higher than 0.");
-                                    }
-                                    double b1Factor = 0;
-                                    try {
-                                        b1Factor = Double.parseDouble(b1Field.getText().trim());
-                                    } catch (NumberFormatException ex) {
-                                        logError("B1 factor has to be given.");
-                                        return;
-                                    }
-                                    if (b1Factor < 0) {
-                                        logWarning("B1 factor should be higher than 0.");
-                                    }
-                                    double b2Factor = 0;
-                                    try {
-                                        b2Factor = Double.parseDouble(b2Field.getText().trim());
-                                    } catch (NumberFormatException ex) {
-                                        logError("B2 factor has to be given.");
-                                        return;
-                                    }
-                                    if (b2Factor < 0) {
-                                        logWarning("B2 factor should be higher than 0.");
-                                    }
-                                    double b3Factor = 0;
-                                    try {
-                                        b3Factor = Double.parseDouble(b3Field.getText().trim());
-                                    } catch (NumberFormatException ex) {
-                                        logError("B3 factor has to be given.");
-                                        return;
-                                    }
-                                    if (b3Factor < 0) {
-                                        logWarning("B3 factor should be higher than 0.");
-                                    }
-                                    double eRatio = 0;
-                                    try {
-                                        eRatio = Double.parseDouble(eRatioField.getText().trim());
-                                    } catch (NumberFormatException ex) {
-                                        logError("Ratio of epsilons has to be given.");
-                                        return;
-                                    }
-                                    if (eRatio < 0) {
-                                        logWarning("Ratio of epsilons should be higher than 0.");
-                                    }
-                                    for (int i = 0; i < ipDDP.length; i++) {
-                                        if (!Float.isNaN(ipDDP[i]) && !Float.isNaN(ipDAP[i]) && !Float.isNaN(ipAAP[i]) && !Float.isNaN(ipAFP[i])) {
-                                            ipDDP[i] = (float) ((s2Factor * (b2Factor * ipAFP[i] + ipDDP[i] * s1Factor + ipAAP[i] * s2Factor - s2Factor * (b3Factor * ipAFP[i] + ipDDP[i] * s3Factor) + b1Factor * ipAFP[i] * (-s1Factor + s2Factor * s3Factor) + (-ipAAP[i] + b3Factor * ipAFP[i]) * s1Factor * s4Factor + (b3Factor * ipDDP[i] - b1Factor * ipAAP[i]) * (s2Factor * s5Factor - s1Factor * s6Factor) + ipDAP[i] * (-1 + b1Factor * s5Factor - b3Factor * s4Factor * s5Factor + b3Factor * s6Factor + s3Factor * (s4Factor - b1Factor * s6Factor)) - b2Factor * (ipAFP[i] * s3Factor * s4Factor + ipAAP[i] * (-s4Factor * s5Factor + s6Factor) + ipDDP[i] * (s5Factor - s3Factor * s6Factor)))) / (alphaFactor * (-1 + eRatio) * (-b1Factor * ipAFP[i] * s2Factor - ipDAP[i] * s4Factor + b2Factor * ipAFP[i] * s4Factor + b1Factor * ipDAP[i] * s6Factor + ipDDP[i] * (s2Factor - b2Factor * s6Factor)) + s2Factor * (b2Factor * ipAFP[i] + ipDDP[i] * s1Factor + ipAAP[i] * s2Factor - s2Factor * (b3Factor * ipAFP[i] + ipDDP[i] * s3Factor) + b1Factor * ipAFP[i] * (-s1Factor + s2Factor * s3Factor) + (-ipAAP[i] + b3Factor * ipAFP[i]) * s1Factor * s4Factor + (b3Factor * ipDDP[i] - b1Factor * ipAAP[i]) * (s2Factor * s5Factor - s1Factor * s6Factor) + ipDAP[i] * (-1 + b1Factor * s5Factor - b3Factor * s4Factor * s5Factor + b3Factor * s6Factor + s3Factor * (s4Factor - b1Factor * s6Factor)) - b2Factor * (ipAFP[i] * s3Factor * s4Factor + ipAAP[i] * (-s4Factor * s5Factor + s6Factor) + ipDDP[i] * (s5Factor - s3Factor * s6Factor)))));
-                                        } else {
-                                            ipDDP[i] = Float.NaN;
-                                        }
-                                    }
-                                    int width = ipDD.getWidth();
-                                    int height = ipDD.getHeight();
-                                    float[][] tiPoints = new float[width][height];
-                                    for (int i = 0; i < width; i++) {
-                                        for (int j = 0; j < height; j++) {
-                                            tiPoints[i][j] = ipDDP[width * j + i];
-
-                                        }
-                                    }
-                                    FloatProcessor tiFp = new FloatProcessor(tiPoints);
-                                    transferStack.addSlice("" + currentSlice, tiFp);
-
-                                    if (correctedImagesCB.isSelected()) {
-                                        for (int i = 0; i < ipDDP.length; i++) {
-                                            ipDDP[i] = (float) (1 / (1 - ipDDP[i]) * ((ipAFP[i] * b1Factor - ipDMP[i]) / (b1Factor * s5Factor - 1)));
-                                            ipAAP[i] = (float) ((ipAFP[i] * b3Factor - ipDMP[i] * b3Factor * s5Factor + ipAAP[i] * (b1Factor * s5Factor - 1)) / (b1Factor * s5Factor - 1));
-                                        }
-                                        float[][] dcPoints = new float[width][height];
-                                        float[][] acPoints = new float[width][height];
-                                        for (int i = 0; i < width; i++) {
-                                            for (int j = 0; j < height; j++) {
-                                                dcPoints[i][j] = ipDDP[width * j + i];
-                                                acPoints[i][j] = ipAAP[width * j + i];
-
-                                            }
-                                        }
-                                        if (donorCorrImage != null) {
-                                            donorCorrImage.close();
-                                        }
-                                        donorCorrImage = new ImagePlus("Corrected Donor Channel - " + dateTimeFormat.format(OffsetDateTime.now()), new FloatProcessor(dcPoints));
-                                        donorCorrImage.show();
-
-                                        if (acceptorCorrImage != null) {
-                                            acceptorCorrImage.close();
-                                        }
-                                        acceptorCorrImage = new ImagePlus("Corrected Acceptor Channel - " + dateTimeFormat.format(OffsetDateTime.now()), new FloatProcessor(acPoints));
-                                        acceptorCorrImage.show();
-                                    }
-                                } else {
-                                    for (int i = 0; i < ipDDP.length; i++) {
-                                        if (!Float.isNaN(ipDDP[i]) && !Float.isNaN(ipDAP[i]) && !Float.isNaN(ipAAP[i])) {
-                                            ipDDP[i] = (float) ((s1Factor * s2Factor * (ipDAP[i] * (1 - s3Factor * s4Factor) - ipDDP[i] * (s1Factor - s2Factor * s3Factor) - ipAAP[i] * (s2Factor - s1Factor * s4Factor))) / ((s1Factor - s2Factor * s3Factor) * (ipDDP[i] * s2Factor - ipDAP[i] * s4Factor) * alphaFactor));
-                                        } else {
-                                            ipDDP[i] = Float.NaN;
-                                        }
-                                    }
-
-                                    for (int i = 0; i < ipDDP.length; i++) {
-                                        ipDDP[i] = ipDDP[i] / ((float) 1 + ipDDP[i]);
-                                    }
-                                    
-                                    int width = ipDD.getWidth();
-                                    int height = ipDD.getHeight();
-                                    float[][] tiPoints = new float[width][height];
-                                    for (int i = 0; i < width; i++) {
-                                        for (int j = 0; j < height; j++) {
-                                            tiPoints[i][j] = ipDDP[width * j + i];
-
-                                        }
-                                    }
-
-                                    FloatProcessor tiFp = new FloatProcessor(tiPoints);
-                                    transferStack.addSlice("" + currentSlice, tiFp);
-                                }
-                            }
-                            if (transferImage != null) {
-                                transferImage.close();
-                            }
-                            transferImage = new ImagePlus("FRET image - " + timeStampFormat.format(OffsetDateTime.now()), transferStack);
-                            transferImage.setCalibration(donorInDImage.getCalibration());
-                            transferImage.show();
-                        }
                     }
-                    donorInDImage.changes = false;
-                    donorInAImage.changes = false;
-                    acceptorInAImage.changes = false;
-                    if (autofluorescenceCorrectionMenuItem.isSelected()) {
-                        autofluorescenceImage.changes = false;
+                    if (thresholdFretMinField.getText().trim().isEmpty()) {
+                        logError("Auto-threshold min value has to be given.");
+                        return;
+                    } else if (thresholdFretMaxField.getText().trim().isEmpty()) {
+                        logError("Auto-threshold max value has to be given.");
+                        return;
                     }
-                    transferImageSave = new ImageStack(transferImage.getProcessor().getWidth(), transferImage.getProcessor().getHeight());
-                    int currentSlice = transferImage.getCurrentSlice();
-                    FloatProcessor flp = new FloatProcessor(transferImage.getStack().getProcessor(currentSlice).getWidth(), transferImage.getStack().getProcessor(currentSlice).getHeight());
-                    flp.setPixels(currentSlice, (FloatProcessor) transferImage.getStack().getProcessor(currentSlice).duplicate());
-                    transferImageSave.addSlice("" + currentSlice, flp);
+                    FretCalculator fretCalculator = createFretCalculator();
+                    if (fretCalculator == null) {
+                        return;
+                    }
+                    double autoThMin = 0;
+                    double autoThMax = 0;
+                    try {
+                        autoThMin = Double.parseDouble(thresholdFretMinField.getText().trim());
+                    } catch (NumberFormatException ex) {
+                        logError("Auto-threshold min value has to be given.");
+                        return;
+                    }
+
+                    try {
+                        autoThMax = Double.parseDouble(thresholdFretMaxField.getText().trim());
+                    } catch (NumberFormatException ex) {
+                        logError("Auto-threshold max value has to be given.");
+                        return;
+                    }
+
+                    runTask("FRET calculation", task -> {
+                        ImageStack transferStack = fretCalculator.createFretStack(donorInDImage.getStack(), donorInAImage.getStack(), acceptorInAImage.getStack(),
+                                fretCalculator.isAutofluorescenceCorrection() ? autofluorescenceImage.getStack() : null);
+                        return () -> showFretImage(fretCalculator, transferStack);
+                    });
                     break;
+                }
                 case "saveFretImage": {
                     if (transferImage == null) {
                         logError("FRET image is required.");
@@ -3192,16 +2953,9 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                         transferImage.setStack(correctedStack);
                         transferImage.updateAndDraw();
                     }
-                    if (outputPath == null) {
-                        FileSaver fs = new FileSaver(transferImage);
-                        if (fs.saveAsTiff()) {
-                            log("Saved " + transferImage.getTitle() + ".");
-                        }
-                    } else {
-                        FileSaver fs = new FileSaver(transferImage);
-                        if (fs.saveAsTiff(outputPath + currentlyProcessedFileName + " " + transferImage.getTitle() + ".tif")) {
-                            log("Saved " + transferImage.getTitle() + " to " + outputPath + currentlyProcessedFileName + " " + transferImage.getTitle() + ".tif" + ".");
-                        }
+                    FileSaver fs = new FileSaver(transferImage);
+                    if (fs.saveAsTiff()) {
+                        log("Saved " + transferImage.getTitle() + ".");
                     }
                     transferImage.updateAndDraw();
                     break;
@@ -3215,43 +2969,12 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                     resultsTable = Analyzer.getResultsTable();
                     resultsTable.setPrecision(3);
                     resultsTable.incrementCounter();
-                    currentSlice = transferImage.getCurrentSlice();
-                    int width = transferImage.getWidth();
-                    int height = transferImage.getHeight();
-                    int currentRow = resultsTable.getCounter();
-                    if (currentlyProcessedFileName != null) {
-                        resultsTable.setValue("File", currentRow, currentlyProcessedFileName);
-                    }
+                    int currentSlice = transferImage.getCurrentSlice();
                     ImageProcessor trProc = transferImage.getStack().getProcessor(currentSlice);
                     trProc.setRoi(transferImage.getRoi());
-                    if (transferImage.getRoi() != null) {
-                        Roi roi = transferImage.getRoi();
-                        int count = 0;
-                        int notNan = 0;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                if (roi.contains(i, j)) {
-                                    count++;
-                                    if (trProc.getPixelValue(i, j) >= -1) {
-                                        notNan++;
-                                    }
-                                }
-                            }
-                        }
-                        resultsTable.addValue("Pixels", count);
-                        resultsTable.addValue("Not NaN p.", notNan);
-                    } else {
-                        int notNan = 0;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                if (!Float.isNaN(trProc.getPixelValue(i, j))) {
-                                    notNan++;
-                                }
-                            }
-                        }
-                        resultsTable.addValue("Pixels", width * height);
-                        resultsTable.addValue("Not NaN p.", notNan);
-                    }
+                    RoiStatistics roiStatistics = new RoiStatistics(transferImage.getRoi(), transferImage.getWidth(), transferImage.getHeight());
+                    resultsTable.addValue("Pixels", roiStatistics.getPixelCount());
+                    resultsTable.addValue("Not NaN p.", roiStatistics.getNotNanCount((float[]) trProc.getPixels()));
                     ImageStatistics isMean = ImageStatistics.getStatistics(trProc, Measurements.MEAN, null);
                     resultsTable.addValue("Mean", (float) isMean.mean);
                     ImageStatistics isMedian = ImageStatistics.getStatistics(trProc, Measurements.MEDIAN, null);
@@ -3288,9 +3011,6 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                             + "click OK.\n\n"
                             + "Click OK to select the directory, CSV file containing parameters and channel order.\n", "Batch Processing of Images", JOptionPane.OK_CANCEL_OPTION);
                     if (choice == JOptionPane.YES_OPTION) {
-                        currentlyProcessedFile = 0;
-                        automaticallyProcessedFiles = null;
-                        currentlyProcessedFileName = null;
                         WindowManager.closeAllWindows();
                         log("Please select an input directory...");
                         DirectoryChooser chooser = new DirectoryChooser("Select Input Directory");
@@ -3298,17 +3018,11 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                         File dir = new File(currentDirectory);
                         log("Please select a CSV to load parameters...");
                         this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "loadParameters"));
-                        outputPath = currentDirectory + "Output" + File.separator;
+                        String outputPath = currentDirectory + "Output" + File.separator;
                         File output = new File(outputPath);
                         if (!output.exists()) {
                             output.mkdir();
                         }
-                        if (outputPath == null) {
-                            return;
-                        }
-                        nextButton.setVisible(true);
-                        useImageStacks.setSelected(true);
-                        automaticallyProcessedFiles = dir.listFiles();
                         log("Please set the channel order...");
                         GenericDialog gd = new GenericDialog("Set Channel Order");
                         gd.addNumericField("Donor Channel:", 1, 0);
@@ -3317,6 +3031,11 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                         if (autofluorescenceCorrectionMenuItem.isSelected()) {
                             gd.addNumericField("Autofluorescence Channel:", 4, 0);
                         }
+                        gd.addNumericField("Files Processed in Parallel:", Runtime.getRuntime().availableProcessors(), 0);
+                        gd.addCheckbox("Register channels with cached offsets", false);
+                        gd.addFileField("Registration offsets:", Prefs.getPrefsDir() + File.separator + "RiFRET_registration.csv");
+                        gd.addStringField("Setup:", "default");
+                        gd.addCheckbox("Find offsets in the first file if not cached", true);
                         gd.showDialog();
                         if (gd.wasCanceled()) {
                             return;
@@ -3327,18 +3046,14 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                         if (autofluorescenceCorrectionMenuItem.isSelected()) {
                             autofluorescenceSlice = (int) gd.getNextNumber();
                         }
-                        processFile(0);
+                        int nThreads = Math.max(1, (int) gd.getNextNumber());
+                        boolean register = gd.getNextBoolean();
+                        String registrationPath = gd.getNextString();
+                        String setup = gd.getNextString();
+                        boolean findRegistrationOffsets = gd.getNextBoolean();
+                        processFiles(BatchProcessor.listImageFiles(dir), outputPath, nThreads, register ? registrationPath : null, setup, findRegistrationOffsets);
                     }
                     break;
-                case "nextImage":
-                    closeImages();
-                    IJ.selectWindow("Results");
-                    WindowManager.putBehind();
-                    if (WindowManager.getCurrentImage() != null) {
-                        WindowManager.getCurrentImage().close();
-                    }
-                    processFile(++currentlyProcessedFile);
-                    break;
                 case "resetImages":
                     resetAll();
                     break;
@@ -3391,6 +3106,7 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                         smoothAutofluorescenceImageLabel.setVisible(true);
                         sigmaFieldAF.setVisible(true);
                         smoothAutofluorescenceImageButton.setVisible(true);
+                        recursiveBlurAFCB.setVisible(true);
                         thresholdAutofluorescenceImageLabel.setVisible(true);
                         resetAFButton.setVisible(true);
                         thresholdAFMinField.setVisible(true);
@@ -3432,6 +3148,7 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
                         smoothAutofluorescenceImageLabel.setVisible(false);
                         sigmaFieldAF.setVisible(false);
                         smoothAutofluorescenceImageButton.setVisible(false);
+                        recursiveBlurAFCB.setVisible(false);
                         thresholdAutofluorescenceImageLabel.setVisible(false);
                         resetAFButton.setVisible(false);
                         thresholdAFMinField.setVisible(false);
@@ -3491,74 +3208,382 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
         }
     }
 
-    private void processFile(int currentFile) {
-        resetAllButtonColors();
-        if (currentFile >= automaticallyProcessedFiles.length) {
-            log("Processing files has been finished.");
-            nextButton.setVisible(false);
-            IJ.selectWindow("Results");
-            IJ.saveAs("Results", outputPath + "Results.csv");
-            log("Saved results to: " + outputPath + "Results.csv.");
-            currentlyProcessedFile = 0;
-            automaticallyProcessedFiles = null;
-            currentlyProcessedFileName = null;
-            outputPath = null;
+    /**
+     * Runs a long operation in the background, showing its progress below the
+     * messages. Only one operation can run at a time; the dialogs use it as
+     * well.
+     */
+    void runTask(String name, BackgroundTask.Operation operation) {
+        currentTask = new BackgroundTask(this, name, operation);
+        currentTask.addPropertyChangeListener(event -> {
+            if ("progress".equals(event.getPropertyName())) {
+                progressBar.setIndeterminate(false);
+                progressBar.setValue((Integer) event.getNewValue());
+            }
+        });
+        progressBar.setIndeterminate(true);
+        progressBar.setValue(0);
+        taskPanel.setVisible(true);
+        taskPanel.revalidate();
+        currentTask.execute();
+    }
+
+    /**
+     * Whether a background operation is running, and if so, logs a warning.
+     * The main window and the dialogs do not start anything else meanwhile,
+     * as the operation may be reading or writing the channel images.
+     */
+    public boolean isTaskRunning() {
+        if (currentTask != null && !currentTask.isFinished()) {
+            logWarning("Please wait until the running operation finishes, or cancel it.");
+            return true;
+        }
+        return false;
+    }
+
+    void taskFinished() {
+        taskPanel.setVisible(false);
+        taskPanel.revalidate();
+    }
+
+    /**
+     * Finds the shifts of the channel stacks onto the donor channel, slice by
+     * slice or every slice with the shift found for the given slice. The
+     * donor channel is transformed once for all channels.
+     */
+    private double[][][] findRegistrationShifts(ImageStack[] stacks, boolean perSlice, int slice) {
+        if (perSlice) {
+            return ChannelRegistration.findShifts(donorInDImage.getStack(), stacks);
+        }
+        ChannelRegistration registration = new ChannelRegistration(donorInDImage.getStack().getProcessor(slice));
+        double[][][] shifts = new double[stacks.length][][];
+        for (int k = 0; k < stacks.length; k++) {
+            shifts[k] = new double[stacks[k].getSize()][];
+            Arrays.fill(shifts[k], registration.findShift(stacks[k].getProcessor(slice)));
+        }
+        return shifts;
+    }
+
+    /**
+     * Shifts the slices of the channel by the given shifts. The shifts are
+     * added to the table.
+     */
+    private void registerChannel(ImagePlus image, String channelName, double[][] shifts, boolean perSlice, ResultsTable registrationTable) {
+        ChannelRegistration.shift(image.getStack(), shifts, Float.NaN);
+        DecimalFormat df = new DecimalFormat("#.##");
+        registrationTable.setPrecision(3);
+        for (int i = 0; i < shifts.length; i++) {
+            if (registrationTable.size() <= i) {
+                registrationTable.incrementCounter();
+                registrationTable.addValue("Slice", i + 1);
+            }
+            registrationTable.setValue(channelName + " dx", i, shifts[i][0]);
+            registrationTable.setValue(channelName + " dy", i, shifts[i][1]);
+        }
+        if (shifts.length == 1 || !perSlice) {
+            log("Shifted " + channelName + " channel image by " + df.format(shifts[0][0]) + " pixels horizontally and " + df.format(shifts[0][1]) + " pixels vertically.");
+        } else {
+            log("Shifted the slices of " + channelName + " channel image, see the Registration table.");
+        }
+        log("Registration of " + channelName + " channel has been finished.");
+    }
+
+    /**
+     * Processes the files in the background. If a registration offset file is
+     * given, the channels are shifted by the offsets of the setup; missing
+     * offsets are found in the first file and cached if requested.
+     */
+    private void processFiles(File[] files, String outputPath, int nThreads, String registrationPath, String setup, boolean findRegistrationOffsets) {
+        FretCalculator fretCalculator = createFretCalculator();
+        if (fretCalculator == null) {
             return;
         }
-        if (!automaticallyProcessedFiles[currentFile].isFile() || !(automaticallyProcessedFiles[currentFile].getName().toLowerCase().endsWith(".lsm") || automaticallyProcessedFiles[currentFile].getName().toLowerCase().endsWith(".czi") || automaticallyProcessedFiles[currentFile].getName().toLowerCase().endsWith(".tif"))) {
-            processFile(++currentlyProcessedFile);
+        FretPipeline fretPipeline = createFretPipeline(fretCalculator);
+        if (fretPipeline == null) {
             return;
         }
-        log("Current file is: " + automaticallyProcessedFiles[currentFile].getName());
-        currentlyProcessedFileName = automaticallyProcessedFiles[currentFile].getName();
-        (new Opener()).open(automaticallyProcessedFiles[currentFile].getAbsolutePath());
-        WindowManager.putBehind();
-        WindowManager.getCurrentImage().getImageStack().setSliceLabel("Donor", donorInDSlice);
-        WindowManager.getCurrentImage().getImageStack().setSliceLabel("Transfer", donorInASlice);
-        WindowManager.getCurrentImage().getImageStack().setSliceLabel("Acceptor", acceptorInASlice);
-        if (autofluorescenceCorrectionMenuItem.isSelected()) {
-            WindowManager.getCurrentImage().getImageStack().setSliceLabel("Autofluorescence", autofluorescenceSlice);
-        }
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "split"));
-        WindowManager.setTempCurrentImage(WindowManager.getImage("Donor"));
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "setDonorInDImage"));
-        WindowManager.setTempCurrentImage(WindowManager.getImage("Transfer"));
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "setDonorInAImage"));
-        WindowManager.setTempCurrentImage(WindowManager.getImage("Acceptor"));
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "setAcceptorInAImage"));
-        if (autofluorescenceCorrectionMenuItem.isSelected()) {
-            WindowManager.setTempCurrentImage(WindowManager.getImage("Autofluorescence"));
-            this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "setAutofluorescenceImage"));
+        BatchProcessor batchProcessor = new BatchProcessor(fretPipeline, donorInDSlice, donorInASlice, acceptorInASlice, autofluorescenceSlice, nThreads);
+        batchProcessor.setSaveCorrectedImages(correctedImagesCB.isSelected());
+        log("Processing " + files.length + " files, " + nThreads + " at a time...");
+        runTask("Processing files", task -> {
+            if (registrationPath != null) {
+                RegistrationCache registrationCache = RegistrationCache.load(registrationPath);
+                RegistrationCache.Offsets registrationOffsets = registrationCache.get(setup);
+                if (registrationOffsets == null && !findRegistrationOffsets) {
+                    logError("No registration offsets of setup \"" + setup + "\" in: " + registrationPath);
+                    return null;
+                } else if (registrationOffsets == null && files.length > 0) {
+                    // The offsets are found in the first file that can be registered.
+                    for (File file : files) {
+                        try {
+                            registrationOffsets = batchProcessor.findRegistrationOffsets(file);
+                        } catch (IOException | IllegalArgumentException ex) {
+                            logWarning("Could not find registration offsets in " + file.getName() + ": " + ex.getMessage());
+                            continue;
+                        }
+                        registrationCache.put(setup, registrationOffsets);
+                        registrationCache.save(registrationPath);
+                        log("Saved registration offsets of setup \"" + setup + "\" found in " + file.getName() + " to: " + registrationPath);
+                        break;
+                    }
+                    if (registrationOffsets == null) {
+                        logError("Could not find registration offsets of setup \"" + setup + "\" in any file.");
+                        return null;
+                    }
+                }
+                batchProcessor.setRegistrationOffsets(registrationOffsets);
+            }
+            AtomicInteger nFinished = new AtomicInteger();
+            List<BatchProcessor.FileResult> results = batchProcessor.process(files, outputPath, result -> {
+                int finished = nFinished.incrementAndGet();
+                String position = " (" + finished + "/" + files.length + ")";
+                if (result.isProcessed()) {
+                    log("Processed " + result.getFile().getName() + position + ".");
+                } else {
+                    logError("Processing " + result.getFile().getName() + " failed" + position + ": " + result.getError());
+                }
+                task.setProgress(finished, files.length);
+            });
+            int nFailed = 0;
+            for (BatchProcessor.FileResult result : results) {
+                if (!result.isProcessed()) {
+                    nFailed++;
+                }
+            }
+            log("Processing files has been finished. Processed: " + (results.size() - nFailed) + ", failed: " + nFailed + ".");
+            ResultsTable batchResultsTable = BatchProcessor.createResultsTable(results);
+            try {
+                batchResultsTable.saveAs(outputPath + "Results.csv");
+                log("Saved results to: " + outputPath + "Results.csv.");
+            } catch (IOException ex) {
+                logError("Could not save results to: " + outputPath + "Results.csv.");
+            }
+            return () -> batchResultsTable.show("Results");
+        });
+    }
+
+    private FretCalculator createFretCalculator() {
+        if (s1Field.getText().trim().isEmpty()) {
+            logError("S1 factor has to be given.");
+            return null;
+        } else if (s2Field.getText().trim().isEmpty()) {
+            logError("S2 factor has to be given.");
+            return null;
+        } else if (s3Field.getText().trim().isEmpty()) {
+            logError("S3 factor has to be given.");
+            return null;
+        } else if (s4Field.getText().trim().isEmpty()) {
+            logError("S4 factor has to be given.");
+            return null;
+        } else if (alphaField.getText().trim().isEmpty()) {
+            logError("Alpha factor has to be given.");
+            return null;
         }
-        if (Double.parseDouble(sigmaFieldDD.getText().trim()) > 0) {
-            this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "smoothDD"));
+        double s1Factor = 0;
+        try {
+            s1Factor = Double.parseDouble(s1Field.getText().trim());
+        } catch (NumberFormatException ex) {
+            logError("S1 factor has to be given.");
+            return null;
         }
-        if (Double.parseDouble(sigmaFieldDA.getText().trim()) > 0) {
-            this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "smoothDA"));
+        if (s1Factor <= 0) {
+            logWarning("S1 factor should be higher than 0.");
         }
-        if (Double.parseDouble(sigmaFieldAA.getText().trim()) > 0) {
-            this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "smoothAA"));
+        double s2Factor = 0;
+        try {
+            s2Factor = Double.parseDouble(s2Field.getText().trim());
+        } catch (NumberFormatException ex) {
+            logError("S2 factor has to be given.");
+            return null;
         }
-        if (autofluorescenceCorrectionMenuItem.isSelected() && Double.parseDouble(sigmaFieldAF.getText().trim()) > 0) {
-            this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "smoothAF"));
+        if (s2Factor <= 0) {
+            logWarning("S2 factor should be higher than 0.");
         }
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "subtractDonorInDImage"));
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "subtractDonorInAImage"));
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "subtractAcceptorInAImage"));
+        double s3Factor = 0;
+        try {
+            s3Factor = Double.parseDouble(s3Field.getText().trim());
+        } catch (NumberFormatException ex) {
+            logError("S3 factor has to be given.");
+            return null;
+        }
+        if (s3Factor < 0) {
+            logWarning("S3 factor should be higher than 0.");
+        }
+        double s4Factor = 0;
+        try {
+            s4Factor = Double.parseDouble(s4Field.getText().trim());
+        } catch (NumberFormatException ex) {
+            logError("S4 factor has to be given.");
+            return null;
+        }
+        if (s4Factor < 0) {
+            logWarning("S4 factor should be higher than 0.");
+        }
+        double alphaFactor = 0;
+        try {
+            alphaFactor = Double.parseDouble(alphaField.getText().trim());
+        } catch (NumberFormatException ex) {
+            logError("Alpha factor has to be given.");
+            return null;
+        }
+
+        FretCalculator fretCalculator;
         if (autofluorescenceCorrectionMenuItem.isSelected()) {
-            this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "subtractAutofluorescenceImage"));
+            double s5Factor = 0;
+            try {
+                s5Factor = Double.parseDouble(s5Field.getText().trim());
+            } catch (NumberFormatException ex) {
+                logError("S5 factor has to be given.");
+                return null;
+            }
+            if (s5Factor < 0) {
+                logWarning("S5 factor should be higher than 0.");
+            }
+            double s6Factor = 0;
+            try {
+                s6Factor = Double.parseDouble(s6Field.getText().trim());
+            } catch (NumberFormatException ex) {
+                logError("S6 factor has to be given.");
+                return null;
+            }
+            if (s6Factor < 0) {
+                logWarning("S6 factor should be higher than 0.");
+            }
+            double b1Factor = 0;
+            try {
+                b1Factor = Double.parseDouble(b1Field.getText().trim());
+            } catch (NumberFormatException ex) {
+                logError("B1 factor has to be given.");
+                return null;
+            }
+            if (b1Factor < 0) {
+                logWarning("B1 factor should be higher than 0.");
+            }
+            double b2Factor = 0;
+            try {
+                b2Factor = Double.parseDouble(b2Field.getText().trim());
+            } catch (NumberFormatException ex) {
+                logError("B2 factor has to be given.");
+                return null;
+            }
+            if (b2Factor < 0) {
+                logWarning("B2 factor should be higher than 0.");
+            }
+            double b3Factor = 0;
+            try {
+                b3Factor = Double.parseDouble(b3Field.getText().trim());
+            } catch (NumberFormatException ex) {
+                logError("B3 factor has to be given.");
+                return null;
+            }
+            if (b3Factor < 0) {
+                logWarning("B3 factor should be higher than 0.");
+            }
+            double eRatio = 0;
+            try {
+                eRatio = Double.parseDouble(eRatioField.getText().trim());
+            } catch (NumberFormatException ex) {
+                logError("Ratio of epsilons has to be given.");
+                return null;
+            }
+            if (eRatio < 0) {
+                logWarning("Ratio of epsilons should be higher than 0.");
+            }
+            fretCalculator = new FretCalculator(s1Factor, s2Factor, s3Factor, s4Factor, s5Factor, s6Factor, b1Factor, b2Factor, b3Factor, alphaFactor, eRatio);
+        } else {
+            fretCalculator = new FretCalculator(s1Factor, s2Factor, s3Factor, s4Factor, alphaFactor);
+        }
+
+        return fretCalculator;
+    }
+
+    private FretPipeline createFretPipeline(FretCalculator fretCalculator) {
+        try {
+            return getParameters().createFretPipeline(fretCalculator);
+        } catch (IllegalArgumentException ex) {
+            logError(ex.getMessage());
+            return null;
         }
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "thresholdDonorInDImage"));
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "thresholdDonorInAImage"));
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "thresholdAcceptorInAImage"));
+    }
+
+    private FretParameters getParameters() {
+        FretParameters parameters = new FretParameters();
+        parameters.set("S1", "" + getS1Factor());
+        parameters.set("S2", "" + getS2Factor());
+        parameters.set("S3", "" + getS3Factor());
+        parameters.set("S4", "" + getS4Factor());
+        parameters.set("S5", "" + getS5Factor());
+        parameters.set("S6", "" + getS6Factor());
+        parameters.set("B1", "" + getB1Factor());
+        parameters.set("B2", "" + getB2Factor());
+        parameters.set("B3", "" + getB3Factor());
+        parameters.set("EPSRAT", eRatioField.getText());
+        parameters.set("ALPHA", alphaField.getText());
+        parameters.set("BLUR_D", sigmaFieldDD.getText());
+        parameters.set("BLUR_T", sigmaFieldDA.getText());
+        parameters.set("BLUR_A", sigmaFieldAA.getText());
+        parameters.set("BLUR_AF", sigmaFieldAF.getText());
+        parameters.set("RECURSIVE_BLUR_D", String.valueOf(recursiveBlurDDCB.isSelected()));
+        parameters.set("RECURSIVE_BLUR_T", String.valueOf(recursiveBlurDACB.isSelected()));
+        parameters.set("RECURSIVE_BLUR_A", String.valueOf(recursiveBlurAACB.isSelected()));
+        parameters.set("RECURSIVE_BLUR_AF", String.valueOf(recursiveBlurAFCB.isSelected()));
+        parameters.set("IBG_D", autoflDInDField.getText());
+        parameters.set("IBG_T", autoflAInDField.getText());
+        parameters.set("IBG_A", autoflAInAField.getText());
+        parameters.set("IBG_AF", autoflAFField.getText());
+        parameters.set("THRES_D_MIN", thresholdDonorMinField.getText());
+        parameters.set("THRES_D_MAX", thresholdDonorMaxField.getText());
+        parameters.set("THRES_T_MIN", thresholdTransferMinField.getText());
+        parameters.set("THRES_T_MAX", thresholdTransferMaxField.getText());
+        parameters.set("THRES_A_MIN", thresholdAcceptorMinField.getText());
+        parameters.set("THRES_A_MAX", thresholdAcceptorMaxField.getText());
+        parameters.set("THRES_AF_MIN", thresholdAFMinField.getText());
+        parameters.set("THRES_AF_MAX", thresholdAFMaxField.getText());
+        parameters.set("THRES_FRET_MIN", thresholdFretMinField.getText());
+        parameters.set("THRES_FRET_MAX", thresholdFretMaxField.getText());
+        return parameters;
+    }
+
+    private void showFretImage(FretCalculator fretCalculator, ImageStack transferStack) {
+        if (fretCalculator.isAutofluorescenceCorrection() && correctedImagesCB.isSelected()) {
+            int nSlices = transferStack.getSize();
+            int width = transferStack.getWidth();
+            int height = transferStack.getHeight();
+            float[] ipEP = (float[]) transferStack.getPixels(nSlices);
+            float[] ipDDP = (float[]) donorInDImage.getStack().getPixels(nSlices);
+            float[] ipAAP = (float[]) acceptorInAImage.getStack().getPixels(nSlices);
+            float[] ipAFP = (float[]) autofluorescenceImage.getStack().getPixels(nSlices);
+            float[] ipDCP = fretCalculator.calculateCorrectedDonor(ipEP, ipDDP, ipAFP);
+            float[] ipACP = fretCalculator.calculateCorrectedAcceptor(ipDDP, ipAAP, ipAFP);
+            if (donorCorrImage != null) {
+                donorCorrImage.close();
+            }
+            donorCorrImage = new ImagePlus("Corrected Donor Channel - " + dateTimeFormat.format(OffsetDateTime.now()), new FloatProcessor(width, height, ipDCP));
+            donorCorrImage.show();
+
+            if (acceptorCorrImage != null) {
+                acceptorCorrImage.close();
+            }
+            acceptorCorrImage = new ImagePlus("Corrected Acceptor Channel - " + dateTimeFormat.format(OffsetDateTime.now()), new FloatProcessor(width, height, ipACP));
+            acceptorCorrImage.show();
+        }
+        if (transferImage != null) {
+            transferImage.close();
+        }
+        transferImage = new ImagePlus("FRET image - " + timeStampFormat.format(OffsetDateTime.now()), transferStack);
+        transferImage.setCalibration(donorInDImage.getCalibration());
+        transferImage.show();
+        donorInDImage.changes = false;
+        donorInAImage.changes = false;
+        acceptorInAImage.changes = false;
         if (autofluorescenceCorrectionMenuItem.isSelected()) {
-            this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "thresholdAutofluorescenceImage"));
+            autofluorescenceImage.changes = false;
         }
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "createFretImage"));
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "thresholdFretImage"));
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "saveFretImage"));
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "measureFretImage"));
-        this.actionPerformed(new ActionEvent(this, ActionEvent.ACTION_PERFORMED, "nextImage"));
+        transferImageSave = new ImageStack(transferImage.getProcessor().getWidth(), transferImage.getProcessor().getHeight());
+        int currentSlice = transferImage.getCurrentSlice();
+        FloatProcessor flp = new FloatProcessor(transferImage.getStack().getProcessor(currentSlice).getWidth(), transferImage.getStack().getProcessor(currentSlice).getHeight());
+        flp.setPixels(currentSlice, (FloatProcessor) transferImage.getStack().getProcessor(currentSlice).duplicate());
+        transferImageSave.addSlice("" + currentSlice, flp);
     }
 
     void registerToDonorChannel() {
@@ -3578,10 +3603,6 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
         autofluorescenceImageSave = null;
         resetAllButtonColors();
 
-        nextButton.setVisible(false);
-        currentlyProcessedFile = 0;
-        automaticallyProcessedFiles = null;
-        currentlyProcessedFileName = null;
     }
 
     private void resetAllButtonColors() {
@@ -3657,43 +3678,44 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
     }
 
     public void log(String text) {
-        try {
-            log.getDocument().insertString(log.getDocument().getLength(), "\n" + timeFormat.format(LocalTime.now()) + " " + text, log.getStyle("BLACK"));
-            log.setCaretPosition(log.getDocument().getLength());
-        } catch (javax.swing.text.BadLocationException e) {
-        }
+        appendToLog(text, "BLACK");
     }
 
     public void logError(String text) {
-        try {
-            log.getDocument().insertString(log.getDocument().getLength(), "\n" + timeFormat.format(LocalTime.now()) + " ERROR: " + text, log.getStyle("RED"));
-            log.setCaretPosition(log.getDocument().getLength());
-        } catch (javax.swing.text.BadLocationException e) {
-        }
+        appendToLog("ERROR: " + text, "RED");
     }
 
     public void logWarning(String text) {
-        try {
-            log.getDocument().insertString(log.getDocument().getLength(), "\n" + timeFormat.format(LocalTime.now()) + " WARNING: " + text, log.getStyle("BLUE"));
-            log.setCaretPosition(log.getDocument().getLength());
-        } catch (javax.swing.text.BadLocationException e) {
-        }
+        appendToLog("WARNING: " + text, "BLUE");
     }
 
     public void logException(String message, Throwable t) {
-        try {
-            if (debugMenuItem.isSelected()) {
-                StringWriter sw = new StringWriter();
-                PrintWriter pw = new PrintWriter(sw);
-                t.printStackTrace(pw);
-                pw.flush();
-                log.getDocument().insertString(log.getDocument().getLength(), "\n" + timeFormat.format(LocalTime.now()) + " ERROR: " + sw.toString(), log.getStyle("RED"));
-                log.setCaretPosition(log.getDocument().getLength());
-            } else {
-                log.getDocument().insertString(log.getDocument().getLength(), "\n" + timeFormat.format(LocalTime.now()) + " ERROR: " + message, log.getStyle("RED"));
+        if (debugMenuItem.isSelected()) {
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter(sw);
+            t.printStackTrace(pw);
+            pw.flush();
+            appendToLog("ERROR: " + sw.toString(), "RED");
+        } else {
+            appendToLog("ERROR: " + message, "RED");
+        }
+    }
+
+    // Messages may come from background tasks, but the document is only
+    // modified on the event dispatch thread.
+    private void appendToLog(String text, String styleName) {
+        String line = "\n" + timeFormat.format(LocalTime.now()) + " " + text;
+        Runnable append = () -> {
+            try {
+                log.getDocument().insertString(log.getDocument().getLength(), line, log.getStyle(styleName));
                 log.setCaretPosition(log.getDocument().getLength());
+            } catch (javax.swing.text.BadLocationException e) {
             }
-        } catch (javax.swing.text.BadLocationException e) {
+        };
+        if (SwingUtilities.isEventDispatchThread()) {
+            append.run();
+        } else {
+            SwingUtilities.invokeLater(append);
         }
     }
 
@@ -3904,6 +3926,78 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
         b3Field.setText(value);
     }
 
+    /**
+     * The estimator of the correction factors, one of the estimators of
+     * RatioCalculator.
+     */
+    public int getFactorEstimator() {
+        return factorEstimator;
+    }
+
+    /**
+     * Whether 95% bootstrap confidence intervals of the correction factors
+     * are calculated.
+     */
+    public boolean isBootstrap() {
+        return bootstrapMenuItem.isSelected();
+    }
+
+    /**
+     * Logs the 95% bootstrap confidence intervals of the factors. The ratio
+     * calculator has to be set to bootstrap before adding the pixels. Nothing
+     * is logged without counted pixels, and only a warning if there are too
+     * few bands of pixels for the bootstrap.
+     */
+    public void logConfidenceIntervals(RatioCalculator ratioCalculator, String[] names, String source) {
+        if (ratioCalculator.getCount() == 0) {
+            return;
+        }
+        if (ratioCalculator.getBootstrapBlockCount() < RatioCalculator.MIN_BOOTSTRAP_BLOCKS) {
+            logWarning("Too few bands of pixels (" + ratioCalculator.getBootstrapBlockCount() + ", at least " + RatioCalculator.MIN_BOOTSTRAP_BLOCKS
+                    + " needed) for confidence intervals. (" + source + ")");
+            return;
+        }
+        double[][] intervals = ratioCalculator.getConfidenceIntervals(bootstrapResamples, 0);
+        DecimalFormat df = new DecimalFormat("#.####");
+        for (int k = 0; k < names.length; k++) {
+            log(names[k] + " 95% confidence interval: " + df.format(intervals[k][0]) + " - " + df.format(intervals[k][1]) + ". (" + source + ")");
+        }
+    }
+
+    private void setFactor(String name, String value) {
+        switch (name) {
+            case "S1":
+                setS1Factor(value);
+                break;
+            case "S2":
+                setS2Factor(value);
+                break;
+            case "S3":
+                setS3Factor(value);
+                break;
+            case "S4":
+                setS4Factor(value);
+                break;
+            case "S5":
+                setS5Factor(value);
+                break;
+            case "S6":
+                setS6Factor(value);
+                break;
+            case "B1":
+                setB1Factor(value);
+                break;
+            case "B2":
+                setB2Factor(value);
+                break;
+            case "B3":
+                setB3Factor(value);
+                break;
+            default:
+                break;
+        }
+    }
+
     public void setAlphaFactor(String value) {
         alphaField.setText(value);
     }
@@ -3913,7 +4007,11 @@ public class RiFRET_Plugin extends JFrame implements ActionListener, WindowListe
     }
 
     public static void main(String args[]) {
-        new RiFRET_Plugin();
+        if (args.length > 0) {
+            HeadlessBatch.main(args);
+        } else {
+            new RiFRET_Plugin();
+        }
     }
 
 }
@@ -0,0 +1,125 @@
+/*-
+ * #%L
+ * an ImageJ plugin for intensity-based three-filter set FRET.
+ * %%
+ * Copyright (C) 2009 - 2023 RiFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+
+/**
+ * Statistics of the pixels inside a ROI. The ROI is rasterized once into a
+ * mask of its bounding box, and only the rows and columns of the bounding
+ * box are scanned, so the same ROI can be measured on many slices cheaply.
+ */
+public class RoiStatistics {
+
+    private final int width;
+    private final Rectangle roiBounds;
+    private final Rectangle bounds;
+    // Mask of the bounding box, null for rectangles.
+    private final byte[] mask;
+    private final int pixelCount;
+
+    /**
+     * Creates the statistics of the ROI on images of the given size. Without
+     * ROI the whole image is measured.
+     */
+    public RoiStatistics(Roi roi, int width, int height) {
+        this.width = width;
+        Rectangle imageBounds = new Rectangle(0, 0, width, height);
+        if (roi == null) {
+            roiBounds = imageBounds;
+            mask = null;
+        } else {
+            roiBounds = roi.getBounds();
+            ImageProcessor maskProcessor = roi.getMask();
+            mask = maskProcessor != null ? (byte[]) maskProcessor.getPixels() : null;
+        }
+        bounds = roiBounds.intersection(imageBounds);
+        int count = 0;
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+            for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+                if (isInside(x, y)) {
+                    count++;
+                }
+            }
+        }
+        pixelCount = count;
+    }
+
+    /**
+     * Mean of the ROI pixels of a 32-bit image.
+     */
+    public static double getMean(ImageProcessor ip, Roi roi) {
+        return new RoiStatistics(roi, ip.getWidth(), ip.getHeight()).getMean((float[]) ip.getPixels());
+    }
+
+    /**
+     * Number of image pixels inside the ROI.
+     */
+    public int getPixelCount() {
+        return pixelCount;
+    }
+
+    /**
+     * Mean of the ROI pixels of a row-major pixel array.
+     */
+    public double getMean(float[] pixels) {
+        double sum = 0;
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+            int offset = y * width;
+            if (mask == null) {
+                for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+                    sum += pixels[offset + x];
+                }
+            } else {
+                for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+                    if (isInside(x, y)) {
+                        sum += pixels[offset + x];
+                    }
+                }
+            }
+        }
+        return sum / pixelCount;
+    }
+
+    /**
+     * Number of ROI pixels that are not NaN.
+     */
+    public int getNotNanCount(float[] pixels) {
+        int count = 0;
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+            int offset = y * width;
+            for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+                if (isInside(x, y) && !Float.isNaN(pixels[offset + x])) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private boolean isInside(int x, int y) {
+        return mask == null || mask[(y - roiBounds.y) * roiBounds.width + x - roiBounds.x] != 0;
+    }
+}
@@ -283,6 +283,9 @@ public class S1S3Dialog extends JDialog implements ActionListener {
 
     @Override
     public void actionPerformed(ActionEvent e) {
+        if (mainWindow.isTaskRunning()) {
+            return;
+        }
         try {
             switch (e.getActionCommand()) {
                 case "reset":
@@ -432,16 +435,8 @@ public class S1S3Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipD = donorImg.getProcessor();
-                        int width = donorImg.getWidth();
-                        int height = donorImg.getHeight();
                         donorImgSave = new ImageStack(ipD.getWidth(), ipD.getHeight());
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipD.getPixelValue(x, y);
-                                value -= autofl;
-                                ipD.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipD, autofl);
                         FloatProcessor flp = new FloatProcessor(ipD.getWidth(), ipD.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipD.duplicate());
                         donorImgSave.addSlice("" + 1, flp);
@@ -458,28 +453,10 @@ public class S1S3Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipD = donorImg.getProcessor();
-                        int width = donorImg.getWidth();
-                        int height = donorImg.getHeight();
                         donorImgSave = new ImageStack(ipD.getWidth(), ipD.getHeight());
-                        double sum = 0;
-                        int count = 0;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                if (donorImg.getRoi().contains(i, j)) {
-                                    sum += ipD.getPixelValue(i, j);
-                                    count++;
-                                }
-                            }
-                        }
-                        float backgroundAvgD = (float) (sum / count);
+                        float backgroundAvgD = (float) RoiStatistics.getMean(ipD, donorImg.getRoi());
                         backgroundAvgD += autofl;
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipD.getPixelValue(x, y);
-                                value -= backgroundAvgD;
-                                ipD.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipD, backgroundAvgD);
                         FloatProcessor flp = new FloatProcessor(ipD.getWidth(), ipD.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipD.duplicate());
                         donorImgSave.addSlice("" + 1, flp);
@@ -507,16 +484,8 @@ public class S1S3Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipT = transferImg.getProcessor();
-                        int width = transferImg.getWidth();
-                        int height = transferImg.getHeight();
                         transferImgSave = new ImageStack(ipT.getWidth(), ipT.getHeight());
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipT.getPixelValue(x, y);
-                                value -= autofl;
-                                ipT.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipT, autofl);
                         FloatProcessor flp = new FloatProcessor(ipT.getWidth(), ipT.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipT.duplicate());
                         transferImgSave.addSlice("" + 1, flp);
@@ -533,28 +502,10 @@ public class S1S3Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipT = transferImg.getProcessor();
-                        int width = transferImg.getWidth();
-                        int height = transferImg.getHeight();
                         transferImgSave = new ImageStack(ipT.getWidth(), ipT.getHeight());
-                        double sum = 0;
-                        int count = 0;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                if (transferImg.getRoi().contains(i, j)) {
-                                    sum += ipT.getPixelValue(i, j);
-                                    count++;
-                                }
-                            }
-                        }
-                        float backgroundAvgT = (float) (sum / count);
+                        float backgroundAvgT = (float) RoiStatistics.getMean(ipT, transferImg.getRoi());
                         backgroundAvgT += autofl;
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipT.getPixelValue(x, y);
-                                value -= backgroundAvgT;
-                                ipT.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipT, backgroundAvgT);
                         FloatProcessor flp = new FloatProcessor(ipT.getWidth(), ipT.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipT.duplicate());
                         transferImgSave.addSlice("" + 1, flp);
@@ -582,16 +533,8 @@ public class S1S3Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipA = acceptorImg.getProcessor();
-                        int width = acceptorImg.getWidth();
-                        int height = acceptorImg.getHeight();
                         acceptorImgSave = new ImageStack(ipA.getWidth(), ipA.getHeight());
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipA.getPixelValue(x, y);
-                                value -= autofl;
-                                ipA.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipA, autofl);
                         FloatProcessor flp = new FloatProcessor(ipA.getWidth(), ipA.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipA.duplicate());
                         acceptorImgSave.addSlice("" + 1, flp);
@@ -608,28 +551,10 @@ public class S1S3Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipA = acceptorImg.getProcessor();
-                        int width = acceptorImg.getWidth();
-                        int height = acceptorImg.getHeight();
                         acceptorImgSave = new ImageStack(ipA.getWidth(), ipA.getHeight());
-                        double sum = 0;
-                        int count = 0;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                if (acceptorImg.getRoi().contains(i, j)) {
-                                    sum += ipA.getPixelValue(i, j);
-                                    count++;
-                                }
-                            }
-                        }
-                        float backgroundAvgA = (float) (sum / count);
+                        float backgroundAvgA = (float) RoiStatistics.getMean(ipA, acceptorImg.getRoi());
                         backgroundAvgA += autofl;
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipA.getPixelValue(x, y);
-                                value -= backgroundAvgA;
-                                ipA.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipA, backgroundAvgA);
                         FloatProcessor flp = new FloatProcessor(ipA.getWidth(), ipA.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipA.duplicate());
                         acceptorImgSave.addSlice("" + 1, flp);
@@ -748,53 +673,36 @@ public class S1S3Dialog extends JDialog implements ActionListener {
                         mainWindow.logError("No image is set as acceptor channel. (S1/S3 calc.)");
                     } else {
                         DecimalFormat df = new DecimalFormat("#.###");
-                        ImageProcessor ipDP = donorImg.getProcessor();
-                        ImageProcessor ipTP = transferImg.getProcessor();
-                        ImageProcessor ipAP = acceptorImg.getProcessor();
-                        double s1c = 0;
-                        double s3c = 0;
-                        double countc = 0;
-                        float[][] imgS1Points = null;
-                        float[][] imgS3Points = null;
-                        int width = ipDP.getWidth();
-                        int height = ipDP.getHeight();
-                        if (showSImagesCB.isSelected()) {
-                            imgS1Points = new float[width][height];
-                            imgS3Points = new float[width][height];
-                        }
-                        float currentS1 = 0;
-                        float currentS3 = 0;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                currentS1 = ipTP.getPixelValue(i, j) / ipDP.getPixelValue(i, j);
-                                currentS3 = ipAP.getPixelValue(i, j) / ipDP.getPixelValue(i, j);
-                                if (!Float.isNaN(currentS1) && !Float.isNaN(currentS3)) {
-                                    s1c += currentS1;
-                                    s3c += currentS3;
-                                    countc++;
-                                }
+                        int width = donorImg.getWidth();
+                        int height = donorImg.getHeight();
+                        RatioCalculator ratioCalculator = new RatioCalculator(2, mainWindow.getFactorEstimator());
+                        boolean bootstrap = mainWindow.isBootstrap();
+                        ratioCalculator.setBootstrap(bootstrap);
+                        float[] denominator = (float[]) donorImg.getProcessor().getPixels();
+                        float[][] numerators = {(float[]) transferImg.getProcessor().getPixels(), (float[]) acceptorImg.getProcessor().getPixels()};
+                        mainWindow.runTask("S1/S3 calculation", task -> {
+                            ratioCalculator.add(denominator, numerators, width);
+                            if (bootstrap) {
+                                task.checkCancelled();
+                                mainWindow.logConfidenceIntervals(ratioCalculator, new String[]{"S1", "S3"}, "S1/S3 calc.");
+                            }
+                            return () -> {
                                 if (showSImagesCB.isSelected()) {
-                                    imgS1Points[i][j] = currentS1;
-                                    imgS3Points[i][j] = currentS3;
+                                    ImagePlus s1s3Img = new ImagePlus("S1/S3 images (live)", new RatioStack(width, height, denominator, numerators, new String[]{"S1", "S3"}));
+                                    s1s3Img.show();
                                 }
-                            }
-                        }
-                        if (showSImagesCB.isSelected()) {
-                            ImagePlus s1Img = new ImagePlus("S1 image", new FloatProcessor(imgS1Points));
-                            s1Img.show();
-                            ImagePlus s3Img = new ImagePlus("S3 image", new FloatProcessor(imgS3Points));
-                            s3Img.show();
-                        }
-                        float avgS1 = (float) (s1c / countc);
-                        float avgS3 = (float) (s3c / countc);
-                        s1ResultLabel.setText(df.format(avgS1));
-                        s3ResultLabel.setText(df.format(avgS3));
-                        calculateButton.setBackground(mainWindow.greenColor);
-                        calculateButton.setOpaque(true);
-                        calculateButton.setBorderPainted(false);
-                        donorImg.changes = false;
-                        transferImg.changes = false;
-                        acceptorImg.changes = false;
+                                float avgS1 = (float) ratioCalculator.getFactor(0);
+                                float avgS3 = (float) ratioCalculator.getFactor(1);
+                                s1ResultLabel.setText(df.format(avgS1));
+                                s3ResultLabel.setText(df.format(avgS3));
+                                calculateButton.setBackground(mainWindow.greenColor);
+                                calculateButton.setOpaque(true);
+                                calculateButton.setBorderPainted(false);
+                                donorImg.changes = false;
+                                transferImg.changes = false;
+                                acceptorImg.changes = false;
+                            };
+                        });
                     }
                     break;
                 case "setfactor":
@@ -816,6 +724,8 @@ public class S1S3Dialog extends JDialog implements ActionListener {
             }
         } catch (NumberFormatException t) {
             mainWindow.logException(t.toString(), t);
+        } catch (IllegalArgumentException ex) {
+            mainWindow.logError(ex.getMessage() + " (S1/S3 calc.)");
         }
     }
 }
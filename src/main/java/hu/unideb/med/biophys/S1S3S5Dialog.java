@@ -349,6 +349,9 @@ public class S1S3S5Dialog extends JDialog implements ActionListener {
 
     @Override
     public void actionPerformed(ActionEvent e) {
+        if (mainWindow.isTaskRunning()) {
+            return;
+        }
         try {
             switch (e.getActionCommand()) {
                 case "reset":
@@ -508,16 +511,8 @@ public class S1S3S5Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipD = donorImg.getProcessor();
-                        int width = donorImg.getWidth();
-                        int height = donorImg.getHeight();
                         donorImgSave = new ImageStack(ipD.getWidth(), ipD.getHeight());
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipD.getPixelValue(x, y);
-                                value -= autofl;
-                                ipD.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipD, autofl);
                         FloatProcessor flp = new FloatProcessor(ipD.getWidth(), ipD.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipD.duplicate());
                         donorImgSave.addSlice("" + 1, flp);
@@ -534,28 +529,10 @@ public class S1S3S5Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipD = donorImg.getProcessor();
-                        int width = donorImg.getWidth();
-                        int height = donorImg.getHeight();
                         donorImgSave = new ImageStack(ipD.getWidth(), ipD.getHeight());
-                        double sum = 0;
-                        int count = 0;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                if (donorImg.getRoi().contains(i, j)) {
-                                    sum += ipD.getPixelValue(i, j);
-                                    count++;
-                                }
-                            }
-                        }
-                        float backgroundAvgD = (float) (sum / count);
+                        float backgroundAvgD = (float) RoiStatistics.getMean(ipD, donorImg.getRoi());
                         backgroundAvgD += autofl;
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipD.getPixelValue(x, y);
-                                value -= backgroundAvgD;
-                                ipD.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipD, backgroundAvgD);
                         FloatProcessor flp = new FloatProcessor(ipD.getWidth(), ipD.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipD.duplicate());
                         donorImgSave.addSlice("" + 1, flp);
@@ -584,16 +561,8 @@ public class S1S3S5Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipT = transferImg.getProcessor();
-                        int width = transferImg.getWidth();
-                        int height = transferImg.getHeight();
                         transferImgSave = new ImageStack(ipT.getWidth(), ipT.getHeight());
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipT.getPixelValue(x, y);
-                                value -= autofl;
-                                ipT.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipT, autofl);
                         FloatProcessor flp = new FloatProcessor(ipT.getWidth(), ipT.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipT.duplicate());
                         transferImgSave.addSlice("" + 1, flp);
@@ -610,28 +579,10 @@ public class S1S3S5Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipT = transferImg.getProcessor();
-                        int width = transferImg.getWidth();
-                        int height = transferImg.getHeight();
                         transferImgSave = new ImageStack(ipT.getWidth(), ipT.getHeight());
-                        double sum = 0;
-                        int count = 0;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                if (transferImg.getRoi().contains(i, j)) {
-                                    sum += ipT.getPixelValue(i, j);
-                                    count++;
-                                }
-                            }
-                        }
-                        float backgroundAvgT = (float) (sum / count);
+                        float backgroundAvgT = (float) RoiStatistics.getMean(ipT, transferImg.getRoi());
                         backgroundAvgT += autofl;
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipT.getPixelValue(x, y);
-                                value -= backgroundAvgT;
-                                ipT.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipT, backgroundAvgT);
                         FloatProcessor flp = new FloatProcessor(ipT.getWidth(), ipT.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipT.duplicate());
                         transferImgSave.addSlice("" + 1, flp);
@@ -660,16 +611,8 @@ public class S1S3S5Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipA = acceptorImg.getProcessor();
-                        int width = acceptorImg.getWidth();
-                        int height = acceptorImg.getHeight();
                         acceptorImgSave = new ImageStack(ipA.getWidth(), ipA.getHeight());
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipA.getPixelValue(x, y);
-                                value -= autofl;
-                                ipA.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipA, autofl);
                         FloatProcessor flp = new FloatProcessor(ipA.getWidth(), ipA.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipA.duplicate());
                         acceptorImgSave.addSlice("" + 1, flp);
@@ -686,28 +629,10 @@ public class S1S3S5Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipA = acceptorImg.getProcessor();
-                        int width = acceptorImg.getWidth();
-                        int height = acceptorImg.getHeight();
                         acceptorImgSave = new ImageStack(ipA.getWidth(), ipA.getHeight());
-                        double sum = 0;
-                        int count = 0;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                if (acceptorImg.getRoi().contains(i, j)) {
-                                    sum += ipA.getPixelValue(i, j);
-                                    count++;
-                                }
-                            }
-                        }
-                        float backgroundAvgA = (float) (sum / count);
+                        float backgroundAvgA = (float) RoiStatistics.getMean(ipA, acceptorImg.getRoi());
                         backgroundAvgA += autofl;
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipA.getPixelValue(x, y);
-                                value -= backgroundAvgA;
-                                ipA.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipA, backgroundAvgA);
                         FloatProcessor flp = new FloatProcessor(ipA.getWidth(), ipA.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipA.duplicate());
                         acceptorImgSave.addSlice("" + 1, flp);
@@ -736,16 +661,8 @@ public class S1S3S5Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipAF = autofluorescenceImg.getProcessor();
-                        int width = autofluorescenceImg.getWidth();
-                        int height = autofluorescenceImg.getHeight();
                         autofluorescenceImgSave = new ImageStack(ipAF.getWidth(), ipAF.getHeight());
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipAF.getPixelValue(x, y);
-                                value -= autofl;
-                                ipAF.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipAF, autofl);
                         FloatProcessor flp = new FloatProcessor(ipAF.getWidth(), ipAF.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipAF.duplicate());
                         autofluorescenceImgSave.addSlice("" + 1, flp);
@@ -762,28 +679,10 @@ public class S1S3S5Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipAF = autofluorescenceImg.getProcessor();
-                        int width = autofluorescenceImg.getWidth();
-                        int height = autofluorescenceImg.getHeight();
                         autofluorescenceImgSave = new ImageStack(ipAF.getWidth(), ipAF.getHeight());
-                        double sum = 0;
-                        int count = 0;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                if (autofluorescenceImg.getRoi().contains(i, j)) {
-                                    sum += ipAF.getPixelValue(i, j);
-                                    count++;
-                                }
-                            }
-                        }
-                        float backgroundAvgAF = (float) (sum / count);
+                        float backgroundAvgAF = (float) RoiStatistics.getMean(ipAF, autofluorescenceImg.getRoi());
                         backgroundAvgAF += autofl;
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipAF.getPixelValue(x, y);
-                                value -= backgroundAvgAF;
-                                ipAF.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipAF, backgroundAvgAF);
                         FloatProcessor flp = new FloatProcessor(ipAF.getWidth(), ipAF.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipAF.duplicate());
                         autofluorescenceImgSave.addSlice("" + 1, flp);
@@ -936,66 +835,39 @@ public class S1S3S5Dialog extends JDialog implements ActionListener {
                         mainWindow.logError("No image is set as autofluorescence channel. (S1/S3/S5 calc.)");
                     } else {
                         DecimalFormat df = new DecimalFormat("#.###");
-                        ImageProcessor ipDP = donorImg.getProcessor();
-                        ImageProcessor ipTP = transferImg.getProcessor();
-                        ImageProcessor ipAP = acceptorImg.getProcessor();
-                        ImageProcessor ipAFP = autofluorescenceImg.getProcessor();
-                        double s1c = 0;
-                        double s3c = 0;
-                        double s5c = 0;
-                        double countc = 0;
-                        float[][] imgS1Points = null;
-                        float[][] imgS3Points = null;
-                        float[][] imgS5Points = null;
-                        int width = ipDP.getWidth();
-                        int height = ipDP.getHeight();
-                        if (showSImagesCB.isSelected()) {
-                            imgS1Points = new float[width][height];
-                            imgS3Points = new float[width][height];
-                            imgS5Points = new float[width][height];
-                        }
-                        float currentS1 = 0;
-                        float currentS3 = 0;
-                        float currentS5 = 0;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                currentS1 = ipTP.getPixelValue(i, j) / ipDP.getPixelValue(i, j);
-                                currentS3 = ipAP.getPixelValue(i, j) / ipDP.getPixelValue(i, j);
-                                currentS5 = ipAFP.getPixelValue(i, j) / ipDP.getPixelValue(i, j);
-                                if (!Float.isNaN(currentS1) && !Float.isNaN(currentS3) && !Float.isNaN(currentS5)) {
-                                    s1c += currentS1;
-                                    s3c += currentS3;
-                                    s5c += currentS5;
-                                    countc++;
-                                }
+                        int width = donorImg.getWidth();
+                        int height = donorImg.getHeight();
+                        RatioCalculator ratioCalculator = new RatioCalculator(3, mainWindow.getFactorEstimator());
+                        boolean bootstrap = mainWindow.isBootstrap();
+                        ratioCalculator.setBootstrap(bootstrap);
+                        float[] denominator = (float[]) donorImg.getProcessor().getPixels();
+                        float[][] numerators = {(float[]) transferImg.getProcessor().getPixels(), (float[]) acceptorImg.getProcessor().getPixels(), (float[]) autofluorescenceImg.getProcessor().getPixels()};
+                        mainWindow.runTask("S1/S3/S5 calculation", task -> {
+                            ratioCalculator.add(denominator, numerators, width);
+                            if (bootstrap) {
+                                task.checkCancelled();
+                                mainWindow.logConfidenceIntervals(ratioCalculator, new String[]{"S1", "S3", "S5"}, "S1/S3/S5 calc.");
+                            }
+                            return () -> {
                                 if (showSImagesCB.isSelected()) {
-                                    imgS1Points[i][j] = currentS1;
-                                    imgS3Points[i][j] = currentS3;
-                                    imgS5Points[i][j] = currentS5;
+                                    ImagePlus s1s3s5Img = new ImagePlus("S1/S3/S5 images (live)", new RatioStack(width, height, denominator, numerators, new String[]{"S1", "S3", "S5"}));
+                                    s1s3s5Img.show();
                                 }
-                            }
-                        }
-                        if (showSImagesCB.isSelected()) {
-                            ImagePlus s1Img = new ImagePlus("S1 image", new FloatProcessor(imgS1Points));
-                            s1Img.show();
-                            ImagePlus s3Img = new ImagePlus("S3 image", new FloatProcessor(imgS3Points));
-                            s3Img.show();
-                            ImagePlus s5Img = new ImagePlus("S5 image", new FloatProcessor(imgS5Points));
-                            s5Img.show();
-                        }
-                        float avgS1 = (float) (s1c / countc);
-                        float avgS3 = (float) (s3c / countc);
-                        float avgS5 = (float) (s5c / countc);
-                        s1ResultLabel.setText(df.format(avgS1));
-                        s3ResultLabel.setText(df.format(avgS3));
-                        s5ResultLabel.setText(df.format(avgS5));
-                        calculateButton.setBackground(mainWindow.greenColor);
-                        calculateButton.setOpaque(true);
-                        calculateButton.setBorderPainted(false);
-                        donorImg.changes = false;
-                        transferImg.changes = false;
-                        acceptorImg.changes = false;
-                        autofluorescenceImg.changes = false;
+                                float avgS1 = (float) ratioCalculator.getFactor(0);
+                                float avgS3 = (float) ratioCalculator.getFactor(1);
+                                float avgS5 = (float) ratioCalculator.getFactor(2);
+                                s1ResultLabel.setText(df.format(avgS1));
+                                s3ResultLabel.setText(df.format(avgS3));
+                                s5ResultLabel.setText(df.format(avgS5));
+                                calculateButton.setBackground(mainWindow.greenColor);
+                                calculateButton.setOpaque(true);
+                                calculateButton.setBorderPainted(false);
+                                donorImg.changes = false;
+                                transferImg.changes = false;
+                                acceptorImg.changes = false;
+                                autofluorescenceImg.changes = false;
+                            };
+                        });
                     }
                     break;
                 case "setfactor":
@@ -1048,6 +920,8 @@ public class S1S3S5Dialog extends JDialog implements ActionListener {
             }
         } catch (NumberFormatException t) {
             mainWindow.logException(t.toString(), t);
+        } catch (IllegalArgumentException ex) {
+            mainWindow.logError(ex.getMessage() + " (S1/S3/S5 calc.)");
         }
     }
 }
@@ -349,6 +349,9 @@ public class S2S4S6Dialog extends JDialog implements ActionListener {
 
     @Override
     public void actionPerformed(ActionEvent e) {
+        if (mainWindow.isTaskRunning()) {
+            return;
+        }
         try {
             switch (e.getActionCommand()) {
                 case "reset":
@@ -508,16 +511,8 @@ public class S2S4S6Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipD = donorImg.getProcessor();
-                        int width = donorImg.getWidth();
-                        int height = donorImg.getHeight();
                         donorImgSave = new ImageStack(ipD.getWidth(), ipD.getHeight());
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipD.getPixelValue(x, y);
-                                value -= autofl;
-                                ipD.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipD, autofl);
                         FloatProcessor flp = new FloatProcessor(ipD.getWidth(), ipD.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipD.duplicate());
                         donorImgSave.addSlice("" + 1, flp);
@@ -534,28 +529,10 @@ public class S2S4S6Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipD = donorImg.getProcessor();
-                        int width = donorImg.getWidth();
-                        int height = donorImg.getHeight();
                         donorImgSave = new ImageStack(ipD.getWidth(), ipD.getHeight());
-                        double sum = 0;
-                        int count = 0;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                if (donorImg.getRoi().contains(i, j)) {
-                                    sum += ipD.getPixelValue(i, j);
-                                    count++;
-                                }
-                            }
-                        }
-                        float backgroundAvgD = (float) (sum / count);
+                        float backgroundAvgD = (float) RoiStatistics.getMean(ipD, donorImg.getRoi());
                         backgroundAvgD += autofl;
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipD.getPixelValue(x, y);
-                                value -= backgroundAvgD;
-                                ipD.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipD, backgroundAvgD);
                         FloatProcessor flp = new FloatProcessor(ipD.getWidth(), ipD.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipD.duplicate());
                         donorImgSave.addSlice("" + 1, flp);
@@ -584,16 +561,8 @@ public class S2S4S6Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipT = transferImg.getProcessor();
-                        int width = transferImg.getWidth();
-                        int height = transferImg.getHeight();
                         transferImgSave = new ImageStack(ipT.getWidth(), ipT.getHeight());
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipT.getPixelValue(x, y);
-                                value -= autofl;
-                                ipT.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipT, autofl);
                         FloatProcessor flp = new FloatProcessor(ipT.getWidth(), ipT.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipT.duplicate());
                         transferImgSave.addSlice("" + 1, flp);
@@ -610,28 +579,10 @@ public class S2S4S6Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipT = transferImg.getProcessor();
-                        int width = transferImg.getWidth();
-                        int height = transferImg.getHeight();
                         transferImgSave = new ImageStack(ipT.getWidth(), ipT.getHeight());
-                        double sum = 0;
-                        int count = 0;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                if (transferImg.getRoi().contains(i, j)) {
-                                    sum += ipT.getPixelValue(i, j);
-                                    count++;
-                                }
-                            }
-                        }
-                        float backgroundAvgT = (float) (sum / count);
+                        float backgroundAvgT = (float) RoiStatistics.getMean(ipT, transferImg.getRoi());
                         backgroundAvgT += autofl;
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipT.getPixelValue(x, y);
-                                value -= backgroundAvgT;
-                                ipT.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipT, backgroundAvgT);
                         FloatProcessor flp = new FloatProcessor(ipT.getWidth(), ipT.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipT.duplicate());
                         transferImgSave.addSlice("" + 1, flp);
@@ -660,16 +611,8 @@ public class S2S4S6Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipA = acceptorImg.getProcessor();
-                        int width = acceptorImg.getWidth();
-                        int height = acceptorImg.getHeight();
                         acceptorImgSave = new ImageStack(ipA.getWidth(), ipA.getHeight());
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipA.getPixelValue(x, y);
-                                value -= autofl;
-                                ipA.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipA, autofl);
                         FloatProcessor flp = new FloatProcessor(ipA.getWidth(), ipA.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipA.duplicate());
                         acceptorImgSave.addSlice("" + 1, flp);
@@ -686,28 +629,10 @@ public class S2S4S6Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipA = acceptorImg.getProcessor();
-                        int width = acceptorImg.getWidth();
-                        int height = acceptorImg.getHeight();
                         acceptorImgSave = new ImageStack(ipA.getWidth(), ipA.getHeight());
-                        double sum = 0;
-                        int count = 0;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                if (acceptorImg.getRoi().contains(i, j)) {
-                                    sum += ipA.getPixelValue(i, j);
-                                    count++;
-                                }
-                            }
-                        }
-                        float backgroundAvgA = (float) (sum / count);
+                        float backgroundAvgA = (float) RoiStatistics.getMean(ipA, acceptorImg.getRoi());
                         backgroundAvgA += autofl;
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipA.getPixelValue(x, y);
-                                value -= backgroundAvgA;
-                                ipA.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipA, backgroundAvgA);
                         FloatProcessor flp = new FloatProcessor(ipA.getWidth(), ipA.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipA.duplicate());
                         acceptorImgSave.addSlice("" + 1, flp);
@@ -736,16 +661,8 @@ public class S2S4S6Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipAF = autofluorescenceImg.getProcessor();
-                        int width = autofluorescenceImg.getWidth();
-                        int height = autofluorescenceImg.getHeight();
                         autofluorescenceImgSave = new ImageStack(ipAF.getWidth(), ipAF.getHeight());
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipAF.getPixelValue(x, y);
-                                value -= autofl;
-                                ipAF.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipAF, autofl);
                         FloatProcessor flp = new FloatProcessor(ipAF.getWidth(), ipAF.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipAF.duplicate());
                         autofluorescenceImgSave.addSlice("" + 1, flp);
@@ -762,28 +679,10 @@ public class S2S4S6Dialog extends JDialog implements ActionListener {
                         }
                         DecimalFormat df = new DecimalFormat("#.#");
                         ImageProcessor ipAF = autofluorescenceImg.getProcessor();
-                        int width = autofluorescenceImg.getWidth();
-                        int height = autofluorescenceImg.getHeight();
                         autofluorescenceImgSave = new ImageStack(ipAF.getWidth(), ipAF.getHeight());
-                        double sum = 0;
-                        int count = 0;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                if (autofluorescenceImg.getRoi().contains(i, j)) {
-                                    sum += ipAF.getPixelValue(i, j);
-                                    count++;
-                                }
-                            }
-                        }
-                        float backgroundAvgAF = (float) (sum / count);
+                        float backgroundAvgAF = (float) RoiStatistics.getMean(ipAF, autofluorescenceImg.getRoi());
                         backgroundAvgAF += autofl;
-                        for (int x = 0; x < width; x++) {
-                            for (int y = 0; y < height; y++) {
-                                float value = ipAF.getPixelValue(x, y);
-                                value -= backgroundAvgAF;
-                                ipAF.putPixelValue(x, y, value);
-                            }
-                        }
+                        BackgroundSubtractor.subtract(ipAF, backgroundAvgAF);
                         FloatProcessor flp = new FloatProcessor(ipAF.getWidth(), ipAF.getHeight());
                         flp.setPixels(1, (FloatProcessor) ipAF.duplicate());
                         autofluorescenceImgSave.addSlice("" + 1, flp);
@@ -936,66 +835,39 @@ public class S2S4S6Dialog extends JDialog implements ActionListener {
                         mainWindow.logError("No image is set as autofluorescence channel. (S2/S4/S6 calc.)");
                     } else {
                         DecimalFormat df = new DecimalFormat("#.###");
-                        ImageProcessor ipDP = donorImg.getProcessor();
-                        ImageProcessor ipTP = transferImg.getProcessor();
-                        ImageProcessor ipAP = acceptorImg.getProcessor();
-                        ImageProcessor ipAFP = autofluorescenceImg.getProcessor();
-                        double s2c = 0;
-                        double s4c = 0;
-                        double s6c = 0;
-                        double countc = 0;
-                        float[][] imgS2Points = null;
-                        float[][] imgS4Points = null;
-                        float[][] imgS6Points = null;
-                        int width = ipDP.getWidth();
-                        int height = ipDP.getHeight();
-                        if (showSImagesCB.isSelected()) {
-                            imgS2Points = new float[width][height];
-                            imgS4Points = new float[width][height];
-                            imgS6Points = new float[width][height];
-                        }
-                        float currentS2 = 0;
-                        float currentS4 = 0;
-                        float currentS6 = 0;
-                        for (int i = 0; i < width; i++) {
-                            for (int j = 0; j < height; j++) {
-                                currentS2 = ipTP.getPixelValue(i, j) / ipAP.getPixelValue(i, j);
-                                currentS4 = ipDP.getPixelValue(i, j) / ipAP.getPixelValue(i, j);
-                                currentS6 = ipAFP.getPixelValue(i, j) / ipAP.getPixelValue(i, j);
-                                if (!Float.isNaN(currentS2) && !Float.isNaN(currentS4) && !Float.isNaN(currentS6)) {
-                                    s2c += currentS2;
-                                    s4c += currentS4;
-                                    s6c += currentS6;
-                                    countc++;
-                                }
+                        int width = acceptorImg.getWidth();
+                        int height = acceptorImg.getHeight();
+                        RatioCalculator ratioCalculator = new RatioCalculator(3, mainWindow.getFactorEstimator());
+                        boolean bootstrap = mainWindow.isBootstrap();
+                        ratioCalculator.setBootstrap(bootstrap);
+                        float[] denominator = (float[]) acceptorImg.getProcessor().getPixels();
+                        float[][] numerators = {(float[]) transferImg.getProcessor().getPixels(), (float[]) donorImg.getProcessor().getPixels(), (float[]) autofluorescenceImg.getProcessor().getPixels()};
+                        mainWindow.runTask("S2/S4/S6 calculation", task -> {
+                            ratioCalculator.add(denominator, numerators, width);
+                            if (bootstrap) {
+                                task.checkCancelled();
+                                mainWindow.logConfidenceIntervals(ratioCalculator, new String[]{"S2", "S4", "S6"}, "S2/S4/S6 calc.");
+                            }
+                            return () -> {
                                 if (showSImagesCB.isSelected()) {
-                                    imgS2Points[i][j] = currentS2;
-                                    imgS4Points[i][j] = currentS4;
-                                    imgS6Points[i][j] = currentS6;
+                                    ImagePlus s2s4s6Img = new ImagePlus("S2/S4/S6 images (live)", new RatioStack(width, height, denominator, numerators, new String[]{"S2", "S4", "S6"}));
+                                    s2s4s6Img.show();
                                 }
-                            }
-                        }
-                        if (showSImagesCB.isSelected()) {
-                            ImagePlus s2Img = new ImagePlus("S2 image", new FloatProcessor(imgS2Points));
-                            s2Img.show();
-                            ImagePlus s4Img = new ImagePlus("S4 image", new FloatProcessor(imgS4Points));
-                            s4Img.show();
-                            ImagePlus s6Img = new ImagePlus("S6 image", new FloatProcessor(imgS6Points));
-                            s6Img.show();
-                        }
-                        float avgS2 = (float) (s2c / countc);
-                        float avgS4 = (float) (s4c / countc);
-                        float avgS6 = (float) (s6c / countc);
-                        s2ResultLabel.setText(df.format(avgS2));
-                        s4ResultLabel.setText(df.format(avgS4));
-                        s6ResultLabel.setText(df.format(avgS6));
-                        calculateButton.setBackground(mainWindow.greenColor);
-                        calculateButton.setOpaque(true);
-                        calculateButton.setBorderPainted(false);
-                        donorImg.changes = false;
-                        transferImg.changes = false;
-                        acceptorImg.changes = false;
-                        autofluorescenceImg.changes = false;
+                                float avgS2 = (float) ratioCalculator.getFactor(0);
+                                float avgS4 = (float) ratioCalculator.getFactor(1);
+                                float avgS6 = (float) ratioCalculator.getFactor(2);
+                                s2ResultLabel.setText(df.format(avgS2));
+                                s4ResultLabel.setText(df.format(avgS4));
+                                s6ResultLabel.setText(df.format(avgS6));
+                                calculateButton.setBackground(mainWindow.greenColor);
+                                calculateButton.setOpaque(true);
+                                calculateButton.setBorderPainted(false);
+                                donorImg.changes = false;
+                                transferImg.changes = false;
+                                acceptorImg.changes = false;
+                                autofluorescenceImg.changes = false;
+                            };
+                        });
                     }
                     break;
                 case "setfactor":
@@ -1048,6 +920,8 @@ public class S2S4S6Dialog extends JDialog implements ActionListener {
             }
         } catch (NumberFormatException t) {
             mainWindow.logException(t.toString(), t);
+        } catch (IllegalArgumentException ex) {
+            mainWindow.logError(ex.getMessage() + " (S2/S4/S6 calc.)");
         }
     }
 }
@@ -23,17 +23,19 @@ package hu.unideb.med.biophys;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.WindowManager;
-import ij.process.FloatProcessor;
 
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.awt.image.ColorModel;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JDialog;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
@@ -50,6 +52,7 @@ public class ShiftDialogRi extends JDialog implements ActionListener {
     JButton rightButton;
     JButton upButton;
     JButton downButton;
+    JCheckBox nanBorderCB;
     JButton cancelButton = new JButton("Close");
 
     public ShiftDialogRi(RiFRET_Plugin mainWindow) {
@@ -102,10 +105,14 @@ public class ShiftDialogRi extends JDialog implements ActionListener {
         downButton.addActionListener(this);
         downButton.setActionCommand("down");
         panel.add(downButton, gc);
-        gc.insets = new Insets(0, 0, 4, 0);
+        gc.insets = new Insets(0, 0, 0, 0);
         gc.gridwidth = 3;
         gc.gridx = 0;
         gc.gridy = 3;
+        nanBorderCB = new JCheckBox("Fill border with NaN");
+        panel.add(nanBorderCB, gc);
+        gc.insets = new Insets(0, 0, 4, 0);
+        gc.gridy = 4;
         panel.add(cancelButton, gc);
         cancelButton.addActionListener(this);
         cancelButton.setActionCommand("cancel");
@@ -115,6 +122,9 @@ public class ShiftDialogRi extends JDialog implements ActionListener {
 
     @Override
     public void actionPerformed(ActionEvent e) {
+        if (!e.getActionCommand().equals("cancel") && mainWindow.isTaskRunning()) {
+            return;
+        }
         try {
             switch (e.getActionCommand()) {
                 case "cancel":
@@ -149,90 +159,71 @@ public class ShiftDialogRi extends JDialog implements ActionListener {
     }
 
     public void shiftUp(ImagePlus image, int value) {
-        if (image == null) {
-            return;
-        }
-        int width = image.getWidth();
-        int height = image.getHeight();
-        FloatProcessor fp = (FloatProcessor) image.getProcessor();
-        ColorModel cm = fp.getColorModel();
-
-        float[] fpPixels = (float[]) fp.getPixels();
-        float[][] fpPixels2 = new float[width][height];
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height - value; j++) {
-                fpPixels2[i][j] = fpPixels[width * (j + value) + i];
-            }
-        }
-        FloatProcessor newFp = new FloatProcessor(fpPixels2);
-        newFp.setColorModel(cm);
-        image.setProcessor(image.getTitle(), newFp);
-        image.updateAndDraw();
+        shift(image, 0, -value);
     }
 
     public void shiftDown(ImagePlus image, int value) {
-        if (image == null) {
-            return;
-        }
-        int width = image.getWidth();
-        int height = image.getHeight();
-        FloatProcessor fp = (FloatProcessor) image.getProcessor();
-        ColorModel cm = fp.getColorModel();
-
-        float[] fpPixels = (float[]) fp.getPixels();
-        float[][] fpPixels2 = new float[width][height];
-        for (int i = 0; i < width; i++) {
-            for (int j = value; j < height; j++) {
-                fpPixels2[i][j] = fpPixels[width * (j - value) + i];
-            }
-        }
-        FloatProcessor newFp = new FloatProcessor(fpPixels2);
-        newFp.setColorModel(cm);
-        image.setProcessor(image.getTitle(), newFp);
-        image.updateAndDraw();
+        shift(image, 0, value);
     }
 
     public void shiftLeft(ImagePlus image, int value) {
+        shift(image, -value, 0);
+    }
+
+    public void shiftRight(ImagePlus image, int value) {
+        shift(image, value, 0);
+    }
+
+    /**
+     * Shifts every slice of a 32-bit image by whole pixels, right and down
+     * for positive values.
+     */
+    public void shift(ImagePlus image, int dx, int dy) {
         if (image == null) {
             return;
         }
-        int width = image.getWidth();
-        int height = image.getHeight();
-        FloatProcessor fp = (FloatProcessor) image.getProcessor();
-        ColorModel cm = fp.getColorModel();
-
-        float[] fpPixels = (float[]) fp.getPixels();
-        float[][] fpPixels2 = new float[width][height];
-        for (int i = 0; i < width - value; i++) {
-            for (int j = 0; j < height; j++) {
-                fpPixels2[i][j] = fpPixels[width * j + (i + value)];
-            }
+        if (image.getBitDepth() != 32) {
+            mainWindow.logError("Only 32-bit images can be shifted.");
+            return;
         }
-        FloatProcessor newFp = new FloatProcessor(fpPixels2);
-        newFp.setColorModel(cm);
-        image.setProcessor(image.getTitle(), newFp);
+        shift(image.getStack(), dx, dy, nanBorderCB.isSelected() ? Float.NaN : 0);
         image.updateAndDraw();
     }
 
-    public void shiftRight(ImagePlus image, int value) {
-        if (image == null) {
+    /**
+     * Shifts the slices of a 32-bit stack in place, in parallel. The pixels
+     * shifted in from outside the image are set to the fill value.
+     */
+    public static void shift(ImageStack stack, int dx, int dy, float fill) {
+        int width = stack.getWidth();
+        int height = stack.getHeight();
+        IntStream.rangeClosed(1, stack.getSize()).parallel().forEach(n -> shift((float[]) stack.getPixels(n), width, height, dx, dy, fill));
+    }
+
+    /**
+     * Shifts the pixels in place with one row copy per row, without
+     * allocating any buffer.
+     */
+    public static void shift(float[] pixels, int width, int height, int dx, int dy, float fill) {
+        if (Math.abs(dx) >= width || Math.abs(dy) >= height) {
+            Arrays.fill(pixels, fill);
             return;
         }
-        int width = image.getWidth();
-        int height = image.getHeight();
-        FloatProcessor fp = (FloatProcessor) image.getProcessor();
-        ColorModel cm = fp.getColorModel();
-
-        float[] fpPixels = (float[]) fp.getPixels();
-        float[][] fpPixels2 = new float[width][height];
-        for (int i = value; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                fpPixels2[i][j] = fpPixels[width * j + (i - value)];
-            }
+        int length = width - Math.abs(dx);
+        int from = Math.max(0, -dx);
+        int to = Math.max(0, dx);
+        // Rows are moved away from the side they are shifted to first, so
+        // that no source row is overwritten before it is copied.
+        for (int i = 0; i < height - Math.abs(dy); i++) {
+            int y = dy > 0 ? height - 1 - i : i;
+            System.arraycopy(pixels, (y - dy) * width + from, pixels, y * width + to, length);
+            Arrays.fill(pixels, y * width, y * width + to, fill);
+            Arrays.fill(pixels, y * width + to + length, (y + 1) * width, fill);
+        }
+        if (dy > 0) {
+            Arrays.fill(pixels, 0, dy * width, fill);
+        } else {
+            Arrays.fill(pixels, (height + dy) * width, height * width, fill);
         }
-        FloatProcessor newFp = new FloatProcessor(fpPixels2);
-        newFp.setColorModel(cm);
-        image.setProcessor(image.getTitle(), newFp);
-        image.updateAndDraw();
     }
 }
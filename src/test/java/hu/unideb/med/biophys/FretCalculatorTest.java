@@ -0,0 +1,134 @@
+/*-
+ * #%L
+ * an ImageJ plugin for intensity-based three-filter set FRET.
+ * %%
+ * Copyright (C) 2009 - 2023 RiFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the folded coefficients of FretCalculator with the per-pixel
+ * expressions of the efficiency the main window used before, with and
+ * without autofluorescence correction.
+ */
+public class FretCalculatorTest {
+
+    private static final int N_PIXELS = 10000;
+    private static final double TOLERANCE = 1e-4;
+
+    private static final double S1 = 0.35;
+    private static final double S2 = 0.5;
+    private static final double S3 = 0.05;
+    private static final double S4 = 0.25;
+    private static final double S5 = 0.1;
+    private static final double S6 = 0.08;
+    private static final double B1 = 0.2;
+    private static final double B2 = 0.15;
+    private static final double B3 = 0.12;
+    private static final double ALPHA = 0.9;
+    private static final double E_RATIO = 1.3;
+
+    @Test
+    public void testThreeFilter() {
+        float[][] channels = createChannels(3);
+        float[] dd = channels[0];
+        float[] da = channels[1];
+        float[] aa = channels[2];
+        // The denominator is 0 if dd * s2 = da * s4.
+        dd[2] = 0.25f;
+        da[2] = 0.5f;
+        float[] efficiency = new FretCalculator(S1, S2, S3, S4, ALPHA).calculateEfficiency(dd, da, aa, null);
+        for (int i = 0; i < N_PIXELS; i++) {
+            float expected;
+            if (!Float.isNaN(dd[i]) && !Float.isNaN(da[i]) && !Float.isNaN(aa[i])) {
+                expected = (float) ((S1 * S2 * (da[i] * (1 - S3 * S4) - dd[i] * (S1 - S2 * S3) - aa[i] * (S2 - S1 * S4))) / ((S1 - S2 * S3) * (dd[i] * S2 - da[i] * S4) * ALPHA));
+            } else {
+                expected = Float.NaN;
+            }
+            // The old result E = x / (1 + x) lost precision near x = -1,
+            // where x was rounded before the division, so x is compared.
+            if (Float.isNaN(expected / ((float) 1 + expected))) {
+                assertPixel(i, Float.NaN, efficiency[i]);
+            } else {
+                assertPixel(i, expected, (float) (efficiency[i] / (1.0 - efficiency[i])));
+            }
+        }
+        assertTrue(Float.isNaN(efficiency[2]));
+    }
+
+    @Test
+    public void testAutofluorescenceCorrection() {
+        float[][] channels = createChannels(4);
+        float[] dd = channels[0];
+        float[] da = channels[1];
+        float[] aa = channels[2];
+        float[] af = channels[3];
+        // Both the numerator and the denominator are 0.
+        dd[2] = 0;
+        da[2] = 0;
+        aa[2] = 0;
+        af[2] = 0;
+        float[] efficiency = new FretCalculator(S1, S2, S3, S4, S5, S6, B1, B2, B3, ALPHA, E_RATIO).calculateEfficiency(dd, da, aa, af);
+        for (int i = 0; i < N_PIXELS; i++) {
+            float expected;
+            if (!Float.isNaN(dd[i]) && !Float.isNaN(da[i]) && !Float.isNaN(aa[i]) && !Float.isNaN(af[i])) {
+                expected = (float) ((S2 * (B2 * af[i] + dd[i] * S1 + aa[i] * S2 - S2 * (B3 * af[i] + dd[i] * S3) + B1 * af[i] * (-S1 + S2 * S3) + (-aa[i] + B3 * af[i]) * S1 * S4 + (B3 * dd[i] - B1 * aa[i]) * (S2 * S5 - S1 * S6) + da[i] * (-1 + B1 * S5 - B3 * S4 * S5 + B3 * S6 + S3 * (S4 - B1 * S6)) - B2 * (af[i] * S3 * S4 + aa[i] * (-S4 * S5 + S6) + dd[i] * (S5 - S3 * S6))))
+                        / (ALPHA * (-1 + E_RATIO) * (-B1 * af[i] * S2 - da[i] * S4 + B2 * af[i] * S4 + B1 * da[i] * S6 + dd[i] * (S2 - B2 * S6)) + S2 * (B2 * af[i] + dd[i] * S1 + aa[i] * S2 - S2 * (B3 * af[i] + dd[i] * S3) + B1 * af[i] * (-S1 + S2 * S3) + (-aa[i] + B3 * af[i]) * S1 * S4 + (B3 * dd[i] - B1 * aa[i]) * (S2 * S5 - S1 * S6) + da[i] * (-1 + B1 * S5 - B3 * S4 * S5 + B3 * S6 + S3 * (S4 - B1 * S6)) - B2 * (af[i] * S3 * S4 + aa[i] * (-S4 * S5 + S6) + dd[i] * (S5 - S3 * S6)))));
+            } else {
+                expected = Float.NaN;
+            }
+            assertPixel(i, expected, efficiency[i]);
+        }
+        assertTrue(Float.isNaN(efficiency[2]));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingAutofluorescence() {
+        new FretCalculator(S1, S2, S3, S4, S5, S6, B1, B2, B3, ALPHA, E_RATIO).calculateEfficiency(new float[1], new float[1], new float[1], null);
+    }
+
+    // Random intensities, with a NaN pixel in each channel at a different
+    // position and one in every channel at pixel 0.
+    private static float[][] createChannels(int nChannels) {
+        Random random = new Random(1);
+        float[][] channels = new float[nChannels][N_PIXELS];
+        for (int c = 0; c < nChannels; c++) {
+            for (int i = 0; i < N_PIXELS; i++) {
+                channels[c][i] = 4000 * random.nextFloat();
+            }
+            channels[c][0] = Float.NaN;
+            channels[c][10 + c] = Float.NaN;
+        }
+        return channels;
+    }
+
+    private static void assertPixel(int i, float expected, float actual) {
+        if (Float.isNaN(expected)) {
+            assertTrue("Pixel " + i + ": " + actual, Float.isNaN(actual));
+        } else {
+            assertEquals("Pixel " + i, expected, actual, TOLERANCE * Math.max(1, Math.abs(expected)));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*-
+ * #%L
+ * an ImageJ plugin for intensity-based three-filter set FRET.
+ * %%
+ * Copyright (C) 2009 - 2023 RiFRET developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package hu.unideb.med.biophys;
+
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the recursive Gaussian blur with ImageJ's GaussianBlur. The errors
+ * are relative to the range of the pixel values. The recursive filter is
+ * least accurate for small sigma.
+ */
+public class RecursiveGaussianTest {
+
+    private static final int WIDTH = 256;
+    private static final int HEIGHT = 256;
+    private static final float RANGE = 1000;
+    private static final double[] SIGMAS = {1, 1.5, 2, 3, 4, 8, 16};
+    // Tolerances of the mean and the maximal error below and above sigma 2.
+    private static final double SMALL_SIGMA_MEAN_ERROR = 0.015;
+    private static final double SMALL_SIGMA_MAX_ERROR = 0.08;
+    private static final double MEAN_ERROR = 0.005;
+    private static final double MAX_ERROR = 0.04;
+
+    @Test
+    public void testNoise() {
+        Random random = new Random(1);
+        float[] pixels = new float[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = RANGE * random.nextFloat();
+        }
+        assertAccuracy(pixels);
+    }
+
+    @Test
+    public void testSquare() {
+        Random random = new Random(2);
+        float[] pixels = new float[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                boolean inside = x >= WIDTH / 4 && x < 3 * WIDTH / 4 && y >= HEIGHT / 4 && y < 3 * HEIGHT / 4;
+                pixels[y * WIDTH + x] = (inside ? 0.9f * RANGE : 0) + 0.1f * RANGE * random.nextFloat();
+            }
+        }
+        assertAccuracy(pixels);
+    }
+
+    @Test
+    public void testConstant() {
+        for (double sigma : SIGMAS) {
+            float[] pixels = new float[WIDTH * HEIGHT];
+            Arrays.fill(pixels, 123.5f);
+            new RecursiveGaussian(sigma).blur(pixels, WIDTH, HEIGHT);
+            for (float value : pixels) {
+                assertEquals("Sigma " + sigma, 123.5f, value, 1e-3f);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooSmallSigma() {
+        new RecursiveGaussian(RecursiveGaussian.MIN_SIGMA / 2);
+    }
+
+    private static void assertAccuracy(float[] pixels) {
+        for (double sigma : SIGMAS) {
+            FloatProcessor expected = new FloatProcessor(WIDTH, HEIGHT, pixels.clone());
+            new GaussianBlur().blurGaussian(expected, sigma);
+            float[] expectedPixels = (float[]) expected.getPixels();
+            float[] blurred = pixels.clone();
+            new RecursiveGaussian(sigma).blur(blurred, WIDTH, HEIGHT);
+            double sum = 0;
+            double max = 0;
+            for (int i = 0; i < blurred.length; i++) {
+                double error = Math.abs(blurred[i] - expectedPixels[i]) / RANGE;
+                sum += error;
+                max = Math.max(max, error);
+            }
+            double mean = sum / blurred.length;
+            assertTrue("Mean error " + mean + " at sigma " + sigma, mean <= (sigma < 2 ? SMALL_SIGMA_MEAN_ERROR : MEAN_ERROR));
+            assertTrue("Maximal error " + max + " at sigma " + sigma, max <= (sigma < 2 ? SMALL_SIGMA_MAX_ERROR : MAX_ERROR));
+        }
+    }
+}